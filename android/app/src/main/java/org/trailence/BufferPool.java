@@ -0,0 +1,88 @@
+package org.trailence;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Byte arrays reused by the native I/O paths, so reading chunks of files, importing files or downloading
+ * does not allocate new arrays each time, causing garbage collections while the map is rendering.
+ * Arrays are grouped by size classes, powers of 2 from 8 KB to 4 MB: an acquired array may be larger than requested.
+ * Only a bounded number of bytes is kept, other released arrays are left to the garbage collector.
+ */
+public final class BufferPool {
+
+  private static final int MIN_CLASS_SHIFT = 13;
+  private static final int MAX_CLASS_SHIFT = 22;
+  /** Larger arrays are allocated for each request and not kept. */
+  public static final int MAX_POOLED_SIZE = 1 << MAX_CLASS_SHIFT;
+  private static final int MAX_PER_CLASS = 4;
+  private static final long MAX_RETAINED_BYTES = 8L * 1024 * 1024;
+
+  private static final List<ArrayDeque<byte[]>> free = new ArrayList<>();
+  static {
+    for (int shift = MIN_CLASS_SHIFT; shift <= MAX_CLASS_SHIFT; ++shift) free.add(new ArrayDeque<>());
+  }
+  private static long retained = 0;
+
+  private static long hits = 0;
+  private static long misses = 0;
+  private static long dropped = 0;
+
+  private BufferPool() {
+    // static only
+  }
+
+  /** Return an array of at least size bytes, which should be given back with release once not used anymore. */
+  public static byte[] acquire(int size) {
+    int index = classIndex(size);
+    synchronized (BufferPool.class) {
+      if (index >= 0) {
+        byte[] buffer = free.get(index).pollLast();
+        if (buffer != null) {
+          retained -= buffer.length;
+          hits++;
+          return buffer;
+        }
+      }
+      misses++;
+    }
+    return new byte[index >= 0 ? 1 << (index + MIN_CLASS_SHIFT) : size];
+  }
+
+  /** Give back an array, which must not be used anymore by the caller. Arrays not acquired from the pool are ignored. */
+  public static void release(byte[] buffer) {
+    if (buffer == null) return;
+    int index = classIndex(buffer.length);
+    if (index < 0 || buffer.length != 1 << (index + MIN_CLASS_SHIFT)) return;
+    synchronized (BufferPool.class) {
+      ArrayDeque<byte[]> queue = free.get(index);
+      if (queue.size() >= MAX_PER_CLASS || retained + buffer.length > MAX_RETAINED_BYTES) {
+        dropped++;
+        return;
+      }
+      queue.addLast(buffer);
+      retained += buffer.length;
+    }
+  }
+
+  /** Release the memory, on memory pressure. */
+  public static synchronized void clear() {
+    for (ArrayDeque<byte[]> queue : free) queue.clear();
+    retained = 0;
+  }
+
+  /** hits, misses, dropped, count, size */
+  public static synchronized long[] stats() {
+    long count = 0;
+    for (ArrayDeque<byte[]> queue : free) count += queue.size();
+    return new long[] { hits, misses, dropped, count, retained };
+  }
+
+  /** Index of the smallest size class containing size bytes, or -1 if too large to be pooled. */
+  private static int classIndex(int size) {
+    if (size > MAX_POOLED_SIZE) return -1;
+    if (size <= 1 << MIN_CLASS_SHIFT) return 0;
+    return 32 - Integer.numberOfLeadingZeros(size - 1) - MIN_CLASS_SHIFT;
+  }
+}
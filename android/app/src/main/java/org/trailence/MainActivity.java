@@ -76,7 +76,8 @@ public class MainActivity extends BridgeActivity {
       List<byte[]> content = new LinkedList<>();
       try (InputStream in = this.getContentResolver().openInputStream(fileUri)) {
         do {
-          byte[] buffer = new byte[8192];
+          // given back to the pool once sent to the application
+          byte[] buffer = BufferPool.acquire(8192);
           int pos = 0;
           do {
             int nb = in.read(buffer, pos, buffer.length - pos);
@@ -89,6 +90,7 @@ public class MainActivity extends BridgeActivity {
               System.arraycopy(buffer, 0, n, 0, pos);
               content.add(n);
             }
+            BufferPool.release(buffer);
             break;
           }
           content.add(buffer);
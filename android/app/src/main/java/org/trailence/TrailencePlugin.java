@@ -211,6 +211,7 @@ public class TrailencePlugin extends Plugin {
     int index = 0;
     for (byte[] chunk : content) {
       this.importFilesListener.resolve(new JSObject().put("fileId", id).put("chunkIndex", index++).put("data", Base64.getEncoder().encodeToString(chunk)));
+      BufferPool.release(chunk);
     }
   }
 
@@ -23,66 +23,57 @@ public class TrailenceUpdater {
 
   static void update(String urlString, Context ctx, PluginCall call) {
     Logger.info("Downloading update from " + urlString);
-    byte[] apk;
+
+    int sessionId = 0;
+    PackageInstaller.Session session = null;
+
+    PackageInstaller.SessionParams params = new PackageInstaller.SessionParams(PackageInstaller.SessionParams.MODE_FULL_INSTALL);
+    try {
+      sessionId = ctx.getPackageManager().getPackageInstaller().createSession(params);
+      session = ctx.getPackageManager().getPackageInstaller().openSession(sessionId);
+    } catch (Exception e) {
+      Logger.error("Error opening package installer session", e);
+      call.resolve(new JSObject().put("error", e.getMessage()));
+      return;
+    }
+
+    // the APK is written to the session while downloaded, instead of being fully loaded in memory
+    long size = 0;
+    byte[] buffer = BufferPool.acquire(65536);
     try {
       URL url = new URL(urlString);
       URLConnection connection = url.openConnection();
       connection.connect();
 
-      int length = connection.getContentLength();
-      if (length > 0)
-        apk = new byte[length];
-      else
-        apk = new byte[10 * 1024 * 1024];
-      int pos = 0;
-      try (InputStream in = connection.getInputStream()) {
-        while (length <= 0 || pos < length) {
-          int chunk = (length > 0 && length - pos < 65536 ? length - pos : 65536);
-          int read = in.read(apk, pos, chunk);
+      long length = connection.getContentLength();
+      try (InputStream in = connection.getInputStream(); OutputStream out = session.openWrite("update", 0, length > 0 ? length : -1)) {
+        while (length <= 0 || size < length) {
+          int chunk = (int) (length > 0 ? Math.min(buffer.length, length - size) : buffer.length);
+          int read = in.read(buffer, 0, chunk);
           if (read <= 0) {
             if (length > 0)
               throw new EOFException();
-            byte[] data = new byte[pos];
-            System.arraycopy(apk, 0, data, 0, pos);
-            apk = data;
             break;
           }
-          pos += read;
-          int pc = length > 0 ? (pos * 90 / length) : (pos > 6 * 1024 * 1024 ? 90 : pos * 90 / (6 * 1024 * 1024));
+          out.write(buffer, 0, read);
+          size += read;
+          long pc = length > 0 ? (size * 90 / length) : (size > 6 * 1024 * 1024 ? 90 : size * 90 / (6 * 1024 * 1024));
           call.resolve(new JSObject().put("done", false).put("progress", pc));
         }
+        session.fsync(out);
       }
     } catch (Exception e) {
       Logger.error("Error downloading update", e);
       call.resolve(new JSObject().put("error", e.getMessage()));
+      session.abandon();
       return;
+    } finally {
+      BufferPool.release(buffer);
     }
 
-    Logger.info("Update downloaded (" + apk.length + "), start installation");
+    Logger.info("Update downloaded (" + size + "), start installation");
     call.resolve(new JSObject().put("done", false).put("progress", 95).put("i18n", "installing"));
 
-    int sessionId = 0;
-    PackageInstaller.Session session = null;
-
-    PackageInstaller.SessionParams params = new PackageInstaller.SessionParams(PackageInstaller.SessionParams.MODE_FULL_INSTALL);
-    try {
-      sessionId = ctx.getPackageManager().getPackageInstaller().createSession(params);
-      session = ctx.getPackageManager().getPackageInstaller().openSession(sessionId);
-    } catch (Exception e) {
-      Logger.error("Error opening package installer session", e);
-      call.resolve(new JSObject().put("error", e.getMessage()));
-      return;
-    }
-    try (OutputStream out = session.openWrite("update", 0, apk.length)) {
-      out.write(apk);
-      session.fsync(out);
-    } catch (Exception e) {
-      Logger.error("Error writing APK data", e);
-      call.resolve(new JSObject().put("error", e.getMessage()));
-      session.close();
-      return;
-    }
-
     Intent intent = new Intent(ctx, InstallReceiver.class);
     intent.putExtra("sessionId", sessionId);
     installSessions.put(sessionId, call);
@@ -6,18 +6,36 @@ import java.io.Closeable;
 import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
 
 public class Utils {
 
   public static byte[] readNBytes(InputStream in, int n) throws IOException {
     byte[] buffer = new byte[n];
+    readFully(in, buffer, n);
+    return buffer;
+  }
+
+  /** Read exactly n bytes and encode them in base64, through a buffer of the pool instead of a new array. */
+  public static String readBase64(InputStream in, int n) throws IOException {
+    byte[] buffer = BufferPool.acquire(n);
+    try {
+      readFully(in, buffer, n);
+      return new String(Base64.getEncoder().encode(ByteBuffer.wrap(buffer, 0, n)).array(), StandardCharsets.ISO_8859_1);
+    } finally {
+      BufferPool.release(buffer);
+    }
+  }
+
+  private static void readFully(InputStream in, byte[] buffer, int n) throws IOException {
     int done = 0;
     while (done < n) {
       int nb = in.read(buffer, done, n - done);
       if (nb <= 0) throw new EOFException();
       done += nb;
     }
-    return buffer;
   }
 
   public static void silentClose(Closeable resource) {
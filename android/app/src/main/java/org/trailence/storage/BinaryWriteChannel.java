@@ -0,0 +1,85 @@
+package org.trailence.storage;
+
+import android.net.Uri;
+import android.webkit.WebView;
+
+import androidx.webkit.JavaScriptReplyProxy;
+import androidx.webkit.WebMessageCompat;
+import androidx.webkit.WebViewCompat;
+import androidx.webkit.WebViewFeature;
+
+import com.getcapacitor.Bridge;
+import com.getcapacitor.JSObject;
+import com.getcapacitor.Logger;
+
+import java.util.Collections;
+import java.util.function.IntFunction;
+
+/**
+ * Receives chunks of binary writes as raw ArrayBuffer from the WebView, to avoid base64 encoding.
+ * Each message is: 4 bytes write id (big endian) followed by the data.
+ * Each message is answered by a JSON string: {id, result: "continue" | "done"} or {id, error, code}.
+ */
+class BinaryWriteChannel implements WebViewCompat.WebMessageListener {
+
+  static final String JS_OBJECT_NAME = "trailenceLocalFiles";
+
+  interface ChunkWriter {
+    String writeChunk(int id, byte[] data, int offset, int length) throws Exception;
+  }
+
+  private final Bridge bridge;
+  private final StorageExecutor io;
+  private final IntFunction<String> keyResolver;
+  private final ChunkWriter writer;
+  private volatile boolean registered = false;
+
+  BinaryWriteChannel(Bridge bridge, StorageExecutor io, IntFunction<String> keyResolver, ChunkWriter writer) {
+    this.bridge = bridge;
+    this.io = io;
+    this.keyResolver = keyResolver;
+    this.writer = writer;
+  }
+
+  static boolean isSupported() {
+    return WebViewFeature.isFeatureSupported(WebViewFeature.WEB_MESSAGE_LISTENER) &&
+      WebViewFeature.isFeatureSupported(WebViewFeature.WEB_MESSAGE_ARRAY_BUFFER);
+  }
+
+  void register() {
+    if (!isSupported()) return;
+    bridge.executeOnMainThread(() -> {
+      try {
+        WebViewCompat.addWebMessageListener(bridge.getWebView(), JS_OBJECT_NAME, Collections.singleton(bridge.getLocalUrl()), this);
+        registered = true;
+      } catch (Exception e) {
+        Logger.error("Cannot register binary write channel", e);
+      }
+    });
+  }
+
+  boolean isRegistered() {
+    return registered;
+  }
+
+  @Override
+  public void onPostMessage(WebView view, WebMessageCompat message, Uri sourceOrigin, boolean isMainFrame, JavaScriptReplyProxy replyProxy) {
+    if (message.getType() != WebMessageCompat.TYPE_ARRAY_BUFFER) return;
+    byte[] buffer = message.getArrayBuffer();
+    if (buffer == null || buffer.length < 4) return;
+    int id = ((buffer[0] & 0xFF) << 24) | ((buffer[1] & 0xFF) << 16) | ((buffer[2] & 0xFF) << 8) | (buffer[3] & 0xFF);
+    io.execute(keyResolver.apply(id), () -> {
+      JSObject reply = new JSObject().put("id", id);
+      try {
+        reply.put("result", writer.writeChunk(id, buffer, 4, buffer.length - 4));
+      } catch (LocalFilesException e) {
+        reply.put("error", e.getMessage()).put("code", e.getErrorCode());
+      } catch (Exception e) {
+        reply.put("error", e.getMessage()).put("code", "error-" + e.getClass().getSimpleName());
+      }
+      String json = reply.toString();
+      bridge.executeOnMainThread(() -> replyProxy.postMessage(json));
+    });
+  }
+
+}
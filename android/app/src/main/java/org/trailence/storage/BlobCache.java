@@ -0,0 +1,150 @@
+package org.trailence.storage;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Contents of recently read small files, so the same map tiles or data read again and again while the
+ * map is moved are served from memory. The least recently used contents are removed above a budget of bytes.
+ * Concurrent reads of a file not in the cache share a single load.
+ * Keys are dir/filename, like TileArchives.
+ */
+class BlobCache {
+
+  /** Larger files are not cached, they would evict too many small ones. */
+  static final int MAX_ENTRY_SIZE = 512 * 1024;
+
+  /** Load the content of a file, or return null if it does not exist or is too large to be cached. */
+  interface Loader {
+    byte[] load() throws IOException;
+  }
+
+  /** A load in progress, which must not be cached if the file changed meanwhile. */
+  private static final class Loading {
+    private final CompletableFuture<byte[]> future = new CompletableFuture<>();
+    private boolean invalidated = false;
+  }
+
+  private final long maxSize;
+  private final Map<String, byte[]> entries = new LinkedHashMap<>(64, 0.75f, true);
+  private final Map<String, Loading> loadings = new HashMap<>();
+  private long size = 0;
+
+  private long hits = 0;
+  private long misses = 0;
+  private long sharedLoads = 0;
+  private long evictions = 0;
+
+  BlobCache(long maxSize) {
+    this.maxSize = maxSize;
+  }
+
+  /** Return the cached content, or null. */
+  synchronized byte[] getIfPresent(String dir, String filename) {
+    byte[] content = entries.get(dir + "/" + filename);
+    if (content != null) hits++;
+    return content;
+  }
+
+  /** Return the cached content, or load it. Return null if the loader returns null. */
+  byte[] get(String dir, String filename, Loader loader) throws IOException {
+    String key = dir + "/" + filename;
+    Loading loading;
+    boolean first = false;
+    synchronized (this) {
+      byte[] content = entries.get(key);
+      if (content != null) {
+        hits++;
+        return content;
+      }
+      loading = loadings.get(key);
+      if (loading != null) {
+        sharedLoads++;
+      } else {
+        misses++;
+        loading = new Loading();
+        loadings.put(key, loading);
+        first = true;
+      }
+    }
+    if (first) return load(key, loading, loader);
+    try {
+      return loading.future.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted", e);
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof IOException) throw (IOException) e.getCause();
+      throw new IOException(e.getCause());
+    }
+  }
+
+  private byte[] load(String key, Loading loading, Loader loader) throws IOException {
+    byte[] content;
+    try {
+      content = loader.load();
+    } catch (IOException | RuntimeException e) {
+      synchronized (this) {
+        loadings.remove(key, loading);
+      }
+      loading.future.completeExceptionally(e);
+      throw e;
+    }
+    synchronized (this) {
+      loadings.remove(key, loading);
+      if (content != null && !loading.invalidated && content.length <= MAX_ENTRY_SIZE) put(key, content);
+    }
+    loading.future.complete(content);
+    return content;
+  }
+
+  private void put(String key, byte[] content) {
+    byte[] previous = entries.put(key, content);
+    if (previous != null) size -= previous.length;
+    size += content.length;
+    for (Iterator<byte[]> it = entries.values().iterator(); size > maxSize && it.hasNext(); ) {
+      size -= it.next().length;
+      it.remove();
+      evictions++;
+    }
+  }
+
+  /** Forget a file which has been written or deleted. */
+  synchronized void changed(String dir, String filename) {
+    String key = dir + "/" + filename;
+    byte[] previous = entries.remove(key);
+    if (previous != null) size -= previous.length;
+    Loading loading = loadings.get(key);
+    if (loading != null) loading.invalidated = true;
+  }
+
+  /** Forget all files of a directory and its sub-directories. */
+  synchronized void invalidate(String dir) {
+    String prefix = dir + "/";
+    for (Iterator<Map.Entry<String, byte[]>> it = entries.entrySet().iterator(); it.hasNext(); ) {
+      Map.Entry<String, byte[]> entry = it.next();
+      if (!entry.getKey().startsWith(prefix)) continue;
+      size -= entry.getValue().length;
+      it.remove();
+    }
+    for (Map.Entry<String, Loading> entry : loadings.entrySet())
+      if (entry.getKey().startsWith(prefix)) entry.getValue().invalidated = true;
+  }
+
+  /** Release the memory, on memory pressure. */
+  synchronized void clear() {
+    entries.clear();
+    size = 0;
+    for (Loading loading : loadings.values()) loading.invalidated = true;
+  }
+
+  /** hits, misses, sharedLoads, evictions, count, size, maxSize */
+  synchronized long[] stats() {
+    return new long[] { hits, misses, sharedLoads, evictions, entries.size(), size, maxSize };
+  }
+}
@@ -0,0 +1,53 @@
+package org.trailence.storage;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/** Random access to the content of a stored file, whatever the way it is stored, using positional reads. */
+class BlobChannel implements Closeable {
+
+  /** Total size of the file. */
+  final long size;
+  private final FileChannel channel;
+  /** Position of the file's content in the channel. */
+  private final long base;
+  /** Content not yet written, in which case there is no channel. */
+  private final byte[] content;
+
+  BlobChannel(FileChannel channel, long base, long size) {
+    this.channel = channel;
+    this.base = base;
+    this.size = size;
+    this.content = null;
+  }
+
+  BlobChannel(byte[] content) {
+    this.channel = null;
+    this.base = 0;
+    this.size = content.length;
+    this.content = content;
+  }
+
+  /** Read at most length bytes from the given position, less if the end of the file is reached. */
+  byte[] read(long position, int length) throws IOException {
+    if (position >= size) return new byte[0];
+    if (content != null) return Arrays.copyOfRange(content, (int) position, (int) Math.min(position + length, size));
+    ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(length, size - position));
+    long pos = base + position;
+    while (buffer.hasRemaining()) {
+      int nb = channel.read(buffer, pos);
+      if (nb < 0) throw new EOFException();
+      pos += nb;
+    }
+    return buffer.array();
+  }
+
+  @Override
+  public void close() throws IOException {
+    if (channel != null) channel.close();
+  }
+}
@@ -0,0 +1,24 @@
+package org.trailence.storage;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+
+/** Content of a stored file opened for reading, whatever the way it is stored. */
+class BlobStream implements Closeable {
+
+  /** Total size of the file. */
+  final long size;
+  /** Content, positioned at the requested position and limited to the end of the file. */
+  final InputStream in;
+
+  BlobStream(long size, InputStream in) {
+    this.size = size;
+    this.in = in;
+  }
+
+  @Override
+  public void close() throws IOException {
+    in.close();
+  }
+}
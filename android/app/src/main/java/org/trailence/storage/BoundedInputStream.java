@@ -0,0 +1,48 @@
+package org.trailence.storage;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/** Limit the number of bytes that can be read from an input stream. */
+class BoundedInputStream extends FilterInputStream {
+  private long remaining;
+
+  BoundedInputStream(InputStream in, long length) {
+    super(in);
+    this.remaining = length;
+  }
+
+  @Override
+  public int read() throws IOException {
+    if (remaining <= 0) return -1;
+    int b = super.read();
+    if (b >= 0) remaining--;
+    return b;
+  }
+
+  @Override
+  public int read(byte[] b, int off, int len) throws IOException {
+    if (remaining <= 0) return -1;
+    int nb = super.read(b, off, (int) Math.min(len, remaining));
+    if (nb > 0) remaining -= nb;
+    return nb;
+  }
+
+  @Override
+  public long skip(long n) throws IOException {
+    long skipped = super.skip(Math.min(n, remaining));
+    remaining -= skipped;
+    return skipped;
+  }
+
+  @Override
+  public int available() throws IOException {
+    return (int) Math.min(super.available(), remaining);
+  }
+
+  @Override
+  public boolean markSupported() {
+    return false;
+  }
+}
@@ -0,0 +1,147 @@
+package org.trailence.storage;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Listing of the files of a directory by pages, with their size and last modification, so a directory
+ * with a huge number of files can be walked without building the whole list in memory.
+ * Files are read from a DirectoryStream as pages are requested, or from the names of a packed storage.
+ * Sub-directories are not listed.
+ */
+class DirectoryListing implements Closeable {
+
+  static final class FileInfo {
+    final String filename;
+    final long size;
+    final long modified;
+
+    private FileInfo(String filename, long size, long modified) {
+      this.filename = filename;
+      this.size = size;
+      this.modified = modified;
+    }
+  }
+
+  /** Criteria on the listed files. */
+  static final class Filter {
+    private final String prefix;
+    private final PathMatcher glob;
+    private final long modifiedAfter;
+    private final long modifiedBefore;
+
+    /**
+     * Null or 0 for no criterion. The glob uses the syntax of FileSystem.getPathMatcher, like *.pbf
+     * @throws java.util.regex.PatternSyntaxException if the glob is invalid
+     */
+    Filter(String prefix, String glob, long modifiedAfter, long modifiedBefore) {
+      this.prefix = prefix != null && !prefix.isEmpty() ? prefix : null;
+      this.glob = glob != null && !glob.isEmpty() ? FileSystems.getDefault().getPathMatcher("glob:" + glob) : null;
+      this.modifiedAfter = modifiedAfter;
+      this.modifiedBefore = modifiedBefore;
+    }
+
+    private boolean acceptName(String filename) {
+      if (prefix != null && !filename.startsWith(prefix)) return false;
+      return glob == null || glob.matches(Paths.get(filename));
+    }
+
+    private boolean acceptModified(long modified) {
+      if (modifiedAfter > 0 && modified <= modifiedAfter) return false;
+      return modifiedBefore <= 0 || modified < modifiedBefore;
+    }
+  }
+
+  /** Give the next file, or null at the end. */
+  private interface Source {
+    FileInfo next() throws IOException;
+  }
+
+  private final Source source;
+  private final Closeable resource;
+  private boolean ended = false;
+
+  private DirectoryListing(Source source, Closeable resource) {
+    this.source = source;
+    this.resource = resource;
+  }
+
+  /** List the regular files of a directory, which may not exist. */
+  static DirectoryListing ofDirectory(File dir, Filter filter) throws IOException {
+    if (!dir.isDirectory()) return new DirectoryListing(() -> null, null);
+    DirectoryStream<Path> stream = Files.newDirectoryStream(dir.toPath(), path -> filter.acceptName(path.getFileName().toString()));
+    Iterator<Path> it = stream.iterator();
+    return new DirectoryListing(() -> {
+      try {
+        while (it.hasNext()) {
+          Path path = it.next();
+          BasicFileAttributes attributes;
+          try {
+            attributes = Files.readAttributes(path, BasicFileAttributes.class);
+          } catch (NoSuchFileException e) {
+            // deleted meanwhile
+            continue;
+          }
+          if (!attributes.isRegularFile()) continue;
+          long modified = attributes.lastModifiedTime().toMillis();
+          if (!filter.acceptModified(modified)) continue;
+          return new FileInfo(path.getFileName().toString(), attributes.size(), modified);
+        }
+        return null;
+      } catch (DirectoryIteratorException e) {
+        throw e.getCause();
+      }
+    }, stream);
+  }
+
+  /** List the files of a packed storage. Their names are already in memory, so only the current names are copied. */
+  static DirectoryListing ofPack(PackStore pack, Filter filter) {
+    Iterator<String> it = pack.names().iterator();
+    return new DirectoryListing(() -> {
+      while (it.hasNext()) {
+        String filename = it.next();
+        if (!filter.acceptName(filename)) continue;
+        long size = pack.size(filename);
+        // removed meanwhile
+        if (size < 0) continue;
+        long modified = pack.modified(filename);
+        if (!filter.acceptModified(modified)) continue;
+        return new FileInfo(filename, size, modified);
+      }
+      return null;
+    }, null);
+  }
+
+  /** Return at most max files. When isEnded returns false, the next page may still be empty. */
+  List<FileInfo> next(int max) throws IOException {
+    List<FileInfo> page = new ArrayList<>(Math.min(max, 1024));
+    while (!ended && page.size() < max) {
+      FileInfo file = source.next();
+      if (file == null) ended = true;
+      else page.add(file);
+    }
+    return page;
+  }
+
+  boolean isEnded() {
+    return ended;
+  }
+
+  @Override
+  public void close() throws IOException {
+    if (resource != null) resource.close();
+  }
+}
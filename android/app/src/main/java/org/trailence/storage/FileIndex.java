@@ -0,0 +1,178 @@
+package org.trailence.storage;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * In-memory index of the files of directories, to answer existence and size queries without a system call per file.
+ * The index of a directory is built on first access, and updated by the writes and deletes done by the plugin.
+ * If the directory is modified by something else, its last modified time changes and the index is built again.
+ * The number of files and their total size are maintained along, to give the usage of a directory at no cost.
+ */
+class FileIndex {
+
+  private static final int MAX_DIRECTORIES = 32;
+
+  static final class Entry {
+    final long size;
+    final long lastModified;
+
+    private Entry(long size, long lastModified) {
+      this.size = size;
+      this.lastModified = lastModified;
+    }
+  }
+
+  private static final class DirIndex {
+    private final Map<String, Entry> files = new HashMap<>();
+    private long totalSize = 0;
+    /** Last modified time of the directory when the index was up to date, null if the directory did not exist. */
+    private FileTime dirModified;
+    private boolean built = false;
+
+    private void put(String filename, Entry entry) {
+      Entry previous = files.put(filename, entry);
+      if (previous != null) totalSize -= previous.size;
+      totalSize += entry.size;
+    }
+
+    private void remove(String filename) {
+      Entry previous = files.remove(filename);
+      if (previous != null) totalSize -= previous.size;
+    }
+
+    private void clear() {
+      files.clear();
+      totalSize = 0;
+    }
+  }
+
+  private final File root;
+  private final Map<String, DirIndex> dirs = new LinkedHashMap<>(16, 0.75f, true) {
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<String, DirIndex> eldest) {
+      return size() > MAX_DIRECTORIES;
+    }
+  };
+
+  FileIndex(File root) {
+    this.root = root;
+  }
+
+  /** Return the size and last modified time of the given file, or null if it does not exist. */
+  Entry get(String dir, String filename) throws IOException {
+    DirIndex index = getIndex(dir);
+    synchronized (index) {
+      ensureUpToDate(dir, index);
+      return index.files.get(filename);
+    }
+  }
+
+  /** Same as get, for several files of the same directory, checking the directory only once. */
+  Entry[] getAll(String dir, String[] filenames) throws IOException {
+    DirIndex index = getIndex(dir);
+    Entry[] result = new Entry[filenames.length];
+    synchronized (index) {
+      ensureUpToDate(dir, index);
+      for (int i = 0; i < filenames.length; ++i) result[i] = index.files.get(filenames[i]);
+    }
+    return result;
+  }
+
+  /** Return the number of files and their total size in the given directory, without its sub-directories. */
+  long[] totals(String dir) throws IOException {
+    DirIndex index = getIndex(dir);
+    synchronized (index) {
+      ensureUpToDate(dir, index);
+      return new long[] { index.files.size(), index.totalSize };
+    }
+  }
+
+  /** Names of the files of the given directory, oldest modified first. */
+  List<String> namesByAge(String dir) throws IOException {
+    DirIndex index = getIndex(dir);
+    List<Map.Entry<String, Entry>> list;
+    synchronized (index) {
+      ensureUpToDate(dir, index);
+      list = new ArrayList<>(index.files.entrySet());
+    }
+    list.sort((e1, e2) -> Long.compare(e1.getValue().lastModified, e2.getValue().lastModified));
+    List<String> names = new ArrayList<>(list.size());
+    for (Map.Entry<String, Entry> e : list) names.add(e.getKey());
+    return names;
+  }
+
+  /** Called after the given file has been written. */
+  void written(String dir, String filename, File file) throws IOException {
+    DirIndex index = getIndex(dir);
+    synchronized (index) {
+      if (!index.built) return;
+      if (file.isFile()) index.put(filename, new Entry(file.length(), file.lastModified()));
+      else index.remove(filename);
+      index.dirModified = dirModified(dir);
+    }
+  }
+
+  /** Called after files have been deleted. */
+  void deleted(String dir, Iterable<String> filenames) throws IOException {
+    DirIndex index = getIndex(dir);
+    synchronized (index) {
+      if (!index.built) return;
+      for (String filename : filenames) index.remove(filename);
+      index.dirModified = dirModified(dir);
+    }
+  }
+
+  /** Forget the index of the given directory and its sub-directories, to be built again on next access. */
+  void invalidate(String dir) {
+    String prefix = dir + "/";
+    synchronized (dirs) {
+      for (Iterator<String> it = dirs.keySet().iterator(); it.hasNext(); ) {
+        String key = it.next();
+        if (key.equals(dir) || key.startsWith(prefix)) it.remove();
+      }
+    }
+  }
+
+  private DirIndex getIndex(String dir) {
+    synchronized (dirs) {
+      DirIndex index = dirs.get(dir);
+      if (index == null) {
+        index = new DirIndex();
+        dirs.put(dir, index);
+      }
+      return index;
+    }
+  }
+
+  private void ensureUpToDate(String dir, DirIndex index) throws IOException {
+    FileTime modified = dirModified(dir);
+    if (index.built && (modified == null ? index.dirModified == null : modified.equals(index.dirModified))) return;
+    index.clear();
+    index.dirModified = modified;
+    index.built = true;
+    if (modified == null) return;
+    File[] files = new File(root, dir).listFiles();
+    if (files == null) return;
+    for (File file : files) {
+      if (file.isFile()) index.put(file.getName(), new Entry(file.length(), file.lastModified()));
+    }
+  }
+
+  private FileTime dirModified(String dir) throws IOException {
+    try {
+      return Files.getLastModifiedTime(new File(root, dir).toPath());
+    } catch (NoSuchFileException e) {
+      return null;
+    }
+  }
+}
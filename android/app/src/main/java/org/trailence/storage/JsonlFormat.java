@@ -0,0 +1,60 @@
+package org.trailence.storage;
+
+import org.trailence.Utils;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * JSONL files are either plain UTF-8 text, or gzip compressed. The format is detected when reading,
+ * so files written before compression was used can still be read.
+ */
+class JsonlFormat {
+
+  private static final int BUFFER_SIZE = 64 * 1024;
+  /** Used to compare the size of a compressed file with the size of plain text. */
+  static final int ESTIMATED_COMPRESSION_RATIO = 5;
+
+  private JsonlFormat() {
+    // static only
+  }
+
+  /** Open a JSONL file, decompressing it if needed. */
+  static InputStream openInput(File file) throws IOException {
+    InputStream in = new BufferedInputStream(new FileInputStream(file), BUFFER_SIZE);
+    try {
+      in.mark(2);
+      int b1 = in.read();
+      int b2 = in.read();
+      in.reset();
+      if (b1 == (GZIPInputStream.GZIP_MAGIC & 0xFF) && b2 == (GZIPInputStream.GZIP_MAGIC >> 8))
+        return new GZIPInputStream(in, BUFFER_SIZE);
+      return in;
+    } catch (IOException e) {
+      Utils.silentClose(in);
+      throw e;
+    }
+  }
+
+  static boolean isCompressed(File file) throws IOException {
+    try (FileInputStream in = new FileInputStream(file)) {
+      return in.read() == (GZIPInputStream.GZIP_MAGIC & 0xFF) && in.read() == (GZIPInputStream.GZIP_MAGIC >> 8);
+    }
+  }
+
+  /** Compress the given output, favoring speed over ratio as JSON is very compressible anyway. */
+  static GZIPOutputStream compress(OutputStream out) throws IOException {
+    return new GZIPOutputStream(out, BUFFER_SIZE) {
+      {
+        def.setLevel(Deflater.BEST_SPEED);
+      }
+    };
+  }
+}
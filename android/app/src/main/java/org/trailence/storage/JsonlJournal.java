@@ -0,0 +1,341 @@
+package org.trailence.storage;
+
+import org.trailence.Utils;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Journaled JSONL files, so a backup only needs to write the records which changed.
+ *  - the JSONL file is a keyed snapshot: a header line "#trailence-jsonl:keyed seq", then one "key\tjson" line per record
+ *  - the journal file next to it contains one "seq\tkey\tjson" line per record put, or "seq\tkey" per record deleted
+ * Journal records with a sequence number lower or equal to the one of the snapshot are already in the snapshot.
+ * When reading, the journal is replayed over the snapshot. compact() merges the journal into a new snapshot.
+ * Plain JSONL files (without header) are still read as before, but cannot be journaled.
+ */
+class JsonlJournal {
+
+  static final String HEADER = "#trailence-jsonl:keyed ";
+  static final String SUFFIX = ".journal";
+  private static final long MIN_JOURNAL_SIZE_TO_COMPACT = 256L * 1024;
+
+  /** A record to append: the line is null for a deleted record. */
+  static class Record {
+    final String key;
+    final String line;
+    Record(String key, String line) {
+      this.key = key;
+      this.line = line;
+    }
+  }
+
+  /** Source of JSON lines read from a JSONL file. */
+  interface LineSource extends Closeable {
+    /** Return the next line, or null at the end. The line may be a view on a buffer, only valid until the next call. */
+    CharSequence readLine() throws IOException;
+  }
+
+  /** Last sequence number used for each journaled file, absent if unknown or not journaled. */
+  private final Map<String, Long> lastSeqs = new ConcurrentHashMap<>();
+
+  static File journalFile(File snapshot) {
+    return new File(snapshot.getParentFile(), snapshot.getName() + SUFFIX);
+  }
+
+  /** Return the last sequence number, or -1 if the file is not a keyed snapshot. */
+  long lastSeq(File snapshot) throws IOException {
+    Long cached = lastSeqs.get(snapshot.getAbsolutePath());
+    if (cached != null) return cached;
+    long seq = readSnapshotSeq(snapshot);
+    if (seq < 0) return -1;
+    File journal = journalFile(snapshot);
+    if (journal.exists()) {
+      repairTail(journal);
+      try (BufferedReader br = openReader(journal)) {
+        String line;
+        while ((line = br.readLine()) != null) {
+          long s = parseSeq(line);
+          if (s > seq) seq = s;
+        }
+      }
+    }
+    lastSeqs.put(snapshot.getAbsolutePath(), seq);
+    return seq;
+  }
+
+  /** Return the header to write at the beginning of a new keyed snapshot, containing everything done until now. */
+  String newSnapshotHeader(File snapshot) throws IOException {
+    return HEADER + Math.max(0, lastSeq(snapshot));
+  }
+
+  /** Called once a new snapshot replaced the previous one: the journal is now obsolete. */
+  void snapshotWritten(File snapshot, String header) throws IOException {
+    Files.deleteIfExists(journalFile(snapshot).toPath());
+    if (header != null) lastSeqs.put(snapshot.getAbsolutePath(), Long.parseLong(header.substring(HEADER.length())));
+    else lastSeqs.remove(snapshot.getAbsolutePath());
+  }
+
+  /** Called when a file is deleted. */
+  void deleted(File snapshot) throws IOException {
+    Files.deleteIfExists(journalFile(snapshot).toPath());
+    lastSeqs.remove(snapshot.getAbsolutePath());
+  }
+
+  /** Append records to the journal, and return true if it became large enough to be compacted. */
+  boolean append(File snapshot, List<Record> records) throws IOException, LocalFilesException {
+    long seq = lastSeq(snapshot);
+    if (seq < 0)
+      throw new LocalFilesException(LocalFilesException.Code.NOT_JOURNALED, "File is not a keyed snapshot");
+    File journal = journalFile(snapshot);
+    try (FileOutputStream out = new FileOutputStream(journal, true)) {
+      BufferedWriter bw = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8));
+      for (Record record : records) {
+        bw.append(Long.toString(++seq)).append('\t').append(record.key);
+        if (record.line != null) bw.append('\t').append(record.line);
+        bw.append('\n');
+      }
+      bw.flush();
+      out.getFD().sync();
+    } catch (IOException e) {
+      // part of the records may have been written: sequence must be read again
+      lastSeqs.remove(snapshot.getAbsolutePath());
+      throw e;
+    }
+    lastSeqs.put(snapshot.getAbsolutePath(), seq);
+    long snapshotSize = snapshot.length();
+    if (JsonlFormat.isCompressed(snapshot)) snapshotSize *= JsonlFormat.ESTIMATED_COMPRESSION_RATIO;
+    return journal.length() > Math.max(MIN_JOURNAL_SIZE_TO_COMPACT, snapshotSize / 4);
+  }
+
+  /**
+   * Merge the journal into a new snapshot, compressed if the current one is, written into the given temporary file.
+   * The caller must prevent any other write of the file until this returns.
+   */
+  void compact(File snapshot, File tempFile) throws IOException {
+    File journal = journalFile(snapshot);
+    if (!journal.exists()) return;
+    long snapshotSeq = readSnapshotSeq(snapshot);
+    if (snapshotSeq < 0) return;
+    Map<String, String> changes = new LinkedHashMap<>();
+    long seq = readJournal(journal, snapshotSeq, changes);
+    boolean compressed = JsonlFormat.isCompressed(snapshot);
+    try (
+      LineReader lr = openLineReader(snapshot);
+      FileOutputStream out = new FileOutputStream(tempFile)
+    ) {
+      GZIPOutputStream gzip = compressed ? JsonlFormat.compress(out) : null;
+      BufferedWriter bw = new BufferedWriter(new OutputStreamWriter(gzip != null ? gzip : out, StandardCharsets.UTF_8));
+      lr.next(); // header
+      bw.append(HEADER).append(Long.toString(seq)).append('\n');
+      LineReader.Line line;
+      while ((line = lr.next()) != null) {
+        int i = line.indexOf('\t', 0);
+        if (i <= 0 || changes.containsKey(line.subSequence(0, i))) continue;
+        line.writeTo(bw);
+        bw.append('\n');
+      }
+      for (Map.Entry<String, String> change : changes.entrySet()) {
+        if (change.getValue() == null) continue;
+        bw.append(change.getKey()).append('\t').append(change.getValue()).append('\n');
+      }
+      bw.flush();
+      if (gzip != null) gzip.finish();
+      out.getFD().sync();
+    } catch (IOException e) {
+      tempFile.delete();
+      throw e;
+    }
+    TempFiles.commit(tempFile, snapshot);
+    Files.deleteIfExists(journal.toPath());
+    lastSeqs.put(snapshot.getAbsolutePath(), seq);
+  }
+
+  /** Open a JSONL file for reading its JSON lines, replaying the journal if any. */
+  LineSource open(File file) throws IOException {
+    LineReader lr = openLineReader(file);
+    try {
+      LineReader.Line first = lr.next();
+      if (first == null || !startsWith(first, HEADER)) return new PlainLines(lr, first);
+      long snapshotSeq = Long.parseLong(first.subSequence(HEADER.length(), first.length()).trim());
+      Map<String, String> changes = new LinkedHashMap<>();
+      File journal = journalFile(file);
+      if (journal.exists()) readJournal(journal, snapshotSeq, changes);
+      return new ReplayedLines(lr, changes);
+    } catch (IOException | RuntimeException e) {
+      Utils.silentClose(lr);
+      throw e;
+    }
+  }
+
+  /** Read the journal records after the given sequence number, and return the last sequence number. */
+  private static long readJournal(File journal, long afterSeq, Map<String, String> changes) throws IOException {
+    long seq = afterSeq;
+    repairTail(journal);
+    try (BufferedReader br = openReader(journal)) {
+      String line;
+      while ((line = br.readLine()) != null) {
+        int i = line.indexOf('\t');
+        if (i <= 0) continue; // incomplete line
+        long s = parseSeq(line);
+        if (s <= afterSeq) continue;
+        seq = Math.max(seq, s);
+        int j = line.indexOf('\t', i + 1);
+        String key = j < 0 ? line.substring(i + 1) : line.substring(i + 1, j);
+        // keep the latest change last
+        changes.remove(key);
+        changes.put(key, j < 0 ? null : line.substring(j + 1));
+      }
+    }
+    return seq;
+  }
+
+  private static long readSnapshotSeq(File snapshot) throws IOException {
+    if (!snapshot.exists()) return -1;
+    // only read the beginning, as the first line of a plain file may be very long
+    byte[] start = new byte[HEADER.length() + 21];
+    int nb = 0;
+    try (InputStream in = JsonlFormat.openInput(snapshot)) {
+      while (nb < start.length) {
+        int r = in.read(start, nb, start.length - nb);
+        if (r <= 0) break;
+        nb += r;
+      }
+    }
+    String s = new String(start, 0, nb, StandardCharsets.UTF_8);
+    if (!s.startsWith(HEADER)) return -1;
+    int end = s.indexOf('\n');
+    if (end < 0) return -1;
+    try {
+      return Long.parseLong(s.substring(HEADER.length(), end).trim());
+    } catch (NumberFormatException e) {
+      return -1;
+    }
+  }
+
+  /** Remove an incomplete last line, written when the application stopped in the middle of an append. */
+  private static void repairTail(File journal) throws IOException {
+    try (RandomAccessFile f = new RandomAccessFile(journal, "rw")) {
+      long pos = f.length();
+      if (pos == 0) return;
+      f.seek(pos - 1);
+      if (f.read() == '\n') return;
+      byte[] buffer = new byte[8192];
+      while (pos > 0) {
+        int len = (int) Math.min(buffer.length, pos);
+        f.seek(pos - len);
+        f.readFully(buffer, 0, len);
+        int i = len - 1;
+        while (i >= 0 && buffer[i] != '\n') i--;
+        if (i >= 0) {
+          pos = pos - len + i + 1;
+          break;
+        }
+        pos -= len;
+      }
+      f.setLength(pos);
+    }
+  }
+
+  private static long parseSeq(String line) {
+    int i = line.indexOf('\t');
+    if (i <= 0) return -1;
+    try {
+      return Long.parseLong(line.substring(0, i));
+    } catch (NumberFormatException e) {
+      return -1;
+    }
+  }
+
+  private static boolean startsWith(CharSequence s, String prefix) {
+    if (s.length() < prefix.length()) return false;
+    for (int i = 0; i < prefix.length(); ++i)
+      if (s.charAt(i) != prefix.charAt(i)) return false;
+    return true;
+  }
+
+  private static LineReader openLineReader(File file) throws IOException {
+    return new LineReader(new InputStreamReader(JsonlFormat.openInput(file), StandardCharsets.UTF_8));
+  }
+
+  private static BufferedReader openReader(File file) throws IOException {
+    return new BufferedReader(new InputStreamReader(JsonlFormat.openInput(file), StandardCharsets.UTF_8));
+  }
+
+  private static class PlainLines implements LineSource {
+    private final LineReader lr;
+    private LineReader.Line first;
+
+    private PlainLines(LineReader lr, LineReader.Line first) {
+      this.lr = lr;
+      this.first = first;
+    }
+
+    @Override
+    public CharSequence readLine() throws IOException {
+      if (first != null) {
+        // still valid as the reader did not move since
+        LineReader.Line line = first;
+        first = null;
+        return line;
+      }
+      return lr.next();
+    }
+
+    @Override
+    public void close() throws IOException {
+      lr.close();
+    }
+  }
+
+  /** Lines of the snapshot not changed in the journal, then the lines put in the journal. */
+  private static class ReplayedLines implements LineSource {
+    private final LineReader lr;
+    private final Map<String, String> changes;
+    private Iterator<String> journalLines = null;
+
+    private ReplayedLines(LineReader lr, Map<String, String> changes) {
+      this.lr = lr;
+      this.changes = changes;
+    }
+
+    @Override
+    public CharSequence readLine() throws IOException {
+      if (journalLines == null) {
+        LineReader.Line line;
+        while ((line = lr.next()) != null) {
+          int i = line.indexOf('\t', 0);
+          if (i <= 0) continue;
+          if (!changes.isEmpty() && changes.containsKey(line.subSequence(0, i))) continue;
+          return line.skip(i + 1);
+        }
+        journalLines = changes.values().iterator();
+      }
+      while (journalLines.hasNext()) {
+        String line = journalLines.next();
+        if (line != null) return line;
+      }
+      return null;
+    }
+
+    @Override
+    public void close() throws IOException {
+      lr.close();
+    }
+  }
+}
@@ -0,0 +1,119 @@
+package org.trailence.storage;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.Arrays;
+
+/**
+ * Reads lines of text into a reused buffer, so a line does not need to be copied to be used,
+ * or only the part which is really needed. The buffer grows when a line does not fit in it.
+ * Lines are terminated by \n, a preceding \r being ignored.
+ */
+class LineReader implements Closeable {
+
+  private static final int INITIAL_BUFFER_SIZE = 64 * 1024;
+
+  /** A line in the buffer, valid until the next call to next(). */
+  static final class Line implements CharSequence {
+    private char[] chars;
+    private int start;
+    private int end;
+
+    private void set(char[] chars, int start, int end) {
+      this.chars = chars;
+      this.start = start;
+      this.end = end;
+    }
+
+    @Override
+    public int length() {
+      return end - start;
+    }
+
+    @Override
+    public char charAt(int index) {
+      return chars[start + index];
+    }
+
+    int indexOf(char c, int from) {
+      for (int i = start + from; i < end; ++i)
+        if (chars[i] == c) return i - start;
+      return -1;
+    }
+
+    /** Skip the first characters of this line, without copy. */
+    Line skip(int nb) {
+      start += nb;
+      return this;
+    }
+
+    /** Copy the given part of the line into a new String. */
+    @Override
+    public String subSequence(int from, int to) {
+      return new String(chars, start + from, to - from);
+    }
+
+    void writeTo(Writer writer) throws IOException {
+      writer.write(chars, start, end - start);
+    }
+
+    @Override
+    public String toString() {
+      return new String(chars, start, end - start);
+    }
+  }
+
+  private final Reader in;
+  private char[] buffer = new char[INITIAL_BUFFER_SIZE];
+  private int pos = 0;
+  private int limit = 0;
+  private boolean eof = false;
+  private final Line line = new Line();
+
+  LineReader(Reader in) {
+    this.in = in;
+  }
+
+  /** Return the next line, or null at the end. The returned line is only valid until the next call. */
+  Line next() throws IOException {
+    int scanned = 0; // relative to pos, as the buffer may be compacted
+    do {
+      int scan = pos + scanned;
+      while (scan < limit && buffer[scan] != '\n') scan++;
+      if (scan < limit) {
+        int end = scan > pos && buffer[scan - 1] == '\r' ? scan - 1 : scan;
+        line.set(buffer, pos, end);
+        pos = scan + 1;
+        return line;
+      }
+      if (eof) {
+        if (pos == limit) return null;
+        line.set(buffer, pos, limit);
+        pos = limit;
+        return line;
+      }
+      scanned = scan - pos;
+      fill();
+    } while (true);
+  }
+
+  private void fill() throws IOException {
+    if (pos > 0) {
+      System.arraycopy(buffer, pos, buffer, 0, limit - pos);
+      limit -= pos;
+      pos = 0;
+    } else if (limit == buffer.length) {
+      buffer = Arrays.copyOf(buffer, buffer.length * 2);
+    }
+    int nb = in.read(buffer, limit, buffer.length - limit);
+    if (nb < 0) eof = true;
+    else limit += nb;
+  }
+
+  @Override
+  public void close() throws IOException {
+    in.close();
+  }
+}
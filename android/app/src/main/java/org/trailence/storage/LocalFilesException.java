@@ -7,7 +7,9 @@ public class LocalFilesException extends Exception {
   public enum Code {
     INVALID_INPUT("invalid-input"),
     INVALID_ID("invalid-id"),
-    NOT_FOUND("not-found");
+    NOT_FOUND("not-found"),
+    NOT_JOURNALED("not-journaled"),
+    BUSY("busy");
 
     Code(String code) {
       this.code = code;
@@ -1,6 +1,20 @@
 package org.trailence.storage;
 
+import android.app.ActivityManager;
+import android.app.Notification;
+import android.app.NotificationChannel;
+import android.app.NotificationManager;
+import android.app.PendingIntent;
+import android.content.ComponentCallbacks2;
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+import android.content.ServiceConnection;
+import android.content.res.Configuration;
+import android.os.IBinder;
+
 import com.getcapacitor.JSObject;
+import com.getcapacitor.Logger;
 import com.getcapacitor.Plugin;
 import com.getcapacitor.PluginCall;
 import com.getcapacitor.PluginMethod;
@@ -9,22 +23,38 @@ import com.getcapacitor.annotation.CapacitorPlugin;
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
+import org.trailence.BufferPool;
 import org.trailence.Utils;
 
-import java.io.BufferedReader;
 import java.io.BufferedWriter;
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.OutputStreamWriter;
+import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
 import java.util.Base64;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
 
 @CapacitorPlugin(
   name = "LocalFiles"
@@ -35,41 +65,268 @@ public class LocalFilesPlugin extends Plugin {
   private File root;
   private final AtomicInteger readId = new AtomicInteger(0);
   private final AtomicInteger writeId = new AtomicInteger(0);
+  private final StorageExecutor io = new StorageExecutor("LocalFiles");
+  private final JsonlJournal journal = new JsonlJournal();
+  private BinaryWriteChannel binaryChannel;
+  private PackStores packs;
+  private FileIndex fileIndex;
+  private Trash trash;
+  private TempFiles tempFiles;
+  private QuotaEvictor evictor;
+  private TileArchives archives;
+  private TileDownloads downloads;
+  private WriteBehindBuffer writeBehind;
+  private BlobCache readCache;
+  private TileDownloadService.LocalBinder downloadService;
+  private volatile String downloadTitle;
+
+  /**
+   * An open read or write, continued by chunks. The key is used to keep operations ordered.
+   * If the JS side does not continue it (page reloaded, sequence abandoned), it expires after HANDLE_IDLE_TIMEOUT.
+   */
+  private abstract static class Handle {
+    protected final String key;
+    protected final long created = System.currentTimeMillis();
+    protected volatile long lastAccess = created;
+    /** Priority of the operations continuing it, given when it is started. */
+    protected StorageExecutor.Priority priority = StorageExecutor.Priority.NORMAL;
+    protected Handle(String key) {
+      this.key = key;
+    }
+
+    /** Remaining bytes to transfer, 0 if not known. */
+    protected abstract long pendingBytes();
+
+    /** Temporary file holding the data written so far, if any. */
+    protected File tempFile() {
+      return null;
+    }
 
-  private static class BinaryRead {
-    private final FileInputStream in;
+    /** Release resources of a handle which will not be continued. */
+    protected abstract void release();
+  }
+
+  private static class BinaryRead extends Handle {
+    private final InputStream in;
     private final long size;
     private long pos;
-    private BinaryRead(FileInputStream in, long size, long pos) {
+    private BinaryRead(String key, InputStream in, long size, long pos) {
+      super(key);
       this.in = in;
       this.size = size;
       this.pos = pos;
     }
+
+    @Override
+    protected long pendingBytes() {
+      return size - pos;
+    }
+
+    @Override
+    protected void release() {
+      Utils.silentClose(in);
+    }
+
+    /** Read the next chunk as base64 data in the response. Return true if the end of the file is reached. */
+    private boolean read(JSObject response) throws IOException {
+      int chunkSize = (int) Math.min(size - pos, MAX_DECODED_CHUNK_SIZE);
+      response.put("data", Utils.readBase64(in, chunkSize));
+      pos += chunkSize;
+      return pos == size;
+    }
   }
-  private static class BinaryWrite {
-    private final File targetFile;
+  private static class BinaryWrite extends Handle {
+    private final String dir;
+    private final String filename;
     private final File tempFile;
     private final FileOutputStream out;
     private final long size;
     private long done = 0;
-    private BinaryWrite(File targetFile, File tempFile, FileOutputStream out, long size) {
-      this.targetFile = targetFile;
+    private BinaryWrite(String key, String dir, String filename, File tempFile, FileOutputStream out, long size) {
+      super(key);
+      this.dir = dir;
+      this.filename = filename;
       this.tempFile = tempFile;
       this.out = out;
       this.size = size;
     }
+
+    @Override
+    protected long pendingBytes() {
+      return size - done;
+    }
+
+    @Override
+    protected File tempFile() {
+      return tempFile;
+    }
+
+    @Override
+    protected void release() {
+      Utils.silentClose(out);
+      tempFile.delete();
+    }
   }
 
-  private static class JsonlWrite {
+  private static class JsonlWrite extends Handle {
+    private final String dir;
+    private final String filename;
     private final File targetFile;
     private final File tempFile;
     private final FileOutputStream out;
     private final BufferedWriter bw;
-    private JsonlWrite(File targetFile, File tempFile, FileOutputStream out, BufferedWriter bw) {
+    private final String header;
+    private JsonlWrite(String key, String dir, String filename, File targetFile, File tempFile, FileOutputStream out, BufferedWriter bw, String header) {
+      super(key);
+      this.dir = dir;
+      this.filename = filename;
       this.targetFile = targetFile;
       this.tempFile = tempFile;
       this.out = out;
       this.bw = bw;
+      this.header = header;
+    }
+
+    @Override
+    protected long pendingBytes() {
+      return 0;
+    }
+
+    @Override
+    protected File tempFile() {
+      return tempFile;
+    }
+
+    @Override
+    protected void release() {
+      Utils.silentClose(out);
+      tempFile.delete();
+    }
+  }
+
+  private static class FileListing extends Handle {
+    private final DirectoryListing listing;
+    private final int pageSize;
+    private FileListing(String key, DirectoryListing listing, int pageSize) {
+      super(key);
+      this.listing = listing;
+      this.pageSize = pageSize;
+    }
+
+    @Override
+    protected long pendingBytes() {
+      return 0;
+    }
+
+    @Override
+    protected void release() {
+      Utils.silentClose(listing);
+    }
+  }
+
+  /** Read the next chunk in the response. Return true if it is the last one. */
+  private interface ChunkReader {
+    boolean read(JSObject response) throws Exception;
+  }
+
+  /**
+   * A read whose chunks are pushed on the callback of the call, instead of being requested one by one.
+   * At most credits chunks are sent in advance: each chunk consumed by the JS side gives one back with ackReadStream.
+   * While waiting for credits, the next chunk is already read so it can be sent as soon as a credit comes back.
+   * Sending is always done with the handle's key, so chunks are read and sent in order.
+   */
+  private class ReadStream extends Handle {
+    private final int id;
+    private final PluginCall call;
+    private final Handle read;
+    private final ChunkReader reader;
+    private int credits;
+    private boolean sending = false;
+    private boolean closed = false;
+    private JSObject next = null;
+    private boolean nextIsLast = false;
+
+    private ReadStream(int id, PluginCall call, Handle read, ChunkReader reader, int credits) {
+      super(read.key);
+      this.id = id;
+      this.call = call;
+      this.read = read;
+      this.reader = reader;
+      this.credits = credits;
+      this.priority = read.priority;
+    }
+
+    @Override
+    protected long pendingBytes() {
+      return read.pendingBytes();
+    }
+
+    @Override
+    protected void release() {
+      synchronized (this) {
+        if (closed) return;
+        closed = true;
+      }
+      read.release();
+      // cancelled or expired: the JS side must not wait for more chunks
+      call.reject("Read stream closed", LocalFilesException.Code.INVALID_ID.getCode());
+      call.release(bridge);
+    }
+
+    private void start() {
+      sending = true;
+      io.execute(key, priority, this::send);
+    }
+
+    private void ack(int chunks) {
+      lastAccess = System.currentTimeMillis();
+      synchronized (this) {
+        credits += chunks;
+        if (sending || closed) return;
+        sending = true;
+      }
+      io.execute(key, priority, this::send);
+    }
+
+    private void send() {
+      try {
+        while (true) {
+          if (next == null) {
+            next = new JSObject();
+            nextIsLast = reader.read(next);
+          }
+          synchronized (this) {
+            if (closed) return;
+            if (credits == 0) {
+              sending = false;
+              return;
+            }
+            credits--;
+            if (nextIsLast) closed = true;
+          }
+          JSObject chunk = next.put("id", id).put("end", nextIsLast);
+          next = null;
+          lastAccess = System.currentTimeMillis();
+          if (nextIsLast) {
+            readStreams.remove(id, this);
+            read.release();
+            call.resolve(chunk);
+            call.release(bridge);
+            return;
+          }
+          call.resolve(chunk);
+        }
+      } catch (Exception e) {
+        synchronized (this) {
+          if (closed) return;
+          closed = true;
+        }
+        readStreams.remove(id, this);
+        read.release();
+        if (e instanceof LocalFilesException) ((LocalFilesException) e).reject(call);
+        else Utils.reject(call, e);
+        call.release(bridge);
+      }
     }
   }
 
@@ -77,10 +334,116 @@ public class LocalFilesPlugin extends Plugin {
   private final Map<Integer, JsonlRead> jsonlReads = new ConcurrentHashMap<>();
   private final Map<Integer, BinaryWrite> binaryWrites = new ConcurrentHashMap<>();
   private final Map<Integer, JsonlWrite> jsonlWrites = new ConcurrentHashMap<>();
+  private final Map<Integer, FileListing> fileListings = new ConcurrentHashMap<>();
+  private final Map<Integer, ReadStream> readStreams = new ConcurrentHashMap<>();
+
+  private static final int FILE_LOCK_STRIPES = 64;
+  private final StripedLocks fileLocks = new StripedLocks(FILE_LOCK_STRIPES);
+  /**
+   * Id of the most recent chunked write started on each file (dir/filename), while it is in progress.
+   * A chunked write is committed only if no other write of the file started after it, so the last write started wins.
+   * Other writes and deletions are immediate, and remove the entry to supersede the chunked writes in progress.
+   */
+  private final Map<String, Integer> latestWrites = new ConcurrentHashMap<>();
+
+  /** Maximum time to wait for the storage operations when the plugin is destroyed, on the main thread. */
+  private static final long SHUTDOWN_TIMEOUT = 3000L;
+  private ComponentCallbacks2 memoryCallbacks;
+
+  private static final long HANDLE_IDLE_TIMEOUT = 2 * 60 * 1000L;
+  private static final long HANDLE_CHECK_INTERVAL = 30 * 1000L;
+  /** Background tasks: expiration of idle handles, and eviction checks. */
+  private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+    Thread t = new Thread(r, "LocalFiles-scheduler");
+    t.setDaemon(true);
+    return t;
+  });
+  private final AtomicLong expiredHandles = new AtomicLong(0);
+  private static final long DOWNLOAD_NOTIFICATION_INTERVAL = 1000L;
+  private static final long MIN_READ_CACHE_SIZE = 4L * 1024 * 1024;
+  private static final long MAX_READ_CACHE_SIZE = 32L * 1024 * 1024;
 
   @Override
   public void load() {
     root = this.getContext().getFilesDir();
+    packs = new PackStores(root);
+    fileIndex = new FileIndex(root);
+    trash = new Trash(root);
+    tempFiles = new TempFiles(root);
+    // remove files of writes interrupted by the end of the application
+    tempFiles.purge();
+    evictor = new QuotaEvictor(root, io, scheduler, new EvictorStorage());
+    archives = new TileArchives(root);
+    downloads = new TileDownloads(root, this::storeDownloadedTiles, this::downloadsChanged);
+    writeBehind = new WriteBehindBuffer(io, scheduler, this::storeBlobs);
+    readCache = new BlobCache(readCacheSize());
+    // resume deletions interrupted by the end of the application
+    trash.resume();
+    try {
+      bridge.setWebViewClient(new LocalFilesWebViewClient(bridge, root, this::openBlob, this::getArchiveTile));
+    } catch (Exception e) {
+      Logger.error("Cannot serve local files to the WebView", e);
+    }
+    binaryChannel = new BinaryWriteChannel(bridge, io, id -> handleKey(binaryWrites, id), this::writeBinaryChunk);
+    binaryChannel.register();
+    scheduler.scheduleWithFixedDelay(this::expireIdleHandles, HANDLE_CHECK_INTERVAL, HANDLE_CHECK_INTERVAL, TimeUnit.MILLISECONDS);
+    scheduler.scheduleWithFixedDelay(this::updateDownloadNotification, DOWNLOAD_NOTIFICATION_INTERVAL, DOWNLOAD_NOTIFICATION_INTERVAL, TimeUnit.MILLISECONDS);
+    startDownloadService();
+    memoryCallbacks = new ComponentCallbacks2() {
+      @Override
+      public void onTrimMemory(int level) {
+        writeBehind.flushAll();
+        if (level >= TRIM_MEMORY_RUNNING_LOW) {
+          readCache.clear();
+          BufferPool.clear();
+        }
+      }
+
+      @Override
+      public void onLowMemory() {
+        writeBehind.flushAll();
+        readCache.clear();
+        BufferPool.clear();
+      }
+
+      @Override
+      public void onConfigurationChanged(Configuration configuration) {
+        // nothing
+      }
+    };
+    getContext().registerComponentCallbacks(memoryCallbacks);
+  }
+
+  /** A part of the memory available to the application, which depends on the device. */
+  private long readCacheSize() {
+    ActivityManager manager = (ActivityManager) getContext().getSystemService(Context.ACTIVITY_SERVICE);
+    long memoryClass = manager != null ? manager.getMemoryClass() : 0;
+    return Math.max(MIN_READ_CACHE_SIZE, Math.min(MAX_READ_CACHE_SIZE, memoryClass * 1024 * 1024 / 16));
+  }
+
+  @Override
+  protected void handleOnPause() {
+    // the application may be killed while in background
+    writeBehind.flushAll();
+    super.handleOnPause();
+  }
+
+  @Override
+  protected void handleOnDestroy() {
+    getContext().unregisterComponentCallbacks(memoryCallbacks);
+    downloads.cancelAll();
+    scheduler.shutdownNow();
+    writeBehind.flushAll();
+    trash.shutdown();
+    // the stores must not be closed while operations, like the delayed writes, are still using them
+    try {
+      if (!io.shutdown(SHUTDOWN_TIMEOUT)) Logger.warn("Storage operations still running after " + SHUTDOWN_TIMEOUT + "ms");
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    packs.closeAll();
+    archives.closeAll();
+    super.handleOnDestroy();
   }
 
   /**
@@ -94,39 +457,237 @@ public class LocalFilesPlugin extends Plugin {
    */
   @PluginMethod
   public void readBinaryFile(PluginCall call) {
-    FileInputStream in = null;
-    try {
-      File file = toFile(call);
-      if (!file.exists() || !file.isFile())
-        throw new LocalFilesException(LocalFilesException.Code.NOT_FOUND, "File not found");
-      long size = file.length();
-      JSObject response = new JSObject();
-      if (size == 0L) {
-        response.put("chunks", 0);
-        call.resolve(response);
-        return;
+    io.execute(fileKey(call), priority(call), () -> {
+      try {
+        call.resolve(startBinaryRead(getDir(call), getFilename(call), fileKey(call), priority(call)));
+      } catch (LocalFilesException e) {
+        e.reject(call);
+      } catch (Exception e) {
+        Utils.reject(call, e);
       }
-      int chunks = (int) (size / MAX_DECODED_CHUNK_SIZE);
-      if ((size % MAX_DECODED_CHUNK_SIZE) > 0) chunks++;
-      response.put("chunks", chunks);
-      int chunkSize = (int) Math.min(size, MAX_DECODED_CHUNK_SIZE);
-      in = new FileInputStream(file);
-      response.put("data", Base64.getEncoder().encodeToString(Utils.readNBytes(in, chunkSize)));
+    });
+  }
+
+  private JSObject startBinaryRead(String dir, String filename, String key, StorageExecutor.Priority priority) throws Exception {
+    BlobStream blob = openBlob(dir, filename, 0);
+    if (blob == null)
+      throw new LocalFilesException(LocalFilesException.Code.NOT_FOUND, "File not found");
+    long size = blob.size;
+    InputStream in = blob.in;
+    JSObject response = new JSObject();
+    if (size == 0L) {
+      in.close();
+      response.put("chunks", 0);
+      return response;
+    }
+    int chunks = (int) (size / MAX_DECODED_CHUNK_SIZE);
+    if ((size % MAX_DECODED_CHUNK_SIZE) > 0) chunks++;
+    response.put("chunks", chunks);
+    int chunkSize = (int) Math.min(size, MAX_DECODED_CHUNK_SIZE);
+    try {
+      response.put("data", Utils.readBase64(in, chunkSize));
       if (chunks == 1) {
         in.close();
-        call.resolve(response);
-        return;
+        return response;
       }
       int id = readId.incrementAndGet();
-      BinaryRead read = new BinaryRead(in, size, (long) chunkSize);
+      BinaryRead read = new BinaryRead(key, in, size, (long) chunkSize);
+      read.priority = priority;
       binaryReads.put(id, read);
       response.put("id", id);
-      call.resolve(response);
-    } catch (LocalFilesException e) {
-      e.reject(call);
+      return response;
     } catch (Exception e) {
       Utils.silentClose(in);
-      Utils.reject(call, e);
+      throw e;
+    }
+  }
+
+  /**
+   * Information about a tile archive (PMTiles) stored as a file.
+   * Input:
+   *  - dir
+   *  - filename
+   * Output:
+   *  - minZoom, maxZoom
+   *  - minLon, minLat, maxLon, maxLat: bounds of the tiles
+   *  - centerZoom, centerLon, centerLat
+   *  - tiles: number of tiles
+   *  - contentType: type of the tiles
+   */
+  @PluginMethod
+  public void getTileArchiveInfo(PluginCall call) {
+    io.execute(fileKey(call), priority(call), () -> {
+      try {
+        TileArchive archive = archives.get(getDir(call), getFilename(call));
+        if (archive == null)
+          throw new LocalFilesException(LocalFilesException.Code.NOT_FOUND, "File not found");
+        call.resolve(new JSObject()
+          .put("minZoom", archive.minZoom)
+          .put("maxZoom", archive.maxZoom)
+          .put("minLon", archive.minLon)
+          .put("minLat", archive.minLat)
+          .put("maxLon", archive.maxLon)
+          .put("maxLat", archive.maxLat)
+          .put("centerZoom", archive.centerZoom)
+          .put("centerLon", archive.centerLon)
+          .put("centerLat", archive.centerLat)
+          .put("tiles", archive.addressedTiles)
+          .put("contentType", archive.contentType)
+        );
+      } catch (LocalFilesException e) {
+        e.reject(call);
+      } catch (Exception e) {
+        Utils.reject(call, e);
+      }
+    });
+  }
+
+  /**
+   * Read a tile from a tile archive (PMTiles) stored as a file.
+   * Tiles can also be used as URL, see LocalFilesWebViewClient.
+   * Input:
+   *  - dir
+   *  - filename
+   *  - z, x, y
+   * Output:
+   *  - data: base64 encoded tile, missing if the archive does not contain the tile
+   *  - contentType
+   */
+  @PluginMethod
+  public void readArchiveTile(PluginCall call) {
+    io.execute(fileKey(call), priority(call), () -> {
+      try {
+        Integer z = call.getInt("z");
+        Long x = call.getLong("x");
+        Long y = call.getLong("y");
+        if (z == null || x == null || y == null)
+          throw new LocalFilesException(LocalFilesException.Code.INVALID_INPUT, "Missing tile coordinates");
+        String dir = getDir(call);
+        String filename = getFilename(call);
+        if (archives.get(dir, filename) == null)
+          throw new LocalFilesException(LocalFilesException.Code.NOT_FOUND, "File not found");
+        TileArchive.Tile tile = getArchiveTile(dir, filename, z, x, y);
+        JSObject response = new JSObject();
+        if (tile != null) response.put("data", Base64.getEncoder().encodeToString(tile.data)).put("contentType", tile.contentType);
+        call.resolve(response);
+      } catch (LocalFilesException e) {
+        e.reject(call);
+      } catch (Exception e) {
+        Utils.reject(call, e);
+      }
+    });
+  }
+
+  private TileArchive.Tile getArchiveTile(String dir, String filename, int z, long x, long y) throws IOException {
+    TileArchive archive = archives.get(dir, filename);
+    if (archive == null) return null;
+    evictor.accessed(dir, filename);
+    return archive.getTile(z, x, y);
+  }
+
+  /**
+   * Read a part of a file, without keeping anything open, so headers or records of large files can be read directly.
+   * Input:
+   *  - dir
+   *  - filename
+   *  - offset: position of the first byte to read
+   *  - length: number of bytes to read, limited to MAX_DECODED_CHUNK_SIZE
+   * Output:
+   *  - data: base64 encoded bytes, shorter than the requested length if the end of the file is reached
+   *  - size: total size of the file
+   */
+  @PluginMethod
+  public void readBinaryFileRange(PluginCall call) {
+    io.execute(fileKey(call), priority(call), () -> {
+      try {
+        Long offset = call.getLong("offset");
+        Integer length = call.getInt("length");
+        if (offset == null || offset < 0 || length == null || length < 0)
+          throw new LocalFilesException(LocalFilesException.Code.INVALID_INPUT, "Invalid range");
+        BlobChannel blob = openBlobChannel(getDir(call), getFilename(call));
+        if (blob == null)
+          throw new LocalFilesException(LocalFilesException.Code.NOT_FOUND, "File not found");
+        try (blob) {
+          byte[] data = blob.read(offset, Math.min(length, MAX_DECODED_CHUNK_SIZE));
+          call.resolve(new JSObject().put("data", Base64.getEncoder().encodeToString(data)).put("size", blob.size));
+        }
+      } catch (LocalFilesException e) {
+        e.reject(call);
+      } catch (Exception e) {
+        Utils.reject(call, e);
+      }
+    });
+  }
+
+  /**
+   * Input:
+   *  - dir
+   *  - files: string[]
+   * Output: sent by frames, each frame containing at most MAX_DECODED_CHUNK_SIZE of data
+   *  - files: {filename, chunks, data, id, missing, error}[] same as readBinaryFile for each file,
+   *    with missing = true if the file does not exist, or error if it cannot be read
+   *  - end: true on the last frame
+   */
+  @PluginMethod(returnType = PluginMethod.RETURN_CALLBACK)
+  public void readBinaryFiles(PluginCall call) {
+    String dir = call.getString("dir");
+    if (dir == null || dir.isBlank()) {
+      call.reject("Missing dir", LocalFilesException.Code.INVALID_INPUT.getCode());
+      return;
+    }
+    JSONArray files = call.getArray("files");
+    if (files == null || files.length() == 0) {
+      call.resolve(new JSObject().put("files", new JSONArray()).put("end", true));
+      return;
+    }
+    call.setKeepAlive(true);
+    StorageExecutor.Priority priority = priority(call);
+    BatchRead batch = new BatchRead(call, files.length());
+    for (int i = 0; i < files.length(); ++i) {
+      String filename = files.optString(i);
+      String key = dir + "/" + filename;
+      io.execute(key, priority, () -> {
+        JSObject result;
+        try {
+          result = startBinaryRead(dir, filename, key, priority);
+        } catch (LocalFilesException e) {
+          result = new JSObject();
+          if (e.getCode() == LocalFilesException.Code.NOT_FOUND) result.put("missing", true);
+          else result.put("error", e.getMessage());
+        } catch (Exception e) {
+          result = new JSObject().put("error", e.getMessage());
+        }
+        batch.add(result.put("filename", filename));
+      });
+    }
+  }
+
+  private class BatchRead {
+    private final PluginCall call;
+    private int remaining;
+    private JSONArray frame = new JSONArray();
+    private long frameSize = 0;
+
+    private BatchRead(PluginCall call, int count) {
+      this.call = call;
+      this.remaining = count;
+    }
+
+    private synchronized void add(JSObject result) {
+      frame.put(result);
+      String data = result.optString("data");
+      if (data != null) frameSize += data.length();
+      remaining--;
+      if (remaining == 0) {
+        call.resolve(new JSObject().put("files", frame).put("end", true));
+        call.release(bridge);
+        return;
+      }
+      if (frameSize >= MAX_DECODED_CHUNK_SIZE) {
+        call.resolve(new JSObject().put("files", frame).put("end", false));
+        frame = new JSONArray();
+        frameSize = 0;
+      }
     }
   }
 
@@ -138,120 +699,230 @@ public class LocalFilesPlugin extends Plugin {
    */
   @PluginMethod
   public void readBinaryFileChunk(PluginCall call) {
-    BinaryRead read = null;
-    Integer id = null;
-    try {
-      id = call.getInt("id");
-      if (id == null)
-        throw new LocalFilesException(LocalFilesException.Code.INVALID_ID, "Missing id");
-      read = binaryReads.get(id);
-      if (read == null)
-        throw new LocalFilesException(LocalFilesException.Code.INVALID_ID, "Unknown id");
-      JSObject response = new JSObject();
-      int chunkSize = (int) Math.min(read.size - read.pos, MAX_DECODED_CHUNK_SIZE);
-      response.put("data", Base64.getEncoder().encodeToString(Utils.readNBytes(read.in, chunkSize)));
-      read.pos += chunkSize;
-      if (read.pos == read.size) {
-        Utils.silentClose(read.in);
+    io.execute(handleKey(binaryReads, call), handlePriority(binaryReads, call), () -> {
+      BinaryRead read = null;
+      Integer id = null;
+      try {
+        id = call.getInt("id");
+        read = getHandle(binaryReads, id);
+        JSObject response = new JSObject();
+        if (read.read(response)) {
+          Utils.silentClose(read.in);
+          binaryReads.remove(id);
+        }
+        call.resolve(response);
+      } catch (LocalFilesException e) {
+        e.reject(call);
+      } catch (Exception e) {
+        if (read != null) Utils.silentClose(read.in);
         binaryReads.remove(id);
+        Utils.reject(call, e);
       }
-      call.resolve(response);
-    } catch (LocalFilesException e) {
-      e.reject(call);
-    } catch (Exception e) {
-      if (read != null) Utils.silentClose(read.in);
-      binaryReads.remove(id);
-      Utils.reject(call, e);
-    }
+    });
   }
 
+  private static final int DEFAULT_STREAM_WINDOW = 2;
+  private static final int MAX_STREAM_WINDOW = 8;
 
   /**
+   * Read a file with its chunks pushed on the callback, without a request for each chunk.
    * Input:
    *  - dir
    *  - filename
+   *  - window: number of chunks which can be sent before being acknowledged with ackReadStream, default to 2
+   * Output: one frame for each chunk
+   *  - id: to acknowledge the chunks, or cancel with cancelRead
+   *  - data: base64 encoded chunk, at most MAX_DECODED_CHUNK_SIZE decoded bytes
+   *  - end: true on the last chunk
+   */
+  @PluginMethod(returnType = PluginMethod.RETURN_CALLBACK)
+  public void streamBinaryFile(PluginCall call) {
+    call.setKeepAlive(true);
+    io.execute(fileKey(call), priority(call), () -> {
+      try {
+        String dir = getDir(call);
+        String filename = getFilename(call);
+        BlobStream blob = openBlob(dir, filename, 0);
+        if (blob == null)
+          throw new LocalFilesException(LocalFilesException.Code.NOT_FOUND, "File not found");
+        BinaryRead read = new BinaryRead(fileKey(call), blob.in, blob.size, 0);
+        read.priority = priority(call);
+        startReadStream(call, read, read::read);
+      } catch (LocalFilesException e) {
+        e.reject(call);
+        call.release(bridge);
+      } catch (Exception e) {
+        Utils.reject(call, e);
+        call.release(bridge);
+      }
+    });
+  }
+
+  private void startReadStream(PluginCall call, Handle read, ChunkReader reader) {
+    int window = Math.max(1, Math.min(MAX_STREAM_WINDOW, call.getInt("window", DEFAULT_STREAM_WINDOW)));
+    int id = readId.incrementAndGet();
+    ReadStream stream = new ReadStream(id, call, read, reader, window);
+    readStreams.put(id, stream);
+    stream.start();
+  }
+
+
+  /**
+   * Input:
+   *  - dir
+   *  - filename
+   *  - lines: boolean, true to receive lines instead of events
    * Output:
-   *  - events
+   *  - events: if lines is false
+   *  - lines: if lines is true, the complete lines, except the last one if partial is true
+   *  - partial: true if the last line is continued in the next chunk, only when a line is larger than a chunk
    *  - id: if more lines need to be read
+   * If the file is a journaled snapshot, the lines are the records of the snapshot with the journal replayed.
+   * Empty lines are skipped.
    */
   @PluginMethod
   public void readJsonlFile(PluginCall call) {
-    FileInputStream in = null;
-    try {
-      File file = toFile(call);
-      if (!file.exists() || !file.isFile())
-        throw new LocalFilesException(LocalFilesException.Code.NOT_FOUND, "File not found");
-      in = new FileInputStream(file);
-      InputStreamReader reader = new InputStreamReader(in, StandardCharsets.UTF_8);
-      BufferedReader br = new BufferedReader(reader);
-      JsonlRead read = new JsonlRead(in, br);
-      JSObject response = new JSObject();
-      boolean done = read.read(response);
-      if (done) {
-        in.close();
+    io.execute(fileKey(call), priority(call), () -> {
+      JsonlJournal.LineSource in = null;
+      try {
+        File file = toFile(call);
+        if (!file.exists() || !file.isFile())
+          throw new LocalFilesException(LocalFilesException.Code.NOT_FOUND, "File not found");
+        in = journal.open(file);
+        JsonlRead read = new JsonlRead(fileKey(call), in, Boolean.TRUE.equals(call.getBoolean("lines")));
+        read.priority = priority(call);
+        JSObject response = new JSObject();
+        boolean done = read.read(response);
+        if (done) {
+          in.close();
+          call.resolve(response);
+          return;
+        }
+        int id = readId.incrementAndGet();
+        jsonlReads.put(id, read);
+        response.put("id", id);
         call.resolve(response);
-        return;
+      } catch (LocalFilesException e) {
+        e.reject(call);
+      } catch (Exception e) {
+        Utils.silentClose(in);
+        Utils.reject(call, e);
       }
-      int id = readId.incrementAndGet();
-      jsonlReads.put(id, read);
-      response.put("id", id);
-      call.resolve(response);
-    } catch (LocalFilesException e) {
-      e.reject(call);
-    } catch (Exception e) {
-      Utils.silentClose(in);
-      Utils.reject(call, e);
-    }
+    });
   }
 
   /**
    * Input:
    *  - id: from readJsonlFile
    * Output:
-   *  - lines
+   *  - events, lines and partial: same as readJsonlFile
    *  - end: boolean
    */
   @PluginMethod
   public void readJsonlFileChunk(PluginCall call) {
-    JsonlRead read = null;
-    Integer id = null;
-    try {
-      id = call.getInt("id");
-      if (id == null)
-        throw new LocalFilesException(LocalFilesException.Code.INVALID_ID, "Missing id");
-      read = jsonlReads.get(id);
-      if (read == null)
-        throw new LocalFilesException(LocalFilesException.Code.INVALID_ID, "Unknown id");
-      JSObject response = new JSObject();
-      boolean done = read.read(response);
-      response.put("end", done);
-      if (done) {
-        Utils.silentClose(read.in);
+    io.execute(handleKey(jsonlReads, call), handlePriority(jsonlReads, call), () -> {
+      JsonlRead read = null;
+      Integer id = null;
+      try {
+        id = call.getInt("id");
+        read = getHandle(jsonlReads, id);
+        JSObject response = new JSObject();
+        boolean done = read.read(response);
+        response.put("end", done);
+        if (done) {
+          Utils.silentClose(read.in);
+          jsonlReads.remove(id);
+        }
+        call.resolve(response);
+      } catch (LocalFilesException e) {
+        e.reject(call);
+      } catch (Exception e) {
+        if (read != null) Utils.silentClose(read.in);
         jsonlReads.remove(id);
+        Utils.reject(call, e);
+      }
+    });
+  }
+
+  /**
+   * Read a JSONL file with its chunks pushed on the callback, without a request for each chunk.
+   * Input:
+   *  - dir
+   *  - filename
+   *  - lines: same as readJsonlFile
+   *  - window: same as streamBinaryFile
+   * Output: one frame for each chunk
+   *  - events, lines and partial: same as readJsonlFile
+   *  - id: to acknowledge the chunks, or cancel with cancelRead
+   *  - end: true on the last chunk
+   */
+  @PluginMethod(returnType = PluginMethod.RETURN_CALLBACK)
+  public void streamJsonlFile(PluginCall call) {
+    call.setKeepAlive(true);
+    io.execute(fileKey(call), priority(call), () -> {
+      JsonlJournal.LineSource in = null;
+      try {
+        File file = toFile(call);
+        if (!file.exists() || !file.isFile())
+          throw new LocalFilesException(LocalFilesException.Code.NOT_FOUND, "File not found");
+        in = journal.open(file);
+        JsonlRead read = new JsonlRead(fileKey(call), in, Boolean.TRUE.equals(call.getBoolean("lines")));
+        read.priority = priority(call);
+        startReadStream(call, read, read::read);
+      } catch (LocalFilesException e) {
+        e.reject(call);
+        call.release(bridge);
+      } catch (Exception e) {
+        Utils.silentClose(in);
+        Utils.reject(call, e);
+        call.release(bridge);
       }
-      call.resolve(response);
+    });
+  }
+
+  /**
+   * Give back credits to a streamed read, once its chunks have been consumed.
+   * Input:
+   *  - id: from the frames of streamBinaryFile or streamJsonlFile
+   *  - chunks: number of consumed chunks, default to 1
+   */
+  @PluginMethod
+  public void ackReadStream(PluginCall call) {
+    try {
+      ReadStream stream = getHandle(readStreams, call.getInt("id"));
+      stream.ack(Math.max(1, call.getInt("chunks", 1)));
+      call.resolve();
     } catch (LocalFilesException e) {
       e.reject(call);
-    } catch (Exception e) {
-      if (read != null) Utils.silentClose(read.in);
-      jsonlReads.remove(id);
-      Utils.reject(call, e);
     }
   }
 
-  private static class JsonlRead {
-    private final FileInputStream in;
-    private final BufferedReader br;
-    private JsonlRead(FileInputStream in, BufferedReader br) {
+  private static class JsonlRead extends Handle {
+    private final JsonlJournal.LineSource in;
+    private final boolean linesMode;
+    private JsonlRead(String key, JsonlJournal.LineSource in, boolean linesMode) {
+      super(key);
       this.in = in;
-      this.br = br;
+      this.linesMode = linesMode;
+    }
+
+    @Override
+    protected long pendingBytes() {
+      return 0;
     }
 
-    private String currentLine = null;
+    @Override
+    protected void release() {
+      Utils.silentClose(in);
+    }
+
+    // may be a view on the reader's buffer, which does not move until the next line is read
+    private CharSequence currentLine = null;
     private int currentLinePos = 0;
     private static final int MAX_CHUNK_SIZE = 4 * 1024 * 1024;
 
     private boolean read(JSObject response) throws IOException, JSONException {
+      if (linesMode) return readLines(response);
       JSONArray events = new JSONArray();
       response.put("events", events);
       int size = 0;
@@ -260,25 +931,53 @@ public class LocalFilesPlugin extends Plugin {
         if (currentLine == null) return true;
         int remaining = currentLine.length() - currentLinePos;
         if (size + remaining <= MAX_CHUNK_SIZE) {
-          events.put(new JSONObject().put("d", currentLine.substring(currentLinePos)));
+          events.put(new JSONObject().put("d", remainingPart(currentLine.length())));
           events.put(new JSONObject().put("nl", true));
           size += remaining + 20;
           currentLine = null;
           continue;
         }
         remaining = MAX_CHUNK_SIZE - size;
-        events.put(new JSONObject().put("d", currentLine.substring(currentLinePos, currentLinePos + remaining)));
+        events.put(new JSONObject().put("d", remainingPart(currentLinePos + remaining)));
+        currentLinePos += remaining;
+        return false;
+      } while (size < MAX_CHUNK_SIZE);
+      return false;
+    }
+
+    private boolean readLines(JSObject response) throws IOException, JSONException {
+      JSONArray lines = new JSONArray();
+      response.put("lines", lines);
+      int size = 0;
+      do {
+        ensureLine();
+        if (currentLine == null) return true;
+        int remaining = currentLine.length() - currentLinePos;
+        if (size + remaining <= MAX_CHUNK_SIZE) {
+          lines.put(remainingPart(currentLine.length()));
+          size += remaining + 3;
+          currentLine = null;
+          continue;
+        }
+        // line larger than a chunk: send what fits, the rest will come in the next chunk
+        remaining = MAX_CHUNK_SIZE - size;
+        lines.put(remainingPart(currentLinePos + remaining));
+        response.put("partial", true);
         currentLinePos += remaining;
         return false;
       } while (size < MAX_CHUNK_SIZE);
       return false;
     }
 
+    private String remainingPart(int end) {
+      return currentLine.subSequence(currentLinePos, end).toString();
+    }
+
     private void ensureLine() throws IOException {
       if (currentLine != null) return;
       do {
-        currentLine = br.readLine();
-      } while (currentLine != null && currentLine.isEmpty());
+        currentLine = in.readLine();
+      } while (currentLine != null && currentLine.length() == 0);
       currentLinePos = 0;
     }
   }
@@ -291,38 +990,61 @@ public class LocalFilesPlugin extends Plugin {
    * Output:
    *  - id
    *  - maxChunkSize: maximum size of a chunk to send to saveFileChunk
+   *  - binaryChannel: true if chunks can be sent as ArrayBuffer using the BinaryWriteChannel
+   * The file is replaced once all chunks are written, unless another write or a deletion of the file started meanwhile:
+   * the last one started wins.
    */
   @PluginMethod
   public void saveBinaryFile(PluginCall call) {
-    FileOutputStream out = null;
-    try {
-      File targetFile = toFile(call);
-      Integer size = call.getInt("size");
-      if (size == null)
-        throw new LocalFilesException(LocalFilesException.Code.INVALID_INPUT, "Missing size");
-      if (size.intValue() == 0) {
-        Files.deleteIfExists(targetFile.toPath());
-        targetFile.createNewFile();
-        call.resolve(new JSObject());
-        return;
+    io.execute(fileKey(call), priority(call), () -> {
+      FileOutputStream out = null;
+      try {
+        String dir = getDir(call);
+        String filename = getFilename(call);
+        File targetFile = toFile(call);
+        Integer size = call.getInt("size");
+        if (size == null)
+          throw new LocalFilesException(LocalFilesException.Code.INVALID_INPUT, "Missing size");
+        if (size.intValue() == 0) {
+          writeBehind.remove(dir, List.of(filename));
+          PackStore pack = packs.get(dir);
+          ReentrantLock lock = fileLocks.get(dir, filename);
+          lock.lock();
+          try {
+            latestWrites.remove(fileKey(call));
+            if (pack != null) {
+              pack.put(filename, new byte[0]);
+            } else {
+              saveFileContent(targetFile, new byte[0]);
+              fileIndex.written(dir, filename, targetFile);
+              archives.changed(dir, filename);
+            }
+            readCache.changed(dir, filename);
+          } finally {
+            lock.unlock();
+          }
+          evictor.written(dir, List.of(filename));
+          call.resolve(new JSObject());
+          return;
+        }
+        File tempFile = tempFiles.create();
+        out = new FileOutputStream(tempFile);
+        int id = writeId.incrementAndGet();
+        latestWrites.put(fileKey(call), id);
+        JSObject response = new JSObject().put("maxChunkSize", MAX_DECODED_CHUNK_SIZE).put("id", id).put("binaryChannel", binaryChannel.isRegistered());
+        BinaryWrite write = new BinaryWrite(fileKey(call), dir, filename, tempFile, out, size);
+        write.priority = priority(call);
+        binaryWrites.put(id, write);
+        out = null;
+        call.resolve(response);
+      } catch (LocalFilesException e) {
+        e.reject(call);
+      } catch (Exception e) {
+        Utils.reject(call, e);
+      } finally {
+        if (out != null) Utils.silentClose(out);
       }
-      File tempFile = new File(targetFile.getParentFile(), targetFile.getName() + ".tmp");
-      Files.deleteIfExists(tempFile.toPath());
-      tempFile.deleteOnExit();
-      tempFile.getParentFile().mkdirs();
-      out = new FileOutputStream(tempFile);
-      int id = writeId.incrementAndGet();
-      JSObject response = new JSObject().put("maxChunkSize", MAX_DECODED_CHUNK_SIZE).put("id", id);
-      binaryWrites.put(id, new BinaryWrite(targetFile, tempFile, out, size));
-      out = null;
-      call.resolve(response);
-    } catch (LocalFilesException e) {
-      e.reject(call);
-    } catch (Exception e) {
-      Utils.reject(call, e);
-    } finally {
-      if (out != null) Utils.silentClose(out);
-    }
+    });
   }
 
   /**
@@ -334,36 +1056,39 @@ public class LocalFilesPlugin extends Plugin {
    */
   @PluginMethod
   public void saveBinaryFileChunk(PluginCall call) {
-    Integer id = null;
-    BinaryWrite write = null;
-    try {
-      id = call.getInt("id");
-      if (id == null)
-        throw new LocalFilesException(LocalFilesException.Code.INVALID_ID, "Missing id");
-      write = binaryWrites.get(id);
-      if (write == null)
-        throw new LocalFilesException(LocalFilesException.Code.INVALID_ID, "Unknown id");
-      String contentBase64 = call.getString("data");
-      if (contentBase64 == null)
-        throw new LocalFilesException(LocalFilesException.Code.INVALID_INPUT, "Missing data");
-      byte[] data = Base64.getDecoder().decode(contentBase64);
-      write.out.write(data);
-      write.done += data.length;
-      if (write.done < write.size) {
-        call.resolve(new JSObject().put("result", "continue"));
-        return;
+    io.execute(handleKey(binaryWrites, call), handlePriority(binaryWrites, call), () -> {
+      try {
+        Integer id = call.getInt("id");
+        String contentBase64 = call.getString("data");
+        if (contentBase64 == null)
+          throw new LocalFilesException(LocalFilesException.Code.INVALID_INPUT, "Missing data");
+        byte[] data = Base64.getDecoder().decode(contentBase64);
+        call.resolve(new JSObject().put("result", writeBinaryChunk(id, data, 0, data.length)));
+      } catch (LocalFilesException e) {
+        e.reject(call);
+      } catch (Exception e) {
+        Utils.reject(call, e);
       }
+    });
+  }
+
+  /** Write a chunk of a binary file, and return "continue" or "done". */
+  private String writeBinaryChunk(int id, byte[] data, int offset, int length) throws Exception {
+    BinaryWrite write = getHandle(binaryWrites, id);
+    try {
+      write.out.write(data, offset, length);
+      write.done += length;
+      if (write.done < write.size) return "continue";
       write.out.close();
-      Files.deleteIfExists(write.targetFile.toPath());
-      write.tempFile.renameTo(write.targetFile);
       binaryWrites.remove(id);
-      call.resolve(new JSObject().put("result", "done"));
-    } catch (LocalFilesException e) {
-      e.reject(call);
+      commitBlob(write.dir, write.filename, write.tempFile, id);
+      return "done";
     } catch (Exception e) {
-      if (write != null) Utils.silentClose(write.out);
+      Utils.silentClose(write.out);
       binaryWrites.remove(id);
-      Utils.reject(call, e);
+      latestWrites.remove(write.key, id);
+      write.tempFile.delete();
+      throw e;
     }
   }
 
@@ -371,55 +1096,192 @@ public class LocalFilesPlugin extends Plugin {
   /**
    * Input:
    *  - dir
-   *  - filename
-   *  - events
-   *  - more: boolean
+   *  - files: {filename, data: base64 encoded content}[]
    * Output:
-   *  - id if more is true
+   *  - results: {filename, success: boolean, error}[]
    */
   @PluginMethod
-  public void saveJsonlFile(PluginCall call) {
-    FileOutputStream out = null;
-    try {
-      File targetFile = toFile(call);
-      Boolean more = call.getBoolean("more");
-      if (more == null) more = Boolean.FALSE;
-      JSONArray events = call.getArray("events");
-      File tempFile = new File(targetFile.getParentFile(), targetFile.getName() + ".tmp");
+  public void saveBinaryFiles(PluginCall call) {
+    io.execute(dirKey(call), priority(call), () -> {
+      try {
+        String dir = call.getString("dir");
+        if (dir == null || dir.isBlank()) throw new LocalFilesException(LocalFilesException.Code.INVALID_INPUT, "Missing dir");
+        JSONArray files = call.getArray("files");
+        JSONArray results = new JSONArray();
+        if (files != null && files.length() > 0) {
+          if (saveDelayed(dir, files, results)) {
+            call.resolve(new JSObject().put("results", results));
+            return;
+          }
+          File subDir = new File(root, dir);
+          subDir.mkdirs();
+          PackStore pack = packs.get(dir);
+          List<String> written = new ArrayList<>(files.length());
+          List<JSObject> packed = new ArrayList<>();
+          List<String> packedNames = new ArrayList<>();
+          List<byte[]> packedContents = new ArrayList<>();
+          for (int i = 0; i < files.length(); ++i) {
+            JSONObject file = files.getJSONObject(i);
+            String filename = file.optString("filename");
+            JSObject result = new JSObject().put("filename", filename);
+            try {
+              if (filename.isBlank()) throw new LocalFilesException(LocalFilesException.Code.INVALID_INPUT, "Missing filename");
+              byte[] data = Base64.getDecoder().decode(file.optString("data"));
+              if (pack != null) {
+                // written all together below
+                packed.add(result);
+                packedNames.add(filename);
+                packedContents.add(data);
+              } else {
+                File targetFile = new File(subDir, filename);
+                ReentrantLock lock = fileLocks.get(dir, filename);
+                lock.lock();
+                try {
+                  latestWrites.remove(dir + "/" + filename);
+                  saveFileContent(targetFile, data);
+                  fileIndex.written(dir, filename, targetFile);
+                  archives.changed(dir, filename);
+                  readCache.changed(dir, filename);
+                } finally {
+                  lock.unlock();
+                }
+                written.add(filename);
+                result.put("success", true);
+              }
+            } catch (Exception e) {
+              result.put("success", false).put("error", e.getMessage());
+            }
+            results.put(result);
+          }
+          if (!packed.isEmpty()) {
+            try {
+              for (String filename : packedNames) latestWrites.remove(dir + "/" + filename);
+              pack.putAll(packedNames, packedContents);
+              for (String filename : packedNames) readCache.changed(dir, filename);
+              written.addAll(packedNames);
+              for (JSObject result : packed) result.put("success", true);
+            } catch (Exception e) {
+              for (JSObject result : packed) result.put("success", false).put("error", e.getMessage());
+            }
+          }
+          evictor.written(dir, written);
+        }
+        call.resolve(new JSObject().put("results", results));
+      } catch (LocalFilesException e) {
+        e.reject(call);
+      } catch (Exception e) {
+        Utils.reject(call, e);
+      }
+    });
+  }
+
+  /** Keep the files in memory if the directory delays its writes, and return false if it does not. */
+  private boolean saveDelayed(String dir, JSONArray files, JSONArray results) throws JSONException {
+    if (!writeBehind.isEnabled(dir)) return false;
+    List<String> filenames = new ArrayList<>(files.length());
+    List<byte[]> contents = new ArrayList<>(files.length());
+    List<JSObject> accepted = new ArrayList<>(files.length());
+    for (int i = 0; i < files.length(); ++i) {
+      JSONObject file = files.getJSONObject(i);
+      String filename = file.optString("filename");
+      JSObject result = new JSObject().put("filename", filename);
+      try {
+        if (filename.isBlank()) throw new LocalFilesException(LocalFilesException.Code.INVALID_INPUT, "Missing filename");
+        contents.add(Base64.getDecoder().decode(file.optString("data")));
+        filenames.add(filename);
+        accepted.add(result);
+      } catch (Exception e) {
+        result.put("success", false).put("error", e.getMessage());
+      }
+      results.put(result);
+    }
+    for (String filename : filenames) latestWrites.remove(dir + "/" + filename);
+    writeBehind.put(dir, filenames, contents);
+    for (JSObject result : accepted) result.put("success", true);
+    return true;
+  }
+
+  /** Write a file through a temporary file, so it is replaced atomically. Must be called with the lock of the file. */
+  private void saveFileContent(File targetFile, byte[] data) throws IOException {
+    File tempFile = tempFiles.create();
+    try (FileOutputStream out = new FileOutputStream(tempFile)) {
+      out.write(data);
+    } catch (IOException e) {
       Files.deleteIfExists(tempFile.toPath());
-      tempFile.deleteOnExit();
-      tempFile.getParentFile().mkdirs();
-      out = new FileOutputStream(tempFile);
-      OutputStreamWriter sw = new OutputStreamWriter(out, StandardCharsets.UTF_8);
-      BufferedWriter bw = new BufferedWriter(sw);
-      if (events != null) {
-        for (int index = 0; index < events.length(); ++index) {
-          JSONObject event = events.getJSONObject(index);
-          if (event.has("nl")) bw.newLine();
-          else bw.append(event.getString("d"));
-        }
-      }
-      if (more.equals(Boolean.FALSE)) {
-        bw.flush();
-        out.close();
+      throw e;
+    }
+    TempFiles.commit(tempFile, targetFile);
+  }
+
+
+  /**
+   * Input:
+   *  - dir
+   *  - filename
+   *  - events
+   *  - more: boolean
+   *  - keyed: boolean, true if each line is "key\tjson", to write a snapshot which can then be journaled
+   *  - compressed: boolean, true to write the file gzip compressed (the format is detected when reading)
+   * Output:
+   *  - id if more is true
+   * As for saveBinaryFile, the last write started wins.
+   */
+  @PluginMethod
+  public void saveJsonlFile(PluginCall call) {
+    io.execute(fileKey(call), priority(call), () -> {
+      FileOutputStream out = null;
+      File tempFile = null;
+      try {
+        File targetFile = toFile(call);
+        Boolean more = call.getBoolean("more");
+        if (more == null) more = Boolean.FALSE;
+        JSONArray events = call.getArray("events");
+        tempFile = tempFiles.create();
+        out = new FileOutputStream(tempFile);
+        OutputStreamWriter sw = new OutputStreamWriter(
+          Boolean.TRUE.equals(call.getBoolean("compressed")) ? JsonlFormat.compress(out) : out,
+          StandardCharsets.UTF_8
+        );
+        BufferedWriter bw = new BufferedWriter(sw);
+        String header = null;
+        if (Boolean.TRUE.equals(call.getBoolean("keyed"))) {
+          header = journal.newSnapshotHeader(targetFile);
+          bw.append(header).append('\n');
+        }
+        if (events != null) {
+          for (int index = 0; index < events.length(); ++index) {
+            JSONObject event = events.getJSONObject(index);
+            if (event.has("nl")) bw.newLine();
+            else bw.append(event.getString("d"));
+          }
+        }
+        if (more.equals(Boolean.FALSE)) {
+          // closing the writer ends the compressed stream if any
+          bw.close();
+          out = null;
+          commitJsonl(getDir(call), getFilename(call), targetFile, tempFile, header, null);
+          tempFile = null;
+          call.resolve(new JSObject());
+          return;
+        }
+        int id = writeId.incrementAndGet();
+        latestWrites.put(fileKey(call), id);
+        JSObject response = new JSObject().put("id", id);
+        JsonlWrite write = new JsonlWrite(fileKey(call), getDir(call), getFilename(call), targetFile, tempFile, out, bw, header);
+        write.priority = priority(call);
+        jsonlWrites.put(id, write);
         out = null;
-        Files.deleteIfExists(targetFile.toPath());
-        tempFile.renameTo(targetFile);
-        call.resolve(new JSObject());
-        return;
+        tempFile = null;
+        call.resolve(response);
+      } catch (LocalFilesException e) {
+        e.reject(call);
+      } catch (Exception e) {
+        Utils.reject(call, e);
+      } finally {
+        if (out != null) Utils.silentClose(out);
+        if (tempFile != null) tempFile.delete();
       }
-      int id = writeId.incrementAndGet();
-      JSObject response = new JSObject().put("id", id);
-      jsonlWrites.put(id, new JsonlWrite(targetFile, tempFile, out, bw));
-      out = null;
-      call.resolve(response);
-    } catch (LocalFilesException e) {
-      e.reject(call);
-    } catch (Exception e) {
-      Utils.reject(call, e);
-    } finally {
-      if (out != null) Utils.silentClose(out);
-    }
+    });
   }
 
   /**
@@ -432,44 +1294,133 @@ public class LocalFilesPlugin extends Plugin {
    */
   @PluginMethod
   public void saveJsonlFileChunk(PluginCall call) {
-    Integer id = null;
-    JsonlWrite write = null;
-    try {
-      id = call.getInt("id");
-      if (id == null)
-        throw new LocalFilesException(LocalFilesException.Code.INVALID_ID, "Missing id");
-      write = jsonlWrites.get(id);
-      if (write == null)
-        throw new LocalFilesException(LocalFilesException.Code.INVALID_ID, "Unknown id");
-      Boolean more = call.getBoolean("more");
-      if (more == null) more = Boolean.FALSE;
-      JSONArray events = call.getArray("events");
-      if (events != null) {
-        for (int index = 0; index < events.length(); ++index) {
-          JSONObject event = events.getJSONObject(index);
-          if (event.has("nl")) write.bw.newLine();
-          else write.bw.append(event.getString("d"));
-        }
-      }
-      if (more.equals(Boolean.FALSE)) {
-        write.bw.flush();
-        write.out.close();
-        Files.deleteIfExists(write.targetFile.toPath());
-        write.tempFile.renameTo(write.targetFile);
+    io.execute(handleKey(jsonlWrites, call), handlePriority(jsonlWrites, call), () -> {
+      Integer id = null;
+      JsonlWrite write = null;
+      try {
+        id = call.getInt("id");
+        write = getHandle(jsonlWrites, id);
+        Boolean more = call.getBoolean("more");
+        if (more == null) more = Boolean.FALSE;
+        JSONArray events = call.getArray("events");
+        if (events != null) {
+          for (int index = 0; index < events.length(); ++index) {
+            JSONObject event = events.getJSONObject(index);
+            if (event.has("nl")) write.bw.newLine();
+            else write.bw.append(event.getString("d"));
+          }
+        }
+        if (more.equals(Boolean.FALSE)) {
+          write.bw.close();
+          jsonlWrites.remove(id);
+          commitJsonl(write.dir, write.filename, write.targetFile, write.tempFile, write.header, id);
+          call.resolve(new JSObject().put("result", "done"));
+          return;
+        }
+        call.resolve(new JSObject().put("result", "continue"));
+      } catch (LocalFilesException e) {
+        e.reject(call);
+      } catch (Exception e) {
+        if (write != null) {
+          Utils.silentClose(write.out);
+          write.tempFile.delete();
+          latestWrites.remove(write.key, id);
+        }
         jsonlWrites.remove(id);
-        call.resolve(new JSObject().put("result", "done"));
+        Utils.reject(call, e);
+      }
+    });
+  }
+
+  /**
+   * Replace a JSONL file by its new snapshot. A chunked write (id not null) is discarded if another write
+   * of the file started after it.
+   */
+  private void commitJsonl(String dir, String filename, File targetFile, File tempFile, String header, Integer id) throws IOException {
+    ReentrantLock lock = fileLocks.get(dir, filename);
+    lock.lock();
+    try {
+      String key = dir + "/" + filename;
+      if (id == null) {
+        latestWrites.remove(key);
+      } else if (!latestWrites.remove(key, id)) {
+        // a more recent write of the file started: it wins
+        Files.deleteIfExists(tempFile.toPath());
         return;
       }
-      call.resolve(new JSObject().put("result", "continue"));
-    } catch (LocalFilesException e) {
-      e.reject(call);
-    } catch (Exception e) {
-      if (write != null) Utils.silentClose(write.out);
-      jsonlWrites.remove(id);
-      Utils.reject(call, e);
+      TempFiles.commit(tempFile, targetFile);
+      journal.snapshotWritten(targetFile, header);
+      jsonlFileChanged(dir, filename, targetFile);
+    } finally {
+      lock.unlock();
     }
   }
 
+  /**
+   * Append changed records to the journal of a keyed snapshot written by saveJsonlFile.
+   * The journal is merged into the snapshot in background when it becomes large.
+   * Input:
+   *  - dir
+   *  - filename
+   *  - records: {k: key, d: json line, or absent if the record has been deleted}[]
+   * Fails with code not-journaled if the file is not a keyed snapshot, in which case a full snapshot must be written.
+   */
+  @PluginMethod
+  public void appendJsonlJournal(PluginCall call) {
+    io.execute(fileKey(call), priority(call), () -> {
+      try {
+        File file = toFile(call);
+        JSONArray input = call.getArray("records");
+        List<JsonlJournal.Record> records = new ArrayList<>();
+        if (input != null) {
+          for (int i = 0; i < input.length(); ++i) {
+            JSONObject record = input.getJSONObject(i);
+            String key = record.optString("k");
+            String line = record.has("d") ? record.getString("d") : null;
+            if (key.isEmpty() || key.indexOf('\t') >= 0 || key.indexOf('\n') >= 0 || (line != null && line.indexOf('\n') >= 0))
+              throw new LocalFilesException(LocalFilesException.Code.INVALID_INPUT, "Invalid record");
+            records.add(new JsonlJournal.Record(key, line));
+          }
+        }
+        if (records.isEmpty()) {
+          call.resolve();
+          return;
+        }
+        String dir = getDir(call);
+        String filename = getFilename(call);
+        boolean compact;
+        ReentrantLock lock = fileLocks.get(dir, filename);
+        lock.lock();
+        try {
+          compact = journal.append(file, records);
+          jsonlFileChanged(dir, filename, file);
+        } finally {
+          lock.unlock();
+        }
+        if (compact) {
+          String key = fileKey(call);
+          io.execute(key, StorageExecutor.Priority.BACKGROUND, () -> {
+            // a snapshot committed by a chunked write, executed with another key, must not be replaced meanwhile
+            lock.lock();
+            try {
+              journal.compact(file, tempFiles.create());
+              jsonlFileChanged(dir, filename, file);
+            } catch (Exception e) {
+              Logger.error("Error compacting journal of " + key, e);
+            } finally {
+              lock.unlock();
+            }
+          });
+        }
+        call.resolve();
+      } catch (LocalFilesException e) {
+        e.reject(call);
+      } catch (Exception e) {
+        Utils.reject(call, e);
+      }
+    });
+  }
+
   /**
    * Input:
    *  - dir
@@ -479,13 +1430,15 @@ public class LocalFilesPlugin extends Plugin {
    */
   @PluginMethod
   public void fileExists(PluginCall call) {
-    try {
-      call.resolve(new JSObject().put("exists", toFile(call).exists()));
-    } catch (LocalFilesException e) {
-      e.reject(call);
-    } catch (Exception e) {
-      Utils.reject(call, e);
-    }
+    io.execute(fileKey(call), priority(call), () -> {
+      try {
+        call.resolve(new JSObject().put("exists", blobSizes(getDir(call), new String[] { getFilename(call) })[0] >= 0));
+      } catch (LocalFilesException e) {
+        e.reject(call);
+      } catch (Exception e) {
+        Utils.reject(call, e);
+      }
+    });
   }
 
   /**
@@ -497,62 +1450,163 @@ public class LocalFilesPlugin extends Plugin {
    */
   @PluginMethod
   public void filesExist(PluginCall call) {
-    try {
-      String dir = call.getString("dir");
-      if (dir == null || dir.isBlank()) throw new LocalFilesException(LocalFilesException.Code.INVALID_INPUT, "Missing dir");
-      JSObject response = new JSObject();
-      JSONArray filesOutput = new JSONArray();
-      response.put("exist", filesOutput);
-      JSONArray filesInput = call.getArray("files");
-      if (filesInput != null) {
+    io.execute(dirKey(call), priority(call), () -> {
+      try {
+        String dir = call.getString("dir");
+        if (dir == null || dir.isBlank()) throw new LocalFilesException(LocalFilesException.Code.INVALID_INPUT, "Missing dir");
+        JSObject response = new JSObject();
+        JSONArray filesOutput = new JSONArray();
+        response.put("exist", filesOutput);
+        String[] filenames = toStringArray(call.getArray("files"));
+        for (long size : blobSizes(dir, filenames)) filesOutput.put(size >= 0);
+        call.resolve(response);
+      } catch (LocalFilesException e) {
+        e.reject(call);
+      } catch (Exception e) {
+        Utils.reject(call, e);
+      }
+    });
+  }
+
+  @PluginMethod
+  public void listFiles(PluginCall call) {
+    io.execute(dirKey(call), priority(call), () -> {
+      try {
+        String dir = call.getString("dir");
+        if (dir == null || dir.isBlank()) throw new LocalFilesException(LocalFilesException.Code.INVALID_INPUT, "Missing dir");
+        writeBehind.flush(dir);
         File subDir = new File(root, dir);
-        for (int i = 0; i < filesInput.length(); ++i) {
-          filesOutput.put(new File(subDir, filesInput.getString(i)).exists());
+        JSObject response = new JSObject();
+        PackStore pack = packs.get(dir);
+        if (pack != null) {
+          response.put("files", new JSONArray(pack.names()));
+        } else if (subDir.exists()) {
+          response.put("files", new JSONArray(subDir.list()));
+        } else {
+          response.put("files", new JSONArray());
         }
+        call.resolve(response);
+      } catch (LocalFilesException e) {
+        e.reject(call);
+      } catch (Exception e) {
+        Utils.reject(call, e);
       }
-      call.resolve(response);
-    } catch (LocalFilesException e) {
-      e.reject(call);
-    } catch (Exception e) {
-      Utils.reject(call, e);
-    }
+    });
   }
+  private static final int DEFAULT_LISTING_PAGE_SIZE = 1000;
+  private static final int MAX_LISTING_PAGE_SIZE = 10000;
 
+  /**
+   * List the files of a directory by pages, so a directory with a huge number of files can be walked in bounded memory.
+   * Sub-directories are not listed. With packed storage, the modification time is the one of the pack segment containing the file.
+   * Input:
+   *  - dir
+   *  - prefix: only files whose name starts with it
+   *  - glob: only files whose name matches it, like *.pbf
+   *  - modifiedAfter, modifiedBefore: only files modified in this range, timestamps in milliseconds
+   *  - pageSize: maximum number of files in each page, default to 1000
+   * Output:
+   *  - files: {filename, size, modified}[]
+   *  - id: if more files may remain, to get the next pages with listFilesNextPage
+   */
   @PluginMethod
-  public void listFiles(PluginCall call) {
-    try {
-      String dir = call.getString("dir");
-      if (dir == null || dir.isBlank()) throw new LocalFilesException(LocalFilesException.Code.INVALID_INPUT, "Missing dir");
-      File subDir = new File(root, dir);
-      JSObject response = new JSObject();
-      if (subDir.exists()) {
-        response.put("files", new JSONArray(subDir.list()));
-      } else {
-        response.put("files", new JSONArray());
+  public void listFilesByPage(PluginCall call) {
+    io.execute(dirKey(call), priority(call), () -> {
+      DirectoryListing listing = null;
+      try {
+        String dir = getDir(call);
+        DirectoryListing.Filter filter;
+        try {
+          filter = new DirectoryListing.Filter(call.getString("prefix"), call.getString("glob"), call.getLong("modifiedAfter", 0L), call.getLong("modifiedBefore", 0L));
+        } catch (IllegalArgumentException e) {
+          throw new LocalFilesException(LocalFilesException.Code.INVALID_INPUT, "Invalid glob: " + e.getMessage());
+        }
+        int pageSize = Math.max(1, Math.min(MAX_LISTING_PAGE_SIZE, call.getInt("pageSize", DEFAULT_LISTING_PAGE_SIZE)));
+        writeBehind.flush(dir);
+        PackStore pack = packs.get(dir);
+        listing = pack != null ? DirectoryListing.ofPack(pack, filter) : DirectoryListing.ofDirectory(new File(root, dir), filter);
+        JSObject response = new JSObject().put("files", toJson(listing.next(pageSize)));
+        if (listing.isEnded()) {
+          listing.close();
+        } else {
+          int id = readId.incrementAndGet();
+          FileListing handle = new FileListing(dirKey(call), listing, pageSize);
+          handle.priority = priority(call);
+          fileListings.put(id, handle);
+          response.put("id", id);
+        }
+        call.resolve(response);
+      } catch (LocalFilesException e) {
+        e.reject(call);
+      } catch (Exception e) {
+        if (listing != null) Utils.silentClose(listing);
+        Utils.reject(call, e);
       }
-      call.resolve(response);
-    } catch (LocalFilesException e) {
-      e.reject(call);
-    } catch (Exception e) {
-      Utils.reject(call, e);
-    }
+    });
   }
 
+  /**
+   * Input:
+   *  - id: from listFilesByPage
+   * Output:
+   *  - files: same as listFilesByPage
+   *  - end: boolean
+   */
+  @PluginMethod
+  public void listFilesNextPage(PluginCall call) {
+    io.execute(handleKey(fileListings, call), handlePriority(fileListings, call), () -> {
+      FileListing listing = null;
+      Integer id = null;
+      try {
+        id = call.getInt("id");
+        listing = getHandle(fileListings, id);
+        JSObject response = new JSObject().put("files", toJson(listing.listing.next(listing.pageSize)));
+        boolean done = listing.listing.isEnded();
+        response.put("end", done);
+        if (done) {
+          Utils.silentClose(listing.listing);
+          fileListings.remove(id);
+        }
+        call.resolve(response);
+      } catch (LocalFilesException e) {
+        e.reject(call);
+      } catch (Exception e) {
+        if (listing != null) Utils.silentClose(listing.listing);
+        fileListings.remove(id);
+        Utils.reject(call, e);
+      }
+    });
+  }
+
+  private static JSONArray toJson(List<DirectoryListing.FileInfo> files) throws JSONException {
+    JSONArray array = new JSONArray();
+    for (DirectoryListing.FileInfo file : files)
+      array.put(new JSObject().put("filename", file.filename).put("size", file.size).put("modified", file.modified));
+    return array;
+  }
+
+
   /**
    * Input:
    *  - dir
    *  - filename
+   * The journal of the file, if any, is deleted too.
    */
   @PluginMethod
   public void deleteFile(PluginCall call) {
-    try {
-      Files.deleteIfExists(toFile(call).toPath());
-      call.resolve();
-    } catch (LocalFilesException e) {
-      e.reject(call);
-    } catch (Exception e) {
-      Utils.reject(call, e);
-    }
+    io.execute(fileKey(call), priority(call), () -> {
+      try {
+        latestWrites.remove(fileKey(call));
+        deleteBlobs(getDir(call), List.of(getFilename(call)));
+        journal.deleted(toFile(call));
+        fileIndex.deleted(getDir(call), List.of(getFilename(call) + JsonlJournal.SUFFIX));
+        call.resolve();
+      } catch (LocalFilesException e) {
+        e.reject(call);
+      } catch (Exception e) {
+        Utils.reject(call, e);
+      }
+    });
   }
 
   /**
@@ -562,56 +1616,237 @@ public class LocalFilesPlugin extends Plugin {
    */
   @PluginMethod
   public void deleteFiles(PluginCall call) {
-    try {
-      String dir = call.getString("dir");
-      if (dir == null || dir.isBlank()) throw new LocalFilesException(LocalFilesException.Code.INVALID_INPUT, "Missing dir");
-      JSONArray files = call.getArray("files");
-      if (files != null) {
-        File subDir = new File(root, dir);
-        for (int i = 0; i < files.length(); ++i)
-          Files.deleteIfExists(new File(subDir, files.getString(i)).toPath());
+    io.execute(dirKey(call), priority(call), () -> {
+      try {
+        String dir = call.getString("dir");
+        if (dir == null || dir.isBlank()) throw new LocalFilesException(LocalFilesException.Code.INVALID_INPUT, "Missing dir");
+        JSONArray files = call.getArray("files");
+        if (files != null) {
+          List<String> filenames = new ArrayList<>(files.length());
+          for (int i = 0; i < files.length(); ++i) filenames.add(files.getString(i));
+          for (String filename : filenames) latestWrites.remove(dir + "/" + filename);
+          deleteBlobs(dir, filenames);
+        }
+        call.resolve();
+      } catch (LocalFilesException e) {
+        e.reject(call);
+      } catch (Exception e) {
+        Utils.reject(call, e);
       }
-      call.resolve();
-    } catch (LocalFilesException e) {
-      e.reject(call);
-    } catch (Exception e) {
-      Utils.reject(call, e);
-    }
+    });
   }
 
+  /**
+   * Delete the files of a directory, keeping its sub-directories.
+   * The directory is moved to the trash then re-created with its sub-directories, so this is immediate
+   * whatever the number of files, which are deleted in background. Tile downloads into the directory are cancelled.
+   * Input:
+   *  - dir
+   */
   @PluginMethod
   public void deleteAllFiles(PluginCall call) {
-    try {
-      String dir = call.getString("dir");
-      if (dir == null || dir.isBlank()) throw new LocalFilesException(LocalFilesException.Code.INVALID_INPUT, "Missing dir");
-      File subDir = new File(root, dir);
-      if (subDir.exists()) {
-        File[] files = subDir.listFiles();
-        if (files != null) {
-          for (var file : files)
-            if (file.isFile()) file.delete();
+    io.execute(dirKey(call), priority(call), () -> {
+      try {
+        String dir = call.getString("dir");
+        if (dir == null || dir.isBlank()) throw new LocalFilesException(LocalFilesException.Code.INVALID_INPUT, "Missing dir");
+        File subDir = new File(root, dir);
+        PackStore previousPack = packs.get(dir);
+        boolean packed = previousPack != null;
+        boolean deduplicated = packed && previousPack.isDeduplicated();
+        writeBehind.discard(dir, false);
+        supersedeWrites(dir, false);
+        packs.invalidate(dir);
+        fileIndex.invalidate(dir);
+        archives.invalidate(dir);
+        readCache.invalidate(dir);
+        evictor.invalidate(dir);
+        downloads.cancel(dir, false);
+        downloads.forget(dir, false);
+        if (subDir.exists()) {
+          File trashed = trash.moveToTrashPending(subDir);
+          if (trashed != null) {
+            subDir.mkdirs();
+            restoreSubDirectories(trashed, subDir);
+            trash.release(trashed);
+          } else {
+            File[] children = subDir.listFiles();
+            if (children != null)
+              for (var file : children)
+                if (file.isFile()) file.delete();
+            if (packed) Trash.deleteRecursive(new File(subDir, PackStore.DIR_NAME));
+          }
         }
+        if (packed) packs.enable(dir, deduplicated);
+        call.resolve();
+      } catch (LocalFilesException e) {
+        e.reject(call);
+      } catch (Exception e) {
+        Utils.reject(call, e);
       }
-      call.resolve();
-    } catch (LocalFilesException e) {
-      e.reject(call);
-    } catch (Exception e) {
-      Utils.reject(call, e);
-    }
+    });
   }
 
+  /**
+   * The directory is moved to the trash, so this is immediate whatever its size, its content being deleted in background.
+   * Tile downloads into the directory or its sub-directories are cancelled.
+   * Input:
+   *  - dir
+   */
   @PluginMethod
   public void deleteDirectoryAndContent(PluginCall call) {
-    try {
-      String dir = call.getString("dir");
-      if (dir == null || dir.isBlank()) throw new LocalFilesException(LocalFilesException.Code.INVALID_INPUT, "Missing dir");
-      File subDir = new File(root, dir);
-      if (subDir.exists()) {
-        if (!deleteDirRecursive(subDir)) {
+    io.execute(dirKey(call), priority(call), () -> {
+      try {
+        String dir = call.getString("dir");
+        if (dir == null || dir.isBlank()) throw new LocalFilesException(LocalFilesException.Code.INVALID_INPUT, "Missing dir");
+        File subDir = new File(root, dir);
+        writeBehind.discard(dir, true);
+        supersedeWrites(dir, true);
+        packs.invalidate(dir);
+        fileIndex.invalidate(dir);
+        archives.invalidate(dir);
+        readCache.invalidate(dir);
+        evictor.invalidate(dir);
+        downloads.cancel(dir, true);
+        downloads.forget(dir, true);
+        if (subDir.exists() && !trash.moveToTrash(subDir) && !Trash.deleteRecursive(subDir)) {
           call.reject("Cannot delete directory: " + dir);
           return;
         }
+        call.resolve();
+      } catch (LocalFilesException e) {
+        e.reject(call);
+      } catch (Exception e) {
+        Utils.reject(call, e);
+      }
+    });
+  }
+
+  /** Move back the sub-directories of a directory moved to the trash, except the content of packed storage. */
+  private static void restoreSubDirectories(File trashed, File dir) throws IOException {
+    File[] children = trashed.listFiles();
+    if (children == null) return;
+    for (File child : children) {
+      if (!child.isDirectory() || child.getName().equals(PackStore.DIR_NAME)) continue;
+      Files.move(child.toPath(), new File(dir, child.getName()).toPath(), StandardCopyOption.ATOMIC_MOVE);
+    }
+  }
+
+  /**
+   * Executed in the queue of the previous directory, and rejected with code busy while chunked operations
+   * are in progress on files of the previous or new directory, so they cannot write to a moved directory.
+   * Tile downloads into the previous directory are cancelled.
+   * Input:
+   *  - previousPath
+   *  - newPath
+   */
+  @PluginMethod
+  public void renameDirectory(PluginCall call) {
+    io.execute(call.getString("previousPath"), priority(call), () -> {
+      try {
+        String previousPath = call.getString("previousPath");
+        if (previousPath == null || previousPath.isBlank()) throw new LocalFilesException(LocalFilesException.Code.INVALID_INPUT, "Missing previousPath");
+        String newPath = call.getString("newPath");
+        if (newPath == null || newPath.isBlank()) throw new LocalFilesException(LocalFilesException.Code.INVALID_INPUT, "Missing newPath");
+        File previousFile = new File(root, previousPath);
+        File newFile = new File(root, newPath);
+        if (newFile.exists()) throw new LocalFilesException(LocalFilesException.Code.INVALID_INPUT, "newPath already exists");
+        if (hasOpenHandles(previousPath) || hasOpenHandles(newPath))
+          throw new LocalFilesException(LocalFilesException.Code.BUSY, "Operations in progress in the directory");
+        downloads.cancel(previousPath, true);
+        downloads.forget(previousPath, true);
+        writeBehind.flushTree(previousPath);
+        packs.invalidate(previousPath);
+        packs.invalidate(newPath);
+        if (previousFile.exists()) {
+          newFile.getParentFile().mkdirs();
+          Files.move(previousFile.toPath(), newFile.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        }
+        fileIndex.invalidate(previousPath);
+        fileIndex.invalidate(newPath);
+        archives.invalidate(previousPath);
+        readCache.invalidate(previousPath);
+        archives.invalidate(newPath);
+        readCache.invalidate(newPath);
+        evictor.invalidate(previousPath);
+        evictor.invalidate(newPath);
+        call.resolve();
+      } catch (LocalFilesException e) {
+        e.reject(call);
+      } catch (Exception e) {
+        Utils.reject(call, e);
+      }
+    });
+  }
+
+  /**
+   * Input:
+   *  - dir
+   *  - files: string[]
+   * Output:
+   *  - files: {filename: string, size: number}[]
+   */
+  @PluginMethod
+  public void getFilesSize(PluginCall call) {
+    io.execute(dirKey(call), priority(call), () -> {
+      try {
+        String dir = call.getString("dir");
+        if (dir == null || dir.isBlank()) throw new LocalFilesException(LocalFilesException.Code.INVALID_INPUT, "Missing dir");
+        String[] filenames = toStringArray(call.getArray("files"));
+        long[] sizes = blobSizes(dir, filenames);
+        JSONArray filesOutput = new JSONArray();
+        for (int i = 0; i < filenames.length; ++i)
+          filesOutput.put(new JSObject().put("filename", filenames[i]).put("size", Math.max(0L, sizes[i])));
+        call.resolve(new JSObject().put("files", filesOutput));
+      } catch (LocalFilesException e) {
+        e.reject(call);
+      } catch (Exception e) {
+        Utils.reject(call, e);
+      }
+    });
+  }
+
+  /**
+   * Store the files of a directory in a few large pack files instead of one file each, which is much
+   * more efficient for directories containing a huge number of small files.
+   * Existing files are moved into the pack, then the same methods are used to access the files.
+   * Input:
+   *  - dir
+   *  - deduplicate: boolean, true to store identical contents only once, for directories where many files are identical
+   */
+  @PluginMethod
+  public void enablePackedStorage(PluginCall call) {
+    io.execute(dirKey(call), priority(call), () -> {
+      try {
+        String dir = getDir(call);
+        writeBehind.flush(dir);
+        packs.enable(dir, Boolean.TRUE.equals(call.getBoolean("deduplicate")));
+        fileIndex.invalidate(dir);
+        archives.invalidate(dir);
+        readCache.invalidate(dir);
+        call.resolve();
+      } catch (LocalFilesException e) {
+        e.reject(call);
+      } catch (Exception e) {
+        Utils.reject(call, e);
       }
+    });
+  }
+  /**
+   * Delay the writes of saveBinaryFiles in a directory, for directories where the same files are saved
+   * again and again: a file saved several times during the delay is written only once.
+   * Delayed files are kept in memory and are visible to all other methods. They are written after the delay,
+   * on memory pressure, or when the application goes to background, so a write error cannot be reported:
+   * this is for files which can be lost, like caches.
+   * The setting is kept in memory, so it must be set again each time the application starts.
+   * Input:
+   *  - dir
+   *  - delay: in milliseconds, default to 2 seconds
+   */
+  @PluginMethod
+  public void enableWriteBehind(PluginCall call) {
+    try {
+      Long delay = call.getLong("delay");
+      writeBehind.enable(getDir(call), delay != null && delay > 0 ? delay : WriteBehindBuffer.DEFAULT_DELAY);
       call.resolve();
     } catch (LocalFilesException e) {
       e.reject(call);
@@ -620,27 +1855,84 @@ public class LocalFilesPlugin extends Plugin {
     }
   }
 
-  private boolean deleteDirRecursive(File dir) {
-    File[] files = dir.listFiles();
-    if (files == null) return false;
-    for (var file : files) {
-      if (file.isFile()) file.delete();
-      else if (!file.getName().equals(".") && !file.getName().equals("..") && file.isDirectory()) deleteDirRecursive(file);
+
+  /**
+   * Usage of directories, maintained in memory as files are written and deleted.
+   * The first request on a directory scans it, unless it uses packed storage.
+   * Input:
+   *  - dirs: string[]
+   * Output:
+   *  - dirs: {dir, files, size}[] with files the number of files and size their total size,
+   *    not including sub-directories
+   */
+  @PluginMethod
+  public void getDirectoryStats(PluginCall call) {
+    JSONArray dirs = call.getArray("dirs");
+    if (dirs == null || dirs.length() == 0) {
+      call.resolve(new JSObject().put("dirs", new JSONArray()));
+      return;
+    }
+    DirectoryStatsRequest request = new DirectoryStatsRequest(call, dirs.length());
+    StorageExecutor.Priority priority = priority(call);
+    for (int i = 0; i < dirs.length(); ++i) {
+      String dir = dirs.optString(i);
+      int index = i;
+      // by directory, so the stats include the pending operations on its files
+      io.execute(dir, priority, () -> {
+        JSObject result = new JSObject().put("dir", dir);
+        try {
+          writeBehind.flush(dir);
+          PackStore pack = packs.get(dir);
+          if (pack != null) {
+            result.put("files", pack.count()).put("size", pack.totalSize());
+          } else {
+            long[] totals = fileIndex.totals(dir);
+            result.put("files", totals[0]).put("size", totals[1]);
+          }
+        } catch (Exception e) {
+          result.put("files", 0).put("size", 0).put("error", e.getMessage());
+        }
+        request.set(index, result);
+      });
+    }
+  }
+
+  private static class DirectoryStatsRequest {
+    private final PluginCall call;
+    private final JSObject[] results;
+    private int remaining;
+
+    private DirectoryStatsRequest(PluginCall call, int count) {
+      this.call = call;
+      this.results = new JSObject[count];
+      this.remaining = count;
+    }
+
+    private synchronized void set(int index, JSObject result) {
+      results[index] = result;
+      if (--remaining > 0) return;
+      JSONArray dirs = new JSONArray();
+      for (JSObject r : results) dirs.put(r);
+      call.resolve(new JSObject().put("dirs", dirs));
     }
-    return dir.delete();
   }
 
+  /**
+   * Keep a directory under a quota, by deleting its least recently used files in background when files are written.
+   * The quota is kept in memory, so it must be set again each time the application starts.
+   * Input:
+   *  - dir
+   *  - maxSize: maximum total size of the files directly in the directory, in bytes
+   *  - minFreeSpace: minimum free space to keep on the device, in bytes
+   * If none is given, the quota of the directory is removed.
+   */
   @PluginMethod
-  public void renameDirectory(PluginCall call) {
+  public void setDirectoryQuota(PluginCall call) {
     try {
-      String previousPath = call.getString("previousPath");
-      if (previousPath == null || previousPath.isBlank()) throw new LocalFilesException(LocalFilesException.Code.INVALID_INPUT, "Missing previousPath");
-      String newPath = call.getString("newPath");
-      if (newPath == null || newPath.isBlank()) throw new LocalFilesException(LocalFilesException.Code.INVALID_INPUT, "Missing newPath");
-      File previousFile = new File(root, previousPath);
-      File newFile = new File(root, newPath);
-      if (newFile.exists()) throw new LocalFilesException(LocalFilesException.Code.INVALID_INPUT, "newPath already exists");
-      if (previousFile.exists()) previousFile.renameTo(newFile);
+      String dir = getDir(call);
+      Long maxSize = call.getLong("maxSize");
+      Long minFreeSpace = call.getLong("minFreeSpace");
+      evictor.setQuota(dir, maxSize != null ? maxSize : 0, minFreeSpace != null ? minFreeSpace : 0);
       call.resolve();
     } catch (LocalFilesException e) {
       e.reject(call);
@@ -650,27 +1942,66 @@ public class LocalFilesPlugin extends Plugin {
   }
 
   /**
+   * Names of the files deleted by the quota of a directory since the last call, which are then forgotten.
    * Input:
    *  - dir
+   * Output:
    *  - files: string[]
+   */
+  @PluginMethod
+  public void takeEvictedFiles(PluginCall call) {
+    io.execute(dirKey(call), priority(call), () -> {
+      try {
+        JSONArray files = new JSONArray();
+        for (String filename : evictor.takeEvicted(getDir(call))) files.put(filename);
+        call.resolve(new JSObject().put("files", files));
+      } catch (LocalFilesException e) {
+        e.reject(call);
+      } catch (Exception e) {
+        Utils.reject(call, e);
+      }
+    });
+  }
+
+  /**
+   * Download map tiles natively, storing them directly into the directory. The download continues in a foreground service
+   * while the application is in background. The stored tiles are then given by takeDownloadedFiles.
+   * Input:
+   *  - dir
+   *  - tiles: {filename, url}[]
+   *  - maxConcurrentRequests: maximum number of tiles downloaded in parallel
+   *  - headers: optional HTTP headers to send
+   *  - notificationTitle: title of the notification showing the progress
    * Output:
-   *  - files: {filename: string, size: number}[]
+   *  - id: to get the progress or cancel the download
    */
   @PluginMethod
-  public void getFilesSize(PluginCall call) {
+  public void startTileDownload(PluginCall call) {
     try {
-      String dir = call.getString("dir");
-      if (dir == null || dir.isBlank()) throw new LocalFilesException(LocalFilesException.Code.INVALID_INPUT, "Missing dir");
-      JSONArray filesInput = call.getArray("files");
-      JSONArray filesOutput = new JSONArray();
-      if (filesInput != null) {
-        File subDir = new File(root, dir);
-        for (int i = 0; i < filesInput.length(); ++i) {
-          File file = new File(subDir, filesInput.getString(i));
-          filesOutput.put(new JSObject().put("filename", file.getName()).put("size", file.exists() && file.isFile() ? file.length() : 0L));
+      String dir = getDir(call);
+      JSONArray tiles = call.getArray("tiles");
+      if (tiles == null) throw new LocalFilesException(LocalFilesException.Code.INVALID_INPUT, "Missing tiles");
+      String[] filenames = new String[tiles.length()];
+      String[] urls = new String[tiles.length()];
+      for (int i = 0; i < tiles.length(); ++i) {
+        JSONObject tile = tiles.getJSONObject(i);
+        filenames[i] = tile.optString("filename");
+        urls[i] = tile.optString("url");
+        if (filenames[i].isBlank() || urls[i].isBlank()) throw new LocalFilesException(LocalFilesException.Code.INVALID_INPUT, "Missing filename or url");
+      }
+      Map<String, String> headers = new HashMap<>();
+      JSObject headersObject = call.getObject("headers");
+      if (headersObject != null) {
+        for (Iterator<String> it = headersObject.keys(); it.hasNext(); ) {
+          String name = it.next();
+          headers.put(name, headersObject.getString(name));
         }
       }
-      call.resolve(new JSObject().put("files", filesOutput));
+      String title = call.getString("notificationTitle");
+      if (title != null) downloadTitle = title;
+      new File(root, dir).mkdirs();
+      TileDownload download = downloads.start(dir, filenames, urls, headers, call.getInt("maxConcurrentRequests", 2));
+      call.resolve(new JSObject().put("id", download.id));
     } catch (LocalFilesException e) {
       e.reject(call);
     } catch (Exception e) {
@@ -678,12 +2009,610 @@ public class LocalFilesPlugin extends Plugin {
     }
   }
 
-  private File toFile(PluginCall call) throws LocalFilesException {
+  /**
+   * Once a download is finished, its final progress remains available for some minutes, so a poll can be retried.
+   * Input:
+   *  - id
+   * Output:
+   *  - total: number of tiles to download
+   *  - done: number of tiles downloaded and stored, or failed
+   *  - failed: number of tiles which cannot be downloaded or stored
+   *  - bytes: size of the stored tiles
+   *  - finished: boolean
+   */
+  @PluginMethod
+  public void getTileDownloadProgress(PluginCall call) {
+    Integer id = call.getInt("id");
+    TileDownload download = id != null ? downloads.get(id) : null;
+    if (download == null) {
+      new LocalFilesException(LocalFilesException.Code.INVALID_ID, "Unknown download").reject(call);
+      return;
+    }
+    call.resolve(new JSObject()
+      .put("total", download.total())
+      .put("done", download.done())
+      .put("failed", download.failed())
+      .put("bytes", download.bytes())
+      .put("finished", download.isFinished()));
+  }
+
+  /**
+   * Tiles already stored remain, and are given by takeDownloadedFiles.
+   * Input:
+   *  - id
+   */
+  @PluginMethod
+  public void cancelTileDownload(PluginCall call) {
+    Integer id = call.getInt("id");
+    if (id != null) downloads.cancel(id);
+    call.resolve();
+  }
+
+  /**
+   * Files stored by tile downloads into a directory since the last call, which are then forgotten.
+   * Input:
+   *  - dir
+   * Output:
+   *  - files: {filename, size}[]
+   */
+  @PluginMethod
+  public void takeDownloadedFiles(PluginCall call) {
+    io.execute(dirKey(call), priority(call), () -> {
+      try {
+        JSONArray files = new JSONArray();
+        for (TileDownloads.Downloaded file : downloads.takeDownloaded(getDir(call)))
+          files.put(new JSObject().put("filename", file.filename).put("size", file.size));
+        call.resolve(new JSObject().put("files", files));
+      } catch (LocalFilesException e) {
+        e.reject(call);
+      } catch (Exception e) {
+        Utils.reject(call, e);
+      }
+    });
+  }
+
+  /** Store downloaded tiles with the directory's key, like saveBinaryFiles, and wait for them to be written, so the download cannot outpace the storage. */
+  private void storeDownloadedTiles(TileDownload download, List<String> filenames, List<byte[]> contents) throws IOException {
+    String dir = download.dir;
+    CompletableFuture<Void> result = new CompletableFuture<>();
+    io.execute(dir, () -> {
+      try {
+        // the directory may have been deleted or moved while waiting
+        if (download.isCancelled()) throw new InterruptedIOException("Download cancelled");
+        // a tile saved meanwhile by the application would be older
+        writeBehind.remove(dir, filenames);
+        storeBlobs(dir, filenames, contents);
+        downloads.stored(dir, filenames, contents);
+        result.complete(null);
+      } catch (Exception e) {
+        result.completeExceptionally(e);
+      }
+    });
+    try {
+      result.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Download cancelled");
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof IOException) throw (IOException) e.getCause();
+      throw new IOException(e.getCause());
+    }
+  }
+
+  /** Store files with the directory's key. */
+  private void storeBlobs(String dir, List<String> filenames, List<byte[]> contents) throws IOException {
+    PackStore pack = packs.get(dir);
+    if (pack != null) {
+      pack.putAll(filenames, contents);
+      for (String filename : filenames) readCache.changed(dir, filename);
+    } else {
+      File subDir = new File(root, dir);
+      subDir.mkdirs();
+      for (int i = 0; i < filenames.size(); ++i) {
+        String filename = filenames.get(i);
+        File targetFile = new File(subDir, filename);
+        ReentrantLock lock = fileLocks.get(dir, filename);
+        lock.lock();
+        try {
+          saveFileContent(targetFile, contents.get(i));
+          fileIndex.written(dir, filename, targetFile);
+          archives.changed(dir, filename);
+          readCache.changed(dir, filename);
+        } finally {
+          lock.unlock();
+        }
+      }
+    }
+    evictor.written(dir, filenames);
+  }
+
+  private void startDownloadService() {
+    NotificationManager manager = (NotificationManager) getContext().getSystemService(Context.NOTIFICATION_SERVICE);
+    NotificationChannel channel = new NotificationChannel(TileDownloadService.CHANNEL_ID, getAppString("tile_download_notification_channel_name", "Map downloads"), NotificationManager.IMPORTANCE_LOW);
+    channel.enableLights(false);
+    channel.enableVibration(false);
+    channel.setSound(null, null);
+    manager.createNotificationChannel(channel);
+    getContext().bindService(
+      new Intent(getContext(), TileDownloadService.class),
+      new ServiceConnection() {
+        @Override
+        public void onServiceConnected(ComponentName name, IBinder binder) {
+          downloadService = (TileDownloadService.LocalBinder) binder;
+          downloadService.setOnTimeout(downloads::stopAll);
+          downloadsChanged(downloads.isRunning());
+        }
+
+        @Override
+        public void onServiceDisconnected(ComponentName name) {
+          downloadService = null;
+        }
+      },
+      Context.BIND_AUTO_CREATE
+    );
+  }
+
+  private synchronized void downloadsChanged(boolean running) {
+    TileDownloadService.LocalBinder service = downloadService;
+    if (service == null) return;
+    if (running) service.downloading(downloadNotification());
+    else service.finished();
+  }
+
+  private void updateDownloadNotification() {
+    if (downloads.isRunning()) downloadsChanged(true);
+  }
+
+  private Notification downloadNotification() {
+    long[] progress = downloads.progress();
+    Notification.Builder builder = new Notification.Builder(getContext(), TileDownloadService.CHANNEL_ID)
+      .setContentTitle(downloadTitle != null ? downloadTitle : getAppString("tile_download_notification_title", "Downloading maps"))
+      .setContentText(progress[1] + " / " + progress[0])
+      .setProgress((int) progress[0], (int) progress[1], false)
+      .setOngoing(true)
+      .setOnlyAlertOnce(true);
+    int icon = getContext().getResources().getIdentifier("trailence", "drawable", getContext().getPackageName());
+    if (icon != 0) builder.setSmallIcon(icon);
+    Intent launchIntent = getContext().getPackageManager().getLaunchIntentForPackage(getContext().getPackageName());
+    if (launchIntent != null) {
+      launchIntent.addFlags(Intent.FLAG_ACTIVITY_REORDER_TO_FRONT);
+      builder.setContentIntent(PendingIntent.getActivity(getContext(), 0, launchIntent, PendingIntent.FLAG_UPDATE_CURRENT | PendingIntent.FLAG_IMMUTABLE));
+    }
+    return builder.build();
+  }
+
+  // Gets a string from the app's strings.xml file, resorting to a fallback if it is not defined.
+  private String getAppString(String name, String fallback) {
+    int id = getContext().getResources().getIdentifier(name, "string", getContext().getPackageName());
+    return id == 0 ? fallback : getContext().getString(id);
+  }
+
+  private class EvictorStorage implements QuotaEvictor.Storage {
+    @Override
+    public long usedSize(String dir) throws IOException {
+      PackStore pack = packs.get(dir);
+      return pack != null ? pack.totalSize() : fileIndex.totals(dir)[1];
+    }
+
+    @Override
+    public List<String> namesByAge(String dir) throws IOException {
+      PackStore pack = packs.get(dir);
+      if (pack != null) return pack.namesByAge();
+      return fileIndex.namesByAge(dir);
+    }
+
+    @Override
+    public long[] sizes(String dir, String[] names) throws IOException {
+      return blobSizes(dir, names);
+    }
+
+    @Override
+    public void delete(String dir, List<String> names) throws IOException {
+      deleteBlobs(dir, names);
+    }
+  }
+
+  /** Open a stored file for reading from the given position, or return null if it does not exist. Small files are served from the cache. */
+  private BlobStream openBlob(String dir, String filename, long position) throws IOException {
+    byte[] pending = writeBehind.get(dir, filename);
+    if (pending != null) {
+      ByteArrayInputStream in = new ByteArrayInputStream(pending);
+      in.skip(position);
+      return new BlobStream(pending.length, in);
+    }
+    byte[] cached = readCache.get(dir, filename, () -> loadCacheableBlob(dir, filename));
+    if (cached != null) {
+      evictor.accessed(dir, filename);
+      int start = (int) Math.min(position, cached.length);
+      return new BlobStream(cached.length, new ByteArrayInputStream(cached, start, cached.length - start));
+    }
+    BlobStream blob = openStoredBlob(dir, filename, position);
+    if (blob != null) evictor.accessed(dir, filename);
+    return blob;
+  }
+
+  /** Read a file to put it in the cache, or return null if it does not exist or is too large. */
+  private byte[] loadCacheableBlob(String dir, String filename) throws IOException {
+    PackStore pack = packs.get(dir);
+    long size = pack != null ? pack.size(filename) : new File(new File(root, dir), filename).length();
+    if (size < 0 || size > BlobCache.MAX_ENTRY_SIZE) return null;
+    BlobStream blob = openStoredBlob(dir, filename, 0);
+    if (blob == null || blob.size > BlobCache.MAX_ENTRY_SIZE) {
+      if (blob != null) blob.close();
+      return null;
+    }
+    try (blob) {
+      return Utils.readNBytes(blob.in, (int) blob.size);
+    }
+  }
+
+  private BlobStream openStoredBlob(String dir, String filename, long position) throws IOException {
+    PackStore pack = packs.get(dir);
+    if (pack != null) return pack.open(filename, position);
+    File file = new File(new File(root, dir), filename);
+    if (!file.isFile()) return null;
+    long size = file.length();
+    FileInputStream in = new FileInputStream(file);
+    try {
+      if (position > 0) in.getChannel().position(position);
+    } catch (IOException e) {
+      in.close();
+      throw e;
+    }
+    return new BlobStream(size, in);
+  }
+
+  /** Open a stored file for positional reads, or return null if it does not exist. */
+  private BlobChannel openBlobChannel(String dir, String filename) throws IOException {
+    byte[] pending = writeBehind.get(dir, filename);
+    if (pending != null) return new BlobChannel(pending);
+    byte[] cached = readCache.getIfPresent(dir, filename);
+    if (cached != null) {
+      evictor.accessed(dir, filename);
+      return new BlobChannel(cached);
+    }
+    PackStore pack = packs.get(dir);
+    BlobChannel blob;
+    if (pack != null) {
+      blob = pack.openChannel(filename);
+    } else {
+      File file = new File(new File(root, dir), filename);
+      if (!file.isFile()) return null;
+      FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+      blob = new BlobChannel(channel, 0, channel.size());
+    }
+    if (blob != null) evictor.accessed(dir, filename);
+    return blob;
+  }
+
+  /** Sizes of stored files, -1 for the ones which do not exist. Answered from memory, without accessing each file. */
+  private long[] blobSizes(String dir, String[] filenames) throws IOException {
+    long[] sizes = new long[filenames.length];
+    PackStore pack = packs.get(dir);
+    if (pack != null) {
+      for (int i = 0; i < filenames.length; ++i) sizes[i] = pack.size(filenames[i]);
+    } else {
+      FileIndex.Entry[] entries = fileIndex.getAll(dir, filenames);
+      for (int i = 0; i < filenames.length; ++i) sizes[i] = entries[i] != null ? entries[i].size : -1;
+    }
+    for (int i = 0; i < filenames.length; ++i) {
+      byte[] pending = writeBehind.get(dir, filenames[i]);
+      if (pending != null) sizes[i] = pending.length;
+    }
+    return sizes;
+  }
+
+  /** Store a file fully written into a temporary file by a chunked write, unless another write of the file started after it. */
+  private void commitBlob(String dir, String filename, File tempFile, int id) throws IOException {
+    ReentrantLock lock = fileLocks.get(dir, filename);
+    lock.lock();
+    try {
+      if (!latestWrites.remove(dir + "/" + filename, id)) {
+        // a more recent write of the file started: it wins
+        Files.deleteIfExists(tempFile.toPath());
+        return;
+      }
+      writeBehind.remove(dir, List.of(filename));
+      PackStore pack = packs.get(dir);
+      if (pack != null) {
+        try {
+          pack.put(filename, tempFile);
+        } finally {
+          Files.deleteIfExists(tempFile.toPath());
+          readCache.changed(dir, filename);
+        }
+      } else {
+        File targetFile = new File(new File(root, dir), filename);
+        TempFiles.commit(tempFile, targetFile);
+        fileIndex.written(dir, filename, targetFile);
+        archives.changed(dir, filename);
+        readCache.changed(dir, filename);
+      }
+    } finally {
+      lock.unlock();
+    }
+    evictor.written(dir, List.of(filename));
+  }
+
+  /** Update the index after a JSONL file or its journal changed. */
+  private void jsonlFileChanged(String dir, String filename, File file) throws IOException {
+    readCache.changed(dir, filename);
+    fileIndex.written(dir, filename, file);
+    fileIndex.written(dir, filename + JsonlJournal.SUFFIX, JsonlJournal.journalFile(file));
+  }
+
+  /** True if a chunked operation is in progress on the directory or any file under it. */
+  private boolean hasOpenHandles(String dir) {
+    String prefix = dir + "/";
+    for (Map<Integer, ? extends Handle> handles : List.of(binaryReads, jsonlReads, binaryWrites, jsonlWrites, fileListings, readStreams))
+      for (Handle handle : handles.values())
+        if (handle.key.equals(dir) || handle.key.startsWith(prefix)) return true;
+    return false;
+  }
+
+  /** Discard the chunked writes in progress in a directory being deleted, so they do not re-create their files. */
+  private void supersedeWrites(String dir, boolean subDirectories) {
+    String prefix = dir + "/";
+    latestWrites.keySet().removeIf(key -> key.startsWith(prefix) && (subDirectories || key.indexOf('/', prefix.length()) < 0));
+  }
+
+  private void deleteBlobs(String dir, List<String> filenames) throws IOException {
+    writeBehind.remove(dir, filenames);
+    evictor.deleted(dir, filenames);
+    PackStore pack = packs.get(dir);
+    if (pack == null) {
+      File subDir = new File(root, dir);
+      try {
+        for (String filename : filenames) {
+          ReentrantLock lock = fileLocks.get(dir, filename);
+          lock.lock();
+          try {
+            Files.deleteIfExists(new File(subDir, filename).toPath());
+          } finally {
+            lock.unlock();
+          }
+        }
+      } finally {
+        fileIndex.deleted(dir, filenames);
+        for (String filename : filenames) {
+          archives.changed(dir, filename);
+          readCache.changed(dir, filename);
+        }
+      }
+      return;
+    }
+    pack.removeAll(filenames);
+    for (String filename : filenames) readCache.changed(dir, filename);
+    if (pack.startCompaction()) {
+      io.execute(dir + "/" + PackStore.DIR_NAME, StorageExecutor.Priority.BACKGROUND, () -> {
+        try {
+          pack.compact();
+        } catch (Exception e) {
+          Logger.error("Error compacting pack of " + dir, e);
+        }
+      });
+    }
+  }
+
+  private static String[] toStringArray(JSONArray array) throws JSONException {
+    if (array == null) return new String[0];
+    String[] result = new String[array.length()];
+    for (int i = 0; i < result.length; ++i) result[i] = array.getString(i);
+    return result;
+  }
+
+  private static String fileKey(PluginCall call) {
+    return call.getString("dir") + "/" + call.getString("filename");
+  }
+
+  private static String dirKey(PluginCall call) {
+    return call.getString("dir");
+  }
+
+  /** Return the handle of a chunk operation, and mark it as used. */
+  private static <T extends Handle> T getHandle(Map<Integer, T> handles, Integer id) throws LocalFilesException {
+    if (id == null)
+      throw new LocalFilesException(LocalFilesException.Code.INVALID_ID, "Missing id");
+    T handle = handles.get(id);
+    if (handle == null)
+      throw new LocalFilesException(LocalFilesException.Code.INVALID_ID, "Unknown id");
+    handle.lastAccess = System.currentTimeMillis();
+    return handle;
+  }
+
+  private void expireIdleHandles() {
+    expireIdleHandles(binaryReads);
+    expireIdleHandles(jsonlReads);
+    expireIdleHandles(binaryWrites);
+    expireIdleHandles(jsonlWrites);
+    expireIdleHandles(fileListings);
+    expireIdleHandles(readStreams);
+    downloads.expireFinished();
+  }
+
+  private <T extends Handle> void expireIdleHandles(Map<Integer, T> handles) {
+    long now = System.currentTimeMillis();
+    for (Map.Entry<Integer, T> entry : handles.entrySet()) {
+      T handle = entry.getValue();
+      if (now - handle.lastAccess < HANDLE_IDLE_TIMEOUT) continue;
+      // executed with the handle's key, so a chunk already queued is processed first
+      io.execute(handle.key, handle.priority, () -> {
+        if (System.currentTimeMillis() - handle.lastAccess < HANDLE_IDLE_TIMEOUT) return;
+        if (!handles.remove(entry.getKey(), handle)) return;
+        handle.release();
+        expiredHandles.incrementAndGet();
+        Logger.warn("Idle handle expired: " + handle.getClass().getSimpleName() + " on " + handle.key);
+      });
+    }
+  }
+
+  /**
+   * Abandon a read continued by chunks (readBinaryFile, readJsonlFile, listFilesByPage or a streamed read): chunks already requested
+   * fail with INVALID_ID, and the file is closed once the chunk being read, if any, is done. Unknown ids are ignored.
+   * Input:
+   *  - id
+   */
+  @PluginMethod
+  public void cancelRead(PluginCall call) {
+    Integer id = call.getInt("id");
+    if (id != null) {
+      cancelHandle(binaryReads, id);
+      cancelHandle(jsonlReads, id);
+      cancelHandle(fileListings, id);
+      cancelHandle(readStreams, id);
+    }
+    call.resolve();
+  }
+
+  /**
+   * Abandon a write continued by chunks (saveBinaryFile or saveJsonlFile): chunks already requested fail with INVALID_ID,
+   * the temporary file is deleted, and the previous content of the file, if any, is kept. Unknown ids are ignored.
+   * Input:
+   *  - id
+   */
+  @PluginMethod
+  public void cancelWrite(PluginCall call) {
+    Integer id = call.getInt("id");
+    if (id != null) {
+      cancelHandle(binaryWrites, id);
+      cancelHandle(jsonlWrites, id);
+      latestWrites.values().remove(id);
+    }
+    call.resolve();
+  }
+
+  private <T extends Handle> void cancelHandle(Map<Integer, T> handles, Integer id) {
+    T handle = handles.remove(id);
+    if (handle == null) return;
+    // with the handle's key, so it is not released while a chunk is being processed
+    io.execute(handle.key, StorageExecutor.Priority.INTERACTIVE, handle::release);
+  }
+
+  /**
+   * Output:
+   *  - binaryReads, jsonlReads, binaryWrites, jsonlWrites, fileListings, readStreams: {count, pendingBytes, tempBytes, oldestAge, longestIdle}
+   *    with pendingBytes the remaining bytes to transfer when known, tempBytes the size of temporary files,
+   *    and oldestAge / longestIdle in milliseconds
+   *  - expired: number of idle handles expired since the application started
+   */
+  @PluginMethod
+  public void getOpenHandles(PluginCall call) {
+    try {
+      call.resolve(new JSObject()
+        .put("binaryReads", handlesStats(binaryReads))
+        .put("jsonlReads", handlesStats(jsonlReads))
+        .put("binaryWrites", handlesStats(binaryWrites))
+        .put("jsonlWrites", handlesStats(jsonlWrites))
+        .put("fileListings", handlesStats(fileListings))
+        .put("readStreams", handlesStats(readStreams))
+        .put("expired", expiredHandles.get())
+      );
+    } catch (Exception e) {
+      Utils.reject(call, e);
+    }
+  }
+
+  /**
+   * Usage of the cache of recently read small files.
+   * Output:
+   *  - hits, misses: number of reads served from the cache or not
+   *  - sharedLoads: number of reads which waited for the same file being read by another one
+   *  - evictions: number of files removed from the cache to keep it under its maximum size
+   *  - count, size: number of files and total size currently in the cache
+   *  - maxSize: maximum size of the cache, depending on the memory of the device
+   */
+  @PluginMethod
+  public void getReadCacheStats(PluginCall call) {
+    long[] stats = readCache.stats();
+    call.resolve(new JSObject()
+      .put("hits", stats[0])
+      .put("misses", stats[1])
+      .put("sharedLoads", stats[2])
+      .put("evictions", stats[3])
+      .put("count", stats[4])
+      .put("size", stats[5])
+      .put("maxSize", stats[6])
+    );
+  }
+
+  /**
+   * Usage of the pool of buffers shared by the native reads and writes.
+   * Output:
+   *  - hits, misses: number of buffers reused from the pool or allocated
+   *  - dropped: number of released buffers not kept, to bound the memory retained by the pool
+   *  - count, size: number of buffers and total size currently in the pool
+   */
+  @PluginMethod
+  public void getBufferPoolStats(PluginCall call) {
+    long[] stats = BufferPool.stats();
+    call.resolve(new JSObject()
+      .put("hits", stats[0])
+      .put("misses", stats[1])
+      .put("dropped", stats[2])
+      .put("count", stats[3])
+      .put("size", stats[4])
+    );
+  }
+
+  private static JSObject handlesStats(Map<Integer, ? extends Handle> handles) {
+    long now = System.currentTimeMillis();
+    int count = 0;
+    long pendingBytes = 0;
+    long tempBytes = 0;
+    long oldestAge = 0;
+    long longestIdle = 0;
+    for (Handle handle : handles.values()) {
+      count++;
+      pendingBytes += handle.pendingBytes();
+      File temp = handle.tempFile();
+      if (temp != null) tempBytes += temp.length();
+      oldestAge = Math.max(oldestAge, now - handle.created);
+      longestIdle = Math.max(longestIdle, now - handle.lastAccess);
+    }
+    return new JSObject()
+      .put("count", count)
+      .put("pendingBytes", pendingBytes)
+      .put("tempBytes", tempBytes)
+      .put("oldestAge", oldestAge)
+      .put("longestIdle", longestIdle);
+  }
+
+  private static String handleKey(Map<Integer, ? extends Handle> handles, PluginCall call) {
+    return handleKey(handles, call.getInt("id"));
+  }
+
+  private static String handleKey(Map<Integer, ? extends Handle> handles, Integer id) {
+    Handle handle = id != null ? handles.get(id) : null;
+    return handle != null ? handle.key : "id:" + id;
+  }
+
+  /** Priority given by the JS side: interactive, normal or background. */
+  private static StorageExecutor.Priority priority(PluginCall call) {
+    return StorageExecutor.Priority.of(call.getString("priority"));
+  }
+
+  /** Priority of the operation continuing a handle, the one given when it was started unless the call gives one. */
+  private static StorageExecutor.Priority handlePriority(Map<Integer, ? extends Handle> handles, PluginCall call) {
+    if (call.getString("priority") != null) return priority(call);
+    Integer id = call.getInt("id");
+    Handle handle = id != null ? handles.get(id) : null;
+    return handle != null ? handle.priority : StorageExecutor.Priority.NORMAL;
+  }
+
+  private static String getDir(PluginCall call) throws LocalFilesException {
     String dir = call.getString("dir");
     if (dir == null || dir.isBlank()) throw new LocalFilesException(LocalFilesException.Code.INVALID_INPUT, "Missing dir");
+    return dir;
+  }
+
+  private static String getFilename(PluginCall call) throws LocalFilesException {
     String filename = call.getString("filename");
     if (filename == null || filename.isBlank()) throw new LocalFilesException(LocalFilesException.Code.INVALID_INPUT, "Missing filename");
-    File subDir = new File(root, dir);
-    return new File(subDir, filename);
+    return filename;
+  }
+
+  private File toFile(PluginCall call) throws LocalFilesException {
+    File subDir = new File(root, getDir(call));
+    return new File(subDir, getFilename(call));
   }
 }
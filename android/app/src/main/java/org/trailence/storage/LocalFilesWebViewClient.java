@@ -0,0 +1,235 @@
+package org.trailence.storage;
+
+import android.net.Uri;
+import android.webkit.WebResourceRequest;
+import android.webkit.WebResourceResponse;
+import android.webkit.WebView;
+
+import com.getcapacitor.Bridge;
+import com.getcapacitor.BridgeWebViewClient;
+import com.getcapacitor.Logger;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Serves files stored by LocalFilesPlugin directly to the WebView, so they can be used as URL
+ * (img src, fetch...) without going through the bridge in base64.
+ * URL format: https://localhost/_trailence_files_/dir/.../filename?type=content-type
+ * Tiles of a tile archive are served the same way: https://localhost/_trailence_tiles_/dir/.../filename/z/x/y
+ */
+public class LocalFilesWebViewClient extends BridgeWebViewClient {
+
+  public static final String PATH_PREFIX = "_trailence_files_";
+  public static final String TILES_PATH_PREFIX = "_trailence_tiles_";
+
+  interface BlobOpener {
+    BlobStream open(String dir, String filename, long position) throws IOException;
+  }
+
+  interface TileOpener {
+    /** Return the tile, or null if the archive or the tile does not exist. */
+    TileArchive.Tile getTile(String dir, String filename, int z, long x, long y) throws IOException;
+  }
+
+  private final Bridge bridge;
+  private final File root;
+  private final String rootPath;
+  private final BlobOpener opener;
+  private final TileOpener tileOpener;
+
+  LocalFilesWebViewClient(Bridge bridge, File root, BlobOpener opener, TileOpener tileOpener) throws IOException {
+    super(bridge);
+    this.bridge = bridge;
+    this.root = root;
+    this.rootPath = root.getCanonicalPath() + File.separator;
+    this.opener = opener;
+    this.tileOpener = tileOpener;
+  }
+
+  @Override
+  public WebResourceResponse shouldInterceptRequest(WebView view, WebResourceRequest request) {
+    Uri url = request.getUrl();
+    List<String> segments = url.getPathSegments();
+    if (segments.size() < 3 || !bridge.getHost().equals(url.getHost()))
+      return super.shouldInterceptRequest(view, request);
+    boolean tile = TILES_PATH_PREFIX.equals(segments.get(0));
+    if (!tile && !PATH_PREFIX.equals(segments.get(0)))
+      return super.shouldInterceptRequest(view, request);
+    try {
+      if (tile) return serveTile(request, segments);
+      return serve(request, segments, url.getQueryParameter("type"));
+    } catch (Exception e) {
+      Logger.error("Error serving local file " + url.getPath(), e);
+      return emptyResponse(500, "Internal Server Error");
+    }
+  }
+
+  private WebResourceResponse serve(WebResourceRequest request, List<String> segments, String contentType) throws IOException {
+    String method = request.getMethod();
+    if (!"GET".equals(method) && !"HEAD".equals(method))
+      return emptyResponse(405, "Method Not Allowed");
+    String dir = toDir(segments, segments.size() - 1);
+    if (dir == null)
+      return emptyResponse(404, "Not Found");
+    String filename = segments.get(segments.size() - 1);
+    BlobStream blob = opener.open(dir, filename, 0);
+    if (blob == null)
+      return emptyResponse(404, "Not Found");
+    try {
+      return serve(request, method, blob, contentType != null && !contentType.isBlank() ? contentType : guessContentType(dir, filename));
+    } catch (IOException | RuntimeException e) {
+      blob.close();
+      throw e;
+    }
+  }
+
+  private WebResourceResponse serve(WebResourceRequest request, String method, BlobStream blob, String contentType) throws IOException {
+    long size = blob.size;
+
+    long start = 0;
+    long end = size - 1;
+    boolean partial = false;
+    String range = getHeader(request, "Range");
+    if (range != null && range.startsWith("bytes=") && range.indexOf(',') < 0) {
+      long[] r = parseRange(range.substring(6).trim(), size);
+      if (r == null) {
+        blob.close();
+        Map<String, String> headers = new HashMap<>();
+        headers.put("Content-Range", "bytes */" + size);
+        return new WebResourceResponse(contentType, null, 416, "Range Not Satisfiable", headers, new ByteArrayInputStream(new byte[0]));
+      }
+      start = r[0];
+      end = r[1];
+      partial = true;
+    }
+    long length = size == 0 ? 0 : end - start + 1;
+
+    Map<String, String> headers = new HashMap<>();
+    headers.put("Accept-Ranges", "bytes");
+    headers.put("Cache-Control", "no-cache");
+    headers.put("Content-Length", Long.toString(length));
+    if (partial) headers.put("Content-Range", "bytes " + start + "-" + end + "/" + size);
+
+    InputStream body;
+    if ("HEAD".equals(method) || length == 0) {
+      blob.close();
+      body = new ByteArrayInputStream(new byte[0]);
+    } else {
+      skipFully(blob.in, start);
+      body = new BoundedInputStream(blob.in, length);
+    }
+    return new WebResourceResponse(contentType, null, partial ? 206 : 200, partial ? "Partial Content" : "OK", headers, body);
+  }
+
+  private WebResourceResponse serveTile(WebResourceRequest request, List<String> segments) throws IOException {
+    String method = request.getMethod();
+    if (!"GET".equals(method) && !"HEAD".equals(method))
+      return emptyResponse(405, "Method Not Allowed");
+    int filenameIndex = segments.size() - 4;
+    String dir = filenameIndex >= 2 ? toDir(segments, filenameIndex) : null;
+    if (dir == null)
+      return emptyResponse(404, "Not Found");
+    TileArchive.Tile tile;
+    try {
+      tile = tileOpener.getTile(dir, segments.get(filenameIndex),
+        Integer.parseInt(segments.get(filenameIndex + 1)), Long.parseLong(segments.get(filenameIndex + 2)), Long.parseLong(segments.get(filenameIndex + 3)));
+    } catch (NumberFormatException e) {
+      return emptyResponse(404, "Not Found");
+    }
+    if (tile == null)
+      return emptyResponse(404, "Not Found");
+    Map<String, String> headers = new HashMap<>();
+    headers.put("Cache-Control", "no-cache");
+    headers.put("Content-Length", Integer.toString("HEAD".equals(method) ? 0 : tile.data.length));
+    return new WebResourceResponse(tile.contentType, null, 200, "OK", headers, new ByteArrayInputStream("HEAD".equals(method) ? new byte[0] : tile.data));
+  }
+
+  /**
+   * Return the directory of the file at the given index in the path, or null if the path is not valid.
+   * Internal files and directories of the storage (names starting with a dot, journals) are never served.
+   */
+  private String toDir(List<String> segments, int filenameIndex) throws IOException {
+    if (segments.get(filenameIndex).endsWith(JsonlJournal.SUFFIX)) return null;
+    StringBuilder path = new StringBuilder();
+    for (int i = 1; i <= filenameIndex; ++i) {
+      String s = segments.get(i);
+      if (s.isEmpty() || s.startsWith(".")) return null;
+      if (i > 1 && i < filenameIndex) path.append('/');
+      if (i < filenameIndex) path.append(s);
+    }
+    File file = new File(new File(root, path.toString()), segments.get(filenameIndex));
+    if (!file.getCanonicalPath().startsWith(rootPath)) return null;
+    return path.toString();
+  }
+
+  private static void skipFully(InputStream in, long n) throws IOException {
+    while (n > 0) {
+      long skipped = in.skip(n);
+      if (skipped <= 0) throw new IOException("Cannot skip to the requested position");
+      n -= skipped;
+    }
+  }
+
+  private static String getHeader(WebResourceRequest request, String name) {
+    Map<String, String> headers = request.getRequestHeaders();
+    if (headers == null) return null;
+    for (Map.Entry<String, String> header : headers.entrySet())
+      if (name.equalsIgnoreCase(header.getKey())) return header.getValue();
+    return null;
+  }
+
+  /** Parse a single byte range, returning {start, end} (inclusive), or null if not satisfiable. */
+  private static long[] parseRange(String range, long size) {
+    int i = range.indexOf('-');
+    if (i < 0 || size == 0) return null;
+    try {
+      String from = range.substring(0, i).trim();
+      String to = range.substring(i + 1).trim();
+      if (from.isEmpty()) {
+        // suffix: last N bytes
+        long n = Long.parseLong(to);
+        if (n <= 0) return null;
+        return new long[] { Math.max(0, size - n), size - 1 };
+      }
+      long start = Long.parseLong(from);
+      long end = to.isEmpty() ? size - 1 : Math.min(Long.parseLong(to), size - 1);
+      if (start >= size || end < start) return null;
+      return new long[] { start, end };
+    } catch (NumberFormatException e) {
+      return null;
+    }
+  }
+
+  /** Our files have no extension, so we look at the first bytes to detect common formats. */
+  private String guessContentType(String dir, String filename) {
+    byte[] header = new byte[12];
+    int nb = 0;
+    try (BlobStream blob = opener.open(dir, filename, 0)) {
+      if (blob == null) return "application/octet-stream";
+      while (nb < header.length) {
+        int r = blob.in.read(header, nb, header.length - nb);
+        if (r <= 0) break;
+        nb += r;
+      }
+    } catch (IOException e) {
+      return "application/octet-stream";
+    }
+    if (nb >= 3 && (header[0] & 0xFF) == 0xFF && (header[1] & 0xFF) == 0xD8 && (header[2] & 0xFF) == 0xFF) return "image/jpeg";
+    if (nb >= 8 && (header[0] & 0xFF) == 0x89 && header[1] == 'P' && header[2] == 'N' && header[3] == 'G') return "image/png";
+    if (nb >= 12 && header[0] == 'R' && header[1] == 'I' && header[2] == 'F' && header[3] == 'F' && header[8] == 'W' && header[9] == 'E' && header[10] == 'B' && header[11] == 'P') return "image/webp";
+    if (nb >= 6 && header[0] == 'G' && header[1] == 'I' && header[2] == 'F' && header[3] == '8') return "image/gif";
+    return "application/octet-stream";
+  }
+
+  private static WebResourceResponse emptyResponse(int status, String reason) {
+    Map<String, String> headers = new HashMap<>();
+    headers.put("Content-Length", "0");
+    return new WebResourceResponse("text/plain", null, status, reason, headers, new ByteArrayInputStream(new byte[0]));
+  }
+}
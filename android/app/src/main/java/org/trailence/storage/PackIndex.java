@@ -0,0 +1,295 @@
+package org.trailence.storage;
+
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * In-memory index of a pack store, kept in primitive arrays instead of objects by file, so it stays small
+ * with hundreds of thousands of files:
+ *  - names: open addressing table from the name of a file to its content
+ *  - contents: location (segment, offset, length) and number of references of each content,
+ *    whose slot is reused once no more file references it
+ *  - hashes: SHA-256 of the contents of a deduplicated store, in a single array, with an open addressing
+ *    table from hash to content to find identical contents
+ * Not thread safe: used while the pack store is locked.
+ */
+final class PackIndex {
+
+  static final int HASH_LENGTH = 32;
+  private static final int INITIAL_CAPACITY = 64;
+
+  interface Visitor {
+    void visit(String name, int content) throws IOException;
+  }
+
+  private String[] names = new String[INITIAL_CAPACITY];
+  private int[] nameContents = new int[INITIAL_CAPACITY];
+  private int nameCount = 0;
+
+  private int[] segments = new int[INITIAL_CAPACITY];
+  private long[] offsets = new long[INITIAL_CAPACITY];
+  private int[] lengths = new int[INITIAL_CAPACITY];
+  /** Number of files referencing each content, -1 for a free slot. */
+  private int[] refs = new int[INITIAL_CAPACITY];
+  private int contentSlots = 0;
+  private int[] freeContents = new int[16];
+  private int freeCount = 0;
+
+  /** HASH_LENGTH bytes by content, allocated with the first hashed content. */
+  private byte[] hashes = null;
+  private final BitSet hashed = new BitSet();
+  /** Content + 1 by hash, 0 for an empty slot. */
+  private int[] byHash = null;
+  private int byHashCount = 0;
+
+  int count() {
+    return nameCount;
+  }
+
+  /** Return the content of the given file, or -1 if it does not exist. */
+  int get(String name) {
+    int i = nameSlot(name);
+    return names[i] != null ? nameContents[i] : -1;
+  }
+
+  /** Set the content of a file, and return its previous content or -1. References are not changed. */
+  int set(String name, int content) {
+    int i = nameSlot(name);
+    if (names[i] != null) {
+      int previous = nameContents[i];
+      nameContents[i] = content;
+      return previous;
+    }
+    names[i] = name;
+    nameContents[i] = content;
+    if (++nameCount * 2 > names.length) resizeNames(names.length * 2);
+    return -1;
+  }
+
+  /** Remove a file, and return its content or -1 if it does not exist. References are not changed. */
+  int remove(String name) {
+    int i = nameSlot(name);
+    if (names[i] == null) return -1;
+    int previous = nameContents[i];
+    // backward shift, so following names remain reachable without tombstones
+    int mask = names.length - 1;
+    int j = i;
+    while (true) {
+      j = (j + 1) & mask;
+      if (names[j] == null) break;
+      int home = spread(names[j].hashCode()) & mask;
+      if (i <= j ? (i < home && home <= j) : (i < home || home <= j)) continue;
+      names[i] = names[j];
+      nameContents[i] = nameContents[j];
+      i = j;
+    }
+    names[i] = null;
+    nameCount--;
+    return previous;
+  }
+
+  List<String> names() {
+    List<String> list = new ArrayList<>(nameCount);
+    for (String name : names)
+      if (name != null) list.add(name);
+    return list;
+  }
+
+  /** Visit all files with their content. The visitor must not modify the index. */
+  void forEach(Visitor visitor) throws IOException {
+    for (int i = 0; i < names.length; ++i)
+      if (names[i] != null) visitor.visit(names[i], nameContents[i]);
+  }
+
+  /** Add a content not yet referenced, with its hash if known. */
+  int add(int segment, long offset, int length, byte[] hash) {
+    int content;
+    if (freeCount > 0) {
+      content = freeContents[--freeCount];
+    } else {
+      content = contentSlots++;
+      if (content == segments.length) resizeContents(segments.length * 2);
+    }
+    segments[content] = segment;
+    offsets[content] = offset;
+    lengths[content] = length;
+    refs[content] = 0;
+    if (hash != null) {
+      if (hashes == null) hashes = new byte[segments.length * HASH_LENGTH];
+      System.arraycopy(hash, 0, hashes, content * HASH_LENGTH, HASH_LENGTH);
+      hashed.set(content);
+    }
+    return content;
+  }
+
+  int segment(int content) {
+    return segments[content];
+  }
+
+  long offset(int content) {
+    return offsets[content];
+  }
+
+  int length(int content) {
+    return lengths[content];
+  }
+
+  int refs(int content) {
+    return refs[content];
+  }
+
+  /** Return the number of references after adding one. */
+  int addRef(int content) {
+    return ++refs[content];
+  }
+
+  /** Return the number of references after removing one. */
+  int removeRef(int content) {
+    return --refs[content];
+  }
+
+  boolean hasHash(int content) {
+    return hashed.get(content);
+  }
+
+  /** Return a copy of the hash of the given content, or null if not known. */
+  byte[] hash(int content) {
+    if (!hashed.get(content)) return null;
+    return Arrays.copyOfRange(hashes, content * HASH_LENGTH, (content + 1) * HASH_LENGTH);
+  }
+
+  void writeHash(int content, DataOutput out) throws IOException {
+    out.write(hashes, content * HASH_LENGTH, HASH_LENGTH);
+  }
+
+  /** Make a hashed content findable by its hash, replacing any other content having the same hash. */
+  void publishHash(int content) {
+    if (!hashed.get(content)) return;
+    if (byHash == null) byHash = new int[INITIAL_CAPACITY];
+    int i = hashSlot(hashes, content * HASH_LENGTH);
+    if (byHash[i] == 0) {
+      byHash[i] = content + 1;
+      if (++byHashCount * 2 > byHash.length) resizeByHash(byHash.length * 2);
+    } else {
+      byHash[i] = content + 1;
+    }
+  }
+
+  /** Return a published content having the given hash and length, or -1. */
+  int find(byte[] hash, int length) {
+    if (byHash == null) return -1;
+    int i = hashSlot(hash, 0);
+    if (byHash[i] == 0) return -1;
+    int content = byHash[i] - 1;
+    return lengths[content] == length ? content : -1;
+  }
+
+  /** Release the slot of a content no more referenced, so it can be reused. */
+  void free(int content) {
+    if (hashed.get(content)) {
+      if (byHash != null) {
+        int i = hashSlot(hashes, content * HASH_LENGTH);
+        if (byHash[i] == content + 1) removeByHash(i);
+      }
+      hashed.clear(content);
+    }
+    refs[content] = -1;
+    if (freeCount == freeContents.length) freeContents = Arrays.copyOf(freeContents, freeCount * 2);
+    freeContents[freeCount++] = content;
+  }
+
+  void clear() {
+    names = new String[INITIAL_CAPACITY];
+    nameContents = new int[INITIAL_CAPACITY];
+    nameCount = 0;
+    segments = new int[INITIAL_CAPACITY];
+    offsets = new long[INITIAL_CAPACITY];
+    lengths = new int[INITIAL_CAPACITY];
+    refs = new int[INITIAL_CAPACITY];
+    contentSlots = 0;
+    freeContents = new int[16];
+    freeCount = 0;
+    hashes = null;
+    hashed.clear();
+    byHash = null;
+    byHashCount = 0;
+  }
+
+  private static int spread(int h) {
+    return h ^ (h >>> 16);
+  }
+
+  private int nameSlot(String name) {
+    int mask = names.length - 1;
+    int i = spread(name.hashCode()) & mask;
+    while (names[i] != null && !names[i].equals(name)) i = (i + 1) & mask;
+    return i;
+  }
+
+  private void resizeNames(int capacity) {
+    String[] previousNames = names;
+    int[] previousContents = nameContents;
+    names = new String[capacity];
+    nameContents = new int[capacity];
+    for (int i = 0; i < previousNames.length; ++i) {
+      if (previousNames[i] == null) continue;
+      int j = nameSlot(previousNames[i]);
+      names[j] = previousNames[i];
+      nameContents[j] = previousContents[i];
+    }
+  }
+
+  private void resizeContents(int capacity) {
+    segments = Arrays.copyOf(segments, capacity);
+    offsets = Arrays.copyOf(offsets, capacity);
+    lengths = Arrays.copyOf(lengths, capacity);
+    refs = Arrays.copyOf(refs, capacity);
+    if (hashes != null) hashes = Arrays.copyOf(hashes, capacity * HASH_LENGTH);
+  }
+
+  /** The hash is already uniformly distributed: its first bytes are used to find its slot. */
+  private static int hashCode(byte[] hash, int offset) {
+    return ((hash[offset] & 0xFF) << 24) | ((hash[offset + 1] & 0xFF) << 16) | ((hash[offset + 2] & 0xFF) << 8) | (hash[offset + 3] & 0xFF);
+  }
+
+  private boolean hashEquals(int content, byte[] hash, int offset) {
+    int start = content * HASH_LENGTH;
+    for (int i = 0; i < HASH_LENGTH; ++i)
+      if (hashes[start + i] != hash[offset + i]) return false;
+    return true;
+  }
+
+  /** Slot of the given hash in byHash: the one of its content, or the empty slot where it would be. */
+  private int hashSlot(byte[] hash, int offset) {
+    int mask = byHash.length - 1;
+    int i = hashCode(hash, offset) & mask;
+    while (byHash[i] != 0 && !hashEquals(byHash[i] - 1, hash, offset)) i = (i + 1) & mask;
+    return i;
+  }
+
+  private void removeByHash(int i) {
+    int mask = byHash.length - 1;
+    int j = i;
+    while (true) {
+      j = (j + 1) & mask;
+      if (byHash[j] == 0) break;
+      int home = hashCode(hashes, (byHash[j] - 1) * HASH_LENGTH) & mask;
+      if (i <= j ? (i < home && home <= j) : (i < home || home <= j)) continue;
+      byHash[i] = byHash[j];
+      i = j;
+    }
+    byHash[i] = 0;
+    byHashCount--;
+  }
+
+  private void resizeByHash(int capacity) {
+    int[] previous = byHash;
+    byHash = new int[capacity];
+    for (int entry : previous)
+      if (entry != 0) byHash[hashSlot(hashes, (entry - 1) * HASH_LENGTH)] = entry;
+  }
+}
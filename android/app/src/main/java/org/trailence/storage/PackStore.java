@@ -0,0 +1,744 @@
+package org.trailence.storage;
+
+import com.getcapacitor.Logger;
+
+import org.trailence.BufferPool;
+import org.trailence.Utils;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Store the files of a directory into a few large segment files, instead of one file each.
+ * Everything is in the .pack sub-directory:
+ *  - n.seg: append-only segment files, containing the content of files one after the other
+ *  - index: append-only log of put (name, segment, offset, length) and remove records,
+ *    replayed in memory when the store is opened
+ * Content is always flushed to the segment before its record is written to the index, so a record
+ * truncated by a crash is simply ignored. Space of removed or replaced content is reclaimed by compact().
+ * A store can be deduplicated: the SHA-256 of each content is kept, and a file having the same content
+ * as another one is recorded at the same location instead of being written again. The content is then
+ * released when no more file references it.
+ * The index is kept in memory by a PackIndex, in primitive arrays.
+ */
+class PackStore {
+
+  static final String DIR_NAME = ".pack";
+  private static final String INDEX_NAME = "index";
+  private static final String SEGMENT_SUFFIX = ".seg";
+  private static final int INDEX_MAGIC = 0x54504B31; // TPK1
+  private static final byte RECORD_PUT = 1;
+  private static final byte RECORD_REMOVE = 2;
+  private static final byte RECORD_PUT_HASHED = 3;
+  private static final String DEDUPLICATED_MARKER = "deduplicated";
+  private static final long MAX_SEGMENT_SIZE = 64L * 1024 * 1024;
+  private static final int IMPORT_BATCH_SIZE = 4 * 1024 * 1024;
+  private static final int COMPACTION_BATCH_SIZE = 4 * 1024 * 1024;
+  private static final int MIN_OBSOLETE_RECORDS_TO_REWRITE_INDEX = 1000;
+  private static final int COPY_BUFFER_SIZE = 65536;
+
+  private static final class Segment {
+    private final File file;
+    private long size;
+    private long live = 0;
+    private Segment(File file, long size) {
+      this.file = file;
+      this.size = size;
+    }
+  }
+
+  private final File dir;
+  private final File indexFile;
+  private final PackIndex index = new PackIndex();
+  private final Map<Integer, Segment> segments = new HashMap<>();
+  private boolean deduplicated = false;
+  private int indexRecords = 0;
+  private long indexLength = 0;
+  private int currentSegment = 0;
+  private OutputStream segmentOut = null;
+  private DataOutputStream indexOut = null;
+  private long indexOutBase = 0;
+  private boolean compacting = false;
+
+  private PackStore(File dir) {
+    this.dir = dir;
+    this.indexFile = new File(dir, INDEX_NAME);
+  }
+
+  static boolean isPacked(File dir) {
+    return new File(dir, DIR_NAME).isDirectory();
+  }
+
+  /** Open the pack store of the given directory, creating it if it does not exist yet. */
+  static PackStore open(File dir) throws IOException {
+    File packDir = new File(dir, DIR_NAME);
+    if (!packDir.isDirectory() && !packDir.mkdirs())
+      throw new IOException("Cannot create directory " + packDir.getAbsolutePath());
+    PackStore store = new PackStore(packDir);
+    store.load();
+    return store;
+  }
+
+  private void load() throws IOException {
+    deduplicated = new File(dir, DEDUPLICATED_MARKER).exists();
+    int lastSegment = -1;
+    File[] files = dir.listFiles();
+    if (files != null) {
+      for (File file : files) {
+        String name = file.getName();
+        if (!name.endsWith(SEGMENT_SUFFIX)) continue;
+        try {
+          int id = Integer.parseInt(name.substring(0, name.length() - SEGMENT_SUFFIX.length()));
+          segments.put(id, new Segment(file, file.length()));
+          lastSegment = Math.max(lastSegment, id);
+        } catch (NumberFormatException e) {
+          // not a segment
+        }
+      }
+    }
+    long valid = readIndex();
+    if (valid < 0) {
+      // no valid index: the content of segments cannot be used
+      for (Segment segment : segments.values()) Files.deleteIfExists(segment.file.toPath());
+      segments.clear();
+      index.clear();
+      lastSegment = -1;
+      writeEmptyIndex(indexFile);
+      valid = indexFile.length();
+    } else if (indexFile.length() > valid) {
+      truncate(indexFile, valid);
+    }
+    indexLength = valid;
+    if (lastSegment < 0) currentSegment = 0;
+    else if (segments.get(lastSegment).size < MAX_SEGMENT_SIZE) currentSegment = lastSegment;
+    else currentSegment = lastSegment + 1;
+    ensureOutputs();
+  }
+
+  /** Replay the index, and return the length of its valid part, or -1 if it does not exist or is invalid. */
+  private long readIndex() throws IOException {
+    if (!indexFile.exists()) return -1;
+    try (CountingInputStream counter = new CountingInputStream(new BufferedInputStream(new FileInputStream(indexFile), 65536))) {
+      DataInputStream in = new DataInputStream(counter);
+      try {
+        if (in.readInt() != INDEX_MAGIC) return -1;
+      } catch (EOFException e) {
+        return -1;
+      }
+      long valid = counter.count;
+      // files sharing the same content share the same entry, only hashed content can be shared
+      Map<Long, Integer> byLocation = new HashMap<>();
+      try {
+        while (true) {
+          byte type = in.readByte();
+          String name = in.readUTF();
+          if (type == RECORD_PUT || type == RECORD_PUT_HASHED) {
+            int segment = in.readInt();
+            long offset = in.readLong();
+            int length = in.readInt();
+            byte[] hash = null;
+            if (type == RECORD_PUT_HASHED) {
+              hash = new byte[PackIndex.HASH_LENGTH];
+              in.readFully(hash);
+            }
+            Segment s = segments.get(segment);
+            // ignore content which is not fully in its segment
+            if (s != null && offset + length <= s.size) {
+              long location = ((long) segment << 32) | offset;
+              Integer shared = hash != null ? byLocation.get(location) : null;
+              int content;
+              // the content may have been released, and its slot reused
+              if (shared != null && index.refs(shared) > 0 && index.segment(shared) == segment && index.offset(shared) == offset && index.length(shared) == length) {
+                content = shared;
+              } else {
+                content = index.add(segment, offset, length, hash);
+                if (hash != null) byLocation.put(location, content);
+              }
+              setEntry(name, content);
+            }
+          } else if (type == RECORD_REMOVE) {
+            removeEntry(name);
+          } else {
+            Logger.error("Invalid record in pack index " + indexFile.getAbsolutePath() + " at " + valid);
+            break;
+          }
+          indexRecords++;
+          valid = counter.count;
+        }
+      } catch (EOFException e) {
+        // end of index, last record may be incomplete
+      }
+      return valid;
+    }
+  }
+
+  synchronized boolean contains(String name) {
+    return index.get(name) >= 0;
+  }
+
+  /** Size of the given file, or -1 if it does not exist. */
+  synchronized long size(String name) {
+    int content = index.get(name);
+    return content >= 0 ? index.length(content) : -1;
+  }
+
+  /** Approximate time of the last modification of the given file: the one of the segment containing it, or 0 if it does not exist. */
+  synchronized long modified(String name) {
+    int content = index.get(name);
+    Segment segment = content >= 0 ? segments.get(index.segment(content)) : null;
+    return segment != null ? segment.file.lastModified() : 0;
+  }
+
+  synchronized int count() {
+    return index.count();
+  }
+
+  /** Total size of the files in the store, not including space not yet reclaimed by compaction. */
+  synchronized long totalSize() {
+    long total = 0;
+    for (Segment segment : segments.values()) total += segment.live;
+    return total;
+  }
+
+  synchronized List<String> names() {
+    return index.names();
+  }
+
+  /** Names of the files, in the order they were written to the segments, so oldest first except after compaction. */
+  synchronized List<String> namesByAge() throws IOException {
+    int count = index.count();
+    String[] names = new String[count];
+    int[] contents = new int[count];
+    int[] i = new int[1];
+    index.forEach((name, content) -> {
+      names[i[0]] = name;
+      contents[i[0]++] = content;
+    });
+    Integer[] order = new Integer[count];
+    for (int j = 0; j < count; ++j) order[j] = j;
+    Arrays.sort(order, (o1, o2) -> {
+      int c = Integer.compare(index.segment(contents[o1]), index.segment(contents[o2]));
+      return c != 0 ? c : Long.compare(index.offset(contents[o1]), index.offset(contents[o2]));
+    });
+    List<String> list = new ArrayList<>(count);
+    for (int j : order) list.add(names[j]);
+    return list;
+  }
+
+  /**
+   * Store new content only once. Content already in the store is not deduplicated, except if it is moved by compaction.
+   */
+  synchronized void enableDeduplication() throws IOException {
+    if (deduplicated) return;
+    File marker = new File(dir, DEDUPLICATED_MARKER);
+    if (!marker.exists() && !marker.createNewFile())
+      throw new IOException("Cannot create " + marker.getAbsolutePath());
+    deduplicated = true;
+  }
+
+  synchronized boolean isDeduplicated() {
+    return deduplicated;
+  }
+
+  /** Open the given file for reading from the given position, or return null if it does not exist. */
+  synchronized BlobStream open(String name, long position) throws IOException {
+    int content = index.get(name);
+    if (content < 0) return null;
+    int length = index.length(content);
+    FileInputStream in = new FileInputStream(segments.get(index.segment(content)).file);
+    try {
+      in.getChannel().position(index.offset(content) + position);
+    } catch (IOException e) {
+      in.close();
+      throw e;
+    }
+    return new BlobStream(length, new BoundedInputStream(in, Math.max(0, length - position)));
+  }
+
+  /** Open the given file for positional reads, or return null if it does not exist. */
+  synchronized BlobChannel openChannel(String name) throws IOException {
+    int content = index.get(name);
+    if (content < 0) return null;
+    // opened while locked: the segment may be removed by compaction, but remains readable once open
+    FileChannel channel = FileChannel.open(segments.get(index.segment(content)).file.toPath(), StandardOpenOption.READ);
+    return new BlobChannel(channel, index.offset(content), index.length(content));
+  }
+
+  synchronized void put(String name, byte[] data) throws IOException {
+    putAll(Collections.singletonList(name), Collections.singletonList(data));
+  }
+
+  /** Append the content of several files with a single sequential write. */
+  synchronized void putAll(List<String> names, List<byte[]> contents) throws IOException {
+    List<Integer> written = new ArrayList<>(names.size());
+    try {
+      ensureOutputs();
+      // content appended by this call, not yet published
+      Map<ByteBuffer, Integer> appended = deduplicated ? new HashMap<>() : null;
+      for (byte[] data : contents) {
+        if (!deduplicated) {
+          written.add(append(data, 0, data.length, null));
+          continue;
+        }
+        byte[] hash = hash(data);
+        int content = findContent(hash, data.length, appended);
+        if (content < 0) {
+          content = append(data, 0, data.length, hash);
+          appended.put(ByteBuffer.wrap(hash), content);
+        }
+        written.add(content);
+      }
+      publish(names, written);
+    } catch (IOException e) {
+      discard(written);
+      recover();
+      throw e;
+    }
+  }
+
+  /** Append the content of a file, typically a temporary file filled by chunks. */
+  synchronized void put(String name, File content) throws IOException {
+    long length = content.length();
+    if (length > Integer.MAX_VALUE) throw new IOException("File too large to be packed");
+    byte[] hash = deduplicated ? hash(content) : null;
+    List<Integer> written = new ArrayList<>(1);
+    try (FileInputStream in = new FileInputStream(content)) {
+      ensureOutputs();
+      int existing = hash != null ? findContent(hash, (int) length, null) : -1;
+      if (existing >= 0) {
+        publish(Collections.singletonList(name), Collections.singletonList(existing));
+        return;
+      }
+      Segment segment = prepareAppend((int) length);
+      written.add(index.add(currentSegment, segment.size, (int) length, hash));
+      byte[] buffer = BufferPool.acquire(COPY_BUFFER_SIZE);
+      try {
+        long remaining = length;
+        while (remaining > 0) {
+          int nb = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+          if (nb <= 0) throw new EOFException();
+          segmentOut.write(buffer, 0, nb);
+          segment.size += nb;
+          remaining -= nb;
+        }
+      } finally {
+        BufferPool.release(buffer);
+      }
+      publish(Collections.singletonList(name), written);
+    } catch (IOException e) {
+      discard(written);
+      recover();
+      throw e;
+    }
+  }
+
+  synchronized boolean remove(String name) throws IOException {
+    return removeAll(Collections.singletonList(name)) > 0;
+  }
+
+  synchronized int removeAll(Collection<String> names) throws IOException {
+    int removed = 0;
+    try {
+      ensureOutputs();
+      for (String name : names) {
+        if (index.get(name) < 0) continue;
+        indexOut.writeByte(RECORD_REMOVE);
+        indexOut.writeUTF(name);
+        indexRecords++;
+        removeEntry(name);
+        removed++;
+      }
+      indexOut.flush();
+      indexLength = indexOutBase + indexOut.size();
+      return removed;
+    } catch (IOException e) {
+      recover();
+      throw e;
+    }
+  }
+
+  /** Remove all files, and all segments. */
+  synchronized void clear() throws IOException {
+    closeOutputs();
+    File[] files = dir.listFiles();
+    if (files != null)
+      for (File file : files)
+        if (!file.getName().equals(DEDUPLICATED_MARKER)) Files.deleteIfExists(file.toPath());
+    index.clear();
+    segments.clear();
+    indexRecords = 0;
+    currentSegment = 0;
+    writeEmptyIndex(indexFile);
+    indexLength = indexFile.length();
+    ensureOutputs();
+  }
+
+  synchronized void close() {
+    closeOutputs();
+  }
+
+  /** Move the regular files of the given directory into this store. */
+  void importFiles(File fromDir) throws IOException {
+    File[] files = fromDir.listFiles();
+    if (files == null) return;
+    List<String> names = new ArrayList<>();
+    List<byte[]> contents = new ArrayList<>();
+    List<File> imported = new ArrayList<>();
+    long batchSize = 0;
+    for (File file : files) {
+      if (!file.isFile() || file.getName().endsWith(".tmp")) continue;
+      if (contains(file.getName())) {
+        // already imported, but not yet deleted
+        Files.deleteIfExists(file.toPath());
+        continue;
+      }
+      long length = file.length();
+      if (length > Integer.MAX_VALUE) continue;
+      try (FileInputStream in = new FileInputStream(file)) {
+        contents.add(Utils.readNBytes(in, (int) length));
+      }
+      names.add(file.getName());
+      imported.add(file);
+      batchSize += length;
+      if (batchSize >= IMPORT_BATCH_SIZE) {
+        importBatch(names, contents, imported);
+        batchSize = 0;
+      }
+    }
+    if (!names.isEmpty()) importBatch(names, contents, imported);
+  }
+
+  private void importBatch(List<String> names, List<byte[]> contents, List<File> files) throws IOException {
+    putAll(names, contents);
+    for (File file : files) Files.deleteIfExists(file.toPath());
+    names.clear();
+    contents.clear();
+    files.clear();
+  }
+
+  /** Return true if compaction is needed and not already running, in which case compact() must be called. */
+  synchronized boolean startCompaction() {
+    if (compacting || !needsCompaction()) return false;
+    compacting = true;
+    return true;
+  }
+
+  private boolean needsCompaction() {
+    if (indexRecords > 2 * index.count() + MIN_OBSOLETE_RECORDS_TO_REWRITE_INDEX) return true;
+    for (Map.Entry<Integer, Segment> s : segments.entrySet())
+      if (isSparse(s.getKey(), s.getValue())) return true;
+    return false;
+  }
+
+  private boolean isSparse(int id, Segment segment) {
+    return id != currentSegment && (segment.live == 0 || segment.live < segment.size / 2);
+  }
+
+  /**
+   * Move the remaining content of sparse segments at the end of the current segment, then remove them.
+   * Content is moved by small batches, so reads and writes can continue during compaction.
+   */
+  void compact() throws IOException {
+    try {
+      List<Integer> sparse = new ArrayList<>();
+      synchronized (this) {
+        for (Map.Entry<Integer, Segment> s : segments.entrySet())
+          if (isSparse(s.getKey(), s.getValue())) sparse.add(s.getKey());
+      }
+      for (int id : sparse) compactSegment(id);
+      synchronized (this) {
+        if (indexRecords > 2 * index.count() + MIN_OBSOLETE_RECORDS_TO_REWRITE_INDEX) rewriteIndex();
+      }
+    } finally {
+      synchronized (this) {
+        compacting = false;
+      }
+    }
+  }
+
+  private void compactSegment(int id) throws IOException {
+    Segment segment;
+    List<String> names = new ArrayList<>();
+    synchronized (this) {
+      segment = segments.get(id);
+      if (segment == null) return;
+      index.forEach((name, content) -> {
+        if (index.segment(content) == id) names.add(name);
+      });
+    }
+    // content shared by several files is moved once, and retained until the end so its slot is not reused
+    Map<Integer, Integer> relocated = new HashMap<>();
+    try (RandomAccessFile source = new RandomAccessFile(segment.file, "r")) {
+      int i = 0;
+      while (i < names.size()) {
+        synchronized (this) {
+          try {
+            ensureOutputs();
+            List<String> moved = new ArrayList<>();
+            List<Integer> written = new ArrayList<>();
+            long batchSize = 0;
+            for (; i < names.size() && batchSize < COMPACTION_BATCH_SIZE; ++i) {
+              int content = index.get(names.get(i));
+              if (content < 0 || index.segment(content) != id) continue; // removed or replaced in the meantime
+              Integer target = relocated.get(content);
+              if (target == null) {
+                int length = index.length(content);
+                byte[] data = new byte[length];
+                source.seek(index.offset(content));
+                source.readFully(data);
+                target = append(data, 0, length, index.hasHash(content) || !deduplicated ? index.hash(content) : hash(data));
+                retain(target);
+                relocated.put(content, target);
+                batchSize += length;
+              }
+              moved.add(names.get(i));
+              written.add(target);
+            }
+            publish(moved, written);
+          } catch (IOException e) {
+            recover();
+            throw e;
+          }
+        }
+      }
+    } finally {
+      synchronized (this) {
+        for (int target : relocated.values()) release(target);
+      }
+    }
+    synchronized (this) {
+      if (segment.live == 0 && id != currentSegment) {
+        segments.remove(id);
+        Files.deleteIfExists(segment.file.toPath());
+      }
+    }
+  }
+
+  private void rewriteIndex() throws IOException {
+    File tempFile = new File(dir, INDEX_NAME + ".tmp");
+    try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile), 65536))) {
+      out.writeInt(INDEX_MAGIC);
+      index.forEach((name, content) -> writePut(out, name, content));
+    } catch (IOException e) {
+      Files.deleteIfExists(tempFile.toPath());
+      throw e;
+    }
+    Utils.silentClose(indexOut);
+    indexOut = null;
+    Files.move(tempFile.toPath(), indexFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    indexRecords = index.count();
+    indexLength = indexFile.length();
+    ensureOutputs();
+  }
+
+  private void ensureOutputs() throws IOException {
+    if (indexOut == null) {
+      indexOutBase = indexLength;
+      indexOut = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(indexFile, true), 65536));
+    }
+    if (segmentOut == null) {
+      Segment segment = segments.get(currentSegment);
+      if (segment == null) {
+        segment = new Segment(new File(dir, currentSegment + SEGMENT_SUFFIX), 0);
+        segments.put(currentSegment, segment);
+      }
+      segmentOut = new BufferedOutputStream(new FileOutputStream(segment.file, true), 256 * 1024);
+    }
+  }
+
+  private void closeOutputs() {
+    if (segmentOut != null) Utils.silentClose(segmentOut);
+    if (indexOut != null) Utils.silentClose(indexOut);
+    segmentOut = null;
+    indexOut = null;
+  }
+
+  /** After a write error, remove any incomplete record from the index, and continue with a new segment. */
+  private void recover() {
+    closeOutputs();
+    try {
+      truncate(indexFile, indexLength);
+    } catch (IOException e) {
+      Logger.error("Cannot recover pack index " + indexFile.getAbsolutePath(), e);
+    }
+    Segment segment = segments.get(currentSegment);
+    if (segment != null) segment.size = segment.file.length();
+    currentSegment++;
+  }
+
+  /** Return the current segment, after switching to a new one if the given length does not fit. */
+  private Segment prepareAppend(int length) throws IOException {
+    Segment segment = segments.get(currentSegment);
+    if (segment.size > 0 && segment.size + length > MAX_SEGMENT_SIZE) {
+      segmentOut.close();
+      segmentOut = null;
+      currentSegment++;
+      ensureOutputs();
+      segment = segments.get(currentSegment);
+    }
+    return segment;
+  }
+
+  /** Append content, not yet referenced by any file. */
+  private int append(byte[] data, int offset, int length, byte[] hash) throws IOException {
+    Segment segment = prepareAppend(length);
+    int content = index.add(currentSegment, segment.size, length, hash);
+    segmentOut.write(data, offset, length);
+    segment.size += length;
+    return content;
+  }
+
+  /** Make written content visible: flush the segment, then record it in the index. */
+  private void publish(List<String> names, List<Integer> written) throws IOException {
+    segmentOut.flush();
+    for (int i = 0; i < names.size(); ++i)
+      writePut(indexOut, names.get(i), written.get(i));
+    indexOut.flush();
+    indexLength = indexOutBase + indexOut.size();
+    indexRecords += names.size();
+    // retained first, so a content is not released while a file of this call replaces another one having it
+    for (int content : written) retain(content);
+    for (int i = 0; i < names.size(); ++i)
+      setEntry(names.get(i), written.get(i));
+    for (int content : written) release(content);
+  }
+
+  /** After a failed write, release the content appended but not published. */
+  private void discard(List<Integer> written) {
+    for (int content : written)
+      if (index.refs(content) == 0) index.free(content);
+  }
+
+  private void writePut(DataOutputStream out, String name, int content) throws IOException {
+    boolean hashed = index.hasHash(content);
+    out.writeByte(hashed ? RECORD_PUT_HASHED : RECORD_PUT);
+    out.writeUTF(name);
+    out.writeInt(index.segment(content));
+    out.writeLong(index.offset(content));
+    out.writeInt(index.length(content));
+    if (hashed) index.writeHash(content, out);
+  }
+
+  private void setEntry(String name, int content) {
+    // referenced first, so it is not released if it replaces itself
+    retain(content);
+    int previous = index.set(name, content);
+    if (previous >= 0) release(previous);
+  }
+
+  private void removeEntry(String name) {
+    int previous = index.remove(name);
+    if (previous >= 0) release(previous);
+  }
+
+  private void retain(int content) {
+    if (index.addRef(content) > 1) return;
+    segments.get(index.segment(content)).live += index.length(content);
+    index.publishHash(content);
+  }
+
+  private void release(int content) {
+    if (index.removeRef(content) > 0) return;
+    Segment segment = segments.get(index.segment(content));
+    if (segment != null) segment.live -= index.length(content);
+    index.free(content);
+  }
+
+  /** Return the content having the given hash, either published or in the given pending contents, or -1. */
+  private int findContent(byte[] hash, int length, Map<ByteBuffer, Integer> pending) {
+    int content = index.find(hash, length);
+    if (content >= 0 || pending == null) return content;
+    Integer appended = pending.get(ByteBuffer.wrap(hash));
+    return appended != null && index.length(appended) == length ? appended : -1;
+  }
+
+  private static MessageDigest newDigest() {
+    try {
+      return MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException("SHA-256 not available", e);
+    }
+  }
+
+  private static byte[] hash(byte[] data) {
+    return newDigest().digest(data);
+  }
+
+  private static byte[] hash(File file) throws IOException {
+    MessageDigest digest = newDigest();
+    byte[] buffer = BufferPool.acquire(COPY_BUFFER_SIZE);
+    try (FileInputStream in = new FileInputStream(file)) {
+      int nb;
+      while ((nb = in.read(buffer)) > 0) digest.update(buffer, 0, nb);
+    } finally {
+      BufferPool.release(buffer);
+    }
+    return digest.digest();
+  }
+
+  private static void writeEmptyIndex(File file) throws IOException {
+    try (DataOutputStream out = new DataOutputStream(new FileOutputStream(file))) {
+      out.writeInt(INDEX_MAGIC);
+    }
+  }
+
+  private static void truncate(File file, long length) throws IOException {
+    try (RandomAccessFile f = new RandomAccessFile(file, "rw")) {
+      if (f.length() > length) f.setLength(length);
+    }
+  }
+
+  private static class CountingInputStream extends FilterInputStream {
+    private long count = 0;
+
+    private CountingInputStream(InputStream in) {
+      super(in);
+    }
+
+    @Override
+    public int read() throws IOException {
+      int b = super.read();
+      if (b >= 0) count++;
+      return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      int nb = super.read(b, off, len);
+      if (nb > 0) count += nb;
+      return nb;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+      long skipped = super.skip(n);
+      count += skipped;
+      return skipped;
+    }
+  }
+}
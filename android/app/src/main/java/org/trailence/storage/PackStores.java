@@ -0,0 +1,75 @@
+package org.trailence.storage;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Pack stores of the directories using packed storage, opened on first access.
+ * Directories not using packed storage are remembered too, to avoid checking the file system each time.
+ */
+class PackStores {
+
+  private final File root;
+  private final Map<String, Optional<PackStore>> stores = new ConcurrentHashMap<>();
+
+  PackStores(File root) {
+    this.root = root;
+  }
+
+  /** Return the pack store of the given directory, or null if it does not use packed storage. */
+  PackStore get(String dir) throws IOException {
+    Optional<PackStore> store = stores.get(dir);
+    if (store == null) {
+      synchronized (this) {
+        store = stores.get(dir);
+        if (store == null) {
+          File d = new File(root, dir);
+          store = PackStore.isPacked(d) ? Optional.of(PackStore.open(d)) : Optional.empty();
+          stores.put(dir, store);
+        }
+      }
+    }
+    return store.orElse(null);
+  }
+
+  /**
+   * Convert the given directory to packed storage if not already done, and move existing files into the pack.
+   * If deduplicate is true, identical contents written from now are stored once.
+   */
+  PackStore enable(String dir, boolean deduplicate) throws IOException {
+    PackStore store;
+    synchronized (this) {
+      store = get(dir);
+      if (store == null) {
+        store = PackStore.open(new File(root, dir));
+        stores.put(dir, Optional.of(store));
+      }
+    }
+    if (deduplicate) store.enableDeduplication();
+    // if a previous import was interrupted, some files may remain
+    store.importFiles(new File(root, dir));
+    return store;
+  }
+
+  /** Close and forget the stores of the given directory and its sub-directories, before they are moved or deleted. */
+  synchronized void invalidate(String dir) {
+    String prefix = dir + "/";
+    for (Iterator<Map.Entry<String, Optional<PackStore>>> it = stores.entrySet().iterator(); it.hasNext(); ) {
+      Map.Entry<String, Optional<PackStore>> entry = it.next();
+      if (entry.getKey().equals(dir) || entry.getKey().startsWith(prefix)) {
+        entry.getValue().ifPresent(PackStore::close);
+        it.remove();
+      }
+    }
+  }
+
+  synchronized void closeAll() {
+    for (Optional<PackStore> store : stores.values())
+      store.ifPresent(PackStore::close);
+    stores.clear();
+  }
+}
@@ -0,0 +1,278 @@
+package org.trailence.storage;
+
+import com.getcapacitor.Logger;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keep directories under a size quota, by deleting their least recently used files.
+ * A quota is a maximum size for the directory, and/or a minimum free space to keep on the device.
+ * Accesses are tracked in memory: files not accessed since the application started come first, oldest written first,
+ * then the others by last access. Eviction runs in background by passes deleting a bounded number of files,
+ * and the names of deleted files are logged so the application can forget them.
+ */
+class QuotaEvictor {
+
+  static final String DIR_NAME = ".quota";
+  private static final String EVICTED_SUFFIX = ".evicted";
+  private static final int MAX_FILES_PER_PASS = 256;
+  /** Delay before checking a directory after a write, so a batch of writes triggers a single check. */
+  private static final long CHECK_DELAY = 2000;
+  private static final long PASS_INTERVAL = 500;
+  /** When eviction is needed, files are deleted until this ratio of the allowed size, so it does not run again on each write. */
+  private static final double TARGET_RATIO = 0.9;
+
+  /** Access to the files of directories, which may use packed storage. */
+  interface Storage {
+    /** Total size of the files directly in the directory. */
+    long usedSize(String dir) throws IOException;
+    /** Names of the files directly in the directory, oldest written first. */
+    List<String> namesByAge(String dir) throws IOException;
+    /** Sizes of the given files, -1 for the ones which do not exist anymore. */
+    long[] sizes(String dir, String[] names) throws IOException;
+    void delete(String dir, List<String> names) throws IOException;
+  }
+
+  private static final class DirState {
+    private final long maxSize;
+    private final long minFreeSpace;
+    private final Map<String, Long> accessed;
+    private boolean checkScheduled = false;
+    /** Files to evict in the current run, least recently used first, null when not evicting. */
+    private ArrayDeque<String> candidates = null;
+    private long runStart;
+    private long runTarget;
+
+    private DirState(long maxSize, long minFreeSpace, Map<String, Long> accessed) {
+      this.maxSize = maxSize;
+      this.minFreeSpace = minFreeSpace;
+      this.accessed = accessed;
+    }
+  }
+
+  private final File root;
+  private final File logDir;
+  private final StorageExecutor io;
+  private final ScheduledExecutorService scheduler;
+  private final Storage storage;
+  private final Map<String, DirState> dirs = new ConcurrentHashMap<>();
+
+  QuotaEvictor(File root, StorageExecutor io, ScheduledExecutorService scheduler, Storage storage) {
+    this.root = root;
+    this.logDir = new File(root, DIR_NAME);
+    this.io = io;
+    this.scheduler = scheduler;
+    this.storage = storage;
+  }
+
+  /** Set the quota of a directory, or remove it if both values are not positive. Accesses already tracked are kept. */
+  void setQuota(String dir, long maxSize, long minFreeSpace) {
+    DirState previous = dirs.get(dir);
+    if (maxSize <= 0 && minFreeSpace <= 0) {
+      dirs.remove(dir);
+      return;
+    }
+    Map<String, Long> accessed = new HashMap<>();
+    if (previous != null) {
+      synchronized (previous) {
+        accessed.putAll(previous.accessed);
+      }
+    }
+    DirState state = new DirState(maxSize, minFreeSpace, accessed);
+    dirs.put(dir, state);
+    scheduleCheck(dir, state, 0);
+  }
+
+  /** Called when a file has been read. */
+  void accessed(String dir, String filename) {
+    DirState state = dirs.get(dir);
+    if (state == null) return;
+    synchronized (state) {
+      state.accessed.put(filename, System.currentTimeMillis());
+    }
+  }
+
+  /** Called after files have been written, to check the quota. */
+  void written(String dir, Iterable<String> filenames) {
+    DirState state = dirs.get(dir);
+    if (state == null) return;
+    long now = System.currentTimeMillis();
+    synchronized (state) {
+      for (String filename : filenames) state.accessed.put(filename, now);
+    }
+    scheduleCheck(dir, state, CHECK_DELAY);
+  }
+
+  /** Called after files have been deleted. */
+  void deleted(String dir, Iterable<String> filenames) {
+    DirState state = dirs.get(dir);
+    if (state == null) return;
+    synchronized (state) {
+      for (String filename : filenames) state.accessed.remove(filename);
+    }
+  }
+
+  /** Forget what is known about the files of the given directory and its sub-directories, the quotas remain. */
+  void invalidate(String dir) {
+    String prefix = dir + "/";
+    for (Map.Entry<String, DirState> entry : dirs.entrySet()) {
+      if (!entry.getKey().equals(dir) && !entry.getKey().startsWith(prefix)) continue;
+      DirState state = entry.getValue();
+      synchronized (state) {
+        state.accessed.clear();
+        state.candidates = null;
+      }
+    }
+  }
+
+  /** Return the names of the files evicted from the given directory since the last call, and forget them. */
+  List<String> takeEvicted(String dir) throws IOException {
+    File log = logFile(dir);
+    List<String> names = new ArrayList<>();
+    if (!log.exists()) return names;
+    try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(log), StandardCharsets.UTF_8))) {
+      String line;
+      while ((line = reader.readLine()) != null)
+        if (!line.isEmpty()) names.add(line);
+    }
+    if (!log.delete()) throw new IOException("Cannot delete " + log.getAbsolutePath());
+    return names;
+  }
+
+  private void scheduleCheck(String dir, DirState state, long delay) {
+    synchronized (state) {
+      if (state.checkScheduled) return;
+      state.checkScheduled = true;
+    }
+    try {
+      // executed with the directory's key, like other operations on several files of a directory
+      scheduler.schedule(() -> io.execute(dir, StorageExecutor.Priority.BACKGROUND, () -> pass(dir, state)), delay, TimeUnit.MILLISECONDS);
+    } catch (RejectedExecutionException e) {
+      // shutting down
+    }
+  }
+
+  private void pass(String dir, DirState state) {
+    synchronized (state) {
+      state.checkScheduled = false;
+    }
+    // quota changed or removed since scheduled
+    if (dirs.get(dir) != state) return;
+    try {
+      long used = storage.usedSize(dir);
+      if (state.candidates == null) {
+        long allowed = allowedSize(state, used);
+        if (used <= allowed) return;
+        startRun(dir, state, (long) (allowed * TARGET_RATIO));
+      }
+      if (used > state.runTarget) used = evictBatch(dir, state, used);
+      synchronized (state) {
+        if (used > state.runTarget && state.candidates != null && !state.candidates.isEmpty()) {
+          scheduleCheck(dir, state, PASS_INTERVAL);
+          return;
+        }
+        state.candidates = null;
+      }
+    } catch (Exception e) {
+      Logger.error("Error evicting files from " + dir, e);
+      synchronized (state) {
+        state.candidates = null;
+      }
+    }
+  }
+
+  /** Maximum size of the directory, considering the free space which would be left on the device. */
+  private long allowedSize(DirState state, long used) {
+    long allowed = state.maxSize > 0 ? state.maxSize : Long.MAX_VALUE;
+    if (state.minFreeSpace > 0) {
+      long missing = state.minFreeSpace - root.getUsableSpace();
+      if (missing > 0) allowed = Math.min(allowed, used - missing);
+    }
+    return allowed;
+  }
+
+  /**
+   * Order the files once for the whole run. The target is fixed at the start, because space freed in packed storage
+   * is only given back to the device after compaction.
+   */
+  private void startRun(String dir, DirState state, long target) throws IOException {
+    List<String> names = storage.namesByAge(dir);
+    synchronized (state) {
+      Map<String, Long> accessed = new HashMap<>(state.accessed);
+      // stable sort: files not accessed keep their age order, before any accessed file
+      names.sort(Comparator.comparingLong(name -> accessed.getOrDefault(name, 0L)));
+      state.candidates = new ArrayDeque<>(names);
+      state.runStart = System.currentTimeMillis();
+      state.runTarget = target;
+    }
+  }
+
+  /** Delete at most MAX_FILES_PER_PASS files, and return the new used size. */
+  private long evictBatch(String dir, DirState state, long used) throws IOException {
+    List<String> batch = new ArrayList<>(MAX_FILES_PER_PASS);
+    synchronized (state) {
+      while (state.candidates != null && batch.size() < MAX_FILES_PER_PASS && !state.candidates.isEmpty()) {
+        String name = state.candidates.poll();
+        Long access = state.accessed.get(name);
+        // accessed since the run started: keep it
+        if (access == null || access < state.runStart) batch.add(name);
+      }
+    }
+    if (batch.isEmpty()) return used;
+    long[] sizes = storage.sizes(dir, batch.toArray(new String[0]));
+    List<String> toDelete = new ArrayList<>(batch.size());
+    int i = 0;
+    for (; i < sizes.length && used > state.runTarget; ++i) {
+      if (sizes[i] < 0) continue;
+      toDelete.add(batch.get(i));
+      used -= sizes[i];
+    }
+    if (i < batch.size()) {
+      // target reached: not processed ones are not evicted
+      synchronized (state) {
+        if (state.candidates != null)
+          for (int j = batch.size() - 1; j >= i; --j) state.candidates.addFirst(batch.get(j));
+      }
+    }
+    if (toDelete.isEmpty()) return used;
+    // logged first, so a file cannot be deleted without the application knowing it
+    log(dir, toDelete);
+    storage.delete(dir, toDelete);
+    Logger.info("Quota of " + dir + ": " + toDelete.size() + " file(s) evicted");
+    return used;
+  }
+
+  private void log(String dir, List<String> names) throws IOException {
+    if (!logDir.isDirectory() && !logDir.mkdirs())
+      throw new IOException("Cannot create directory " + logDir.getAbsolutePath());
+    try (BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(logFile(dir), true), StandardCharsets.UTF_8))) {
+      for (String name : names) {
+        writer.write(name);
+        writer.write('\n');
+      }
+    }
+  }
+
+  private File logFile(String dir) throws IOException {
+    return new File(logDir, URLEncoder.encode(dir, "UTF-8") + EVICTED_SUFFIX);
+  }
+}
@@ -0,0 +1,212 @@
+package org.trailence.storage;
+
+import com.getcapacitor.Logger;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Executes storage operations on a bounded pool of threads, outside of the plugin thread.
+ * Keys are paths: operations on the same key, or on a directory and the files or sub-directories it contains,
+ * are executed sequentially in submission order, while operations on unrelated keys are executed in parallel.
+ * Waiting operations are started by priority, then in submission order.
+ */
+class StorageExecutor {
+
+  enum Priority {
+    /** Needed immediately by the user interface, like the tiles of the visible map. */
+    INTERACTIVE,
+    NORMAL,
+    /** Can wait, like backups, migrations or maintenance. */
+    BACKGROUND;
+
+    /** Parse the priority given by the JS side, NORMAL if missing or unknown. */
+    static Priority of(String name) {
+      if ("interactive".equals(name)) return INTERACTIVE;
+      if ("background".equals(name)) return BACKGROUND;
+      return NORMAL;
+    }
+  }
+
+  private static class KeyQueue {
+    private final String key;
+    /** Operations of the key not yet finished, in submission order. */
+    private final ArrayDeque<Task> tasks = new ArrayDeque<>();
+    /** Number of waiting tasks by priority. */
+    private final int[] counts = new int[Priority.values().length];
+    private KeyQueue(String key) {
+      this.key = key;
+    }
+
+    /** Highest priority of the waiting tasks, which must be given to the next one since they wait for it. */
+    private Priority highest(Priority next) {
+      for (Priority priority : Priority.values())
+        if (priority == next || counts[priority.ordinal()] > 0) return priority;
+      return next;
+    }
+  }
+
+  /** An operation, started once the previous operations it is ordered with are finished. */
+  private static final class Task {
+    private final KeyQueue queue;
+    private final Runnable runnable;
+    private Priority priority;
+    /** Number of previous operations not yet finished. */
+    private int waitingFor = 0;
+    /** Next operations waiting for this one. */
+    private List<Task> dependents = null;
+    private Task(KeyQueue queue, Runnable runnable, Priority priority) {
+      this.queue = queue;
+      this.runnable = runnable;
+      this.priority = priority;
+    }
+
+    private void after(Task previous) {
+      if (previous == null) return;
+      if (previous.dependents == null) previous.dependents = new ArrayList<>(2);
+      previous.dependents.add(this);
+      waitingFor++;
+    }
+  }
+
+  /** A task in the pool's queue. */
+  private static final class Queued implements Runnable {
+    private final Runnable task;
+    private final Priority priority;
+    private final long sequence;
+    private Queued(Runnable task, Priority priority, long sequence) {
+      this.task = task;
+      this.priority = priority;
+      this.sequence = sequence;
+    }
+
+    @Override
+    public void run() {
+      task.run();
+    }
+  }
+
+  private final ThreadPoolExecutor pool;
+  private final TreeMap<String, KeyQueue> queues = new TreeMap<>();
+  private final AtomicLong sequence = new AtomicLong(0);
+  private boolean shutdown = false;
+
+  StorageExecutor(String name) {
+    int threads = Math.max(2, Math.min(4, Runtime.getRuntime().availableProcessors()));
+    AtomicInteger counter = new AtomicInteger(0);
+    ThreadFactory factory = r -> {
+      Thread t = new Thread(r, name + "-" + counter.incrementAndGet());
+      t.setDaemon(true);
+      return t;
+    };
+    PriorityBlockingQueue<Runnable> waiting = new PriorityBlockingQueue<>(64, (r1, r2) -> {
+      Queued q1 = (Queued) r1;
+      Queued q2 = (Queued) r2;
+      int c = q1.priority.compareTo(q2.priority);
+      return c != 0 ? c : Long.compare(q1.sequence, q2.sequence);
+    });
+    pool = new ThreadPoolExecutor(threads, threads, 30, TimeUnit.SECONDS, waiting, factory);
+    pool.allowCoreThreadTimeOut(true);
+  }
+
+  void execute(String key, Runnable task) {
+    execute(key, Priority.NORMAL, task);
+  }
+
+  void execute(String key, Priority priority, Runnable task) {
+    Task t;
+    synchronized (queues) {
+      if (shutdown) throw new RejectedExecutionException("Storage executor is shut down");
+      List<KeyQueue> previous = ordered(key);
+      KeyQueue queue = queues.get(key);
+      if (queue == null) {
+        queue = new KeyQueue(key);
+        queues.put(key, queue);
+      }
+      t = new Task(queue, task, priority);
+      for (KeyQueue q : previous) t.after(q.tasks.peekLast());
+      queue.tasks.add(t);
+      if (t.waitingFor > 0) {
+        queue.counts[priority.ordinal()]++;
+        return;
+      }
+    }
+    submit(t);
+  }
+
+  /**
+   * Return the queues of the keys whose operations must be executed before a new operation on the given key:
+   * the same key, its parent directories, and the files and sub-directories it contains.
+   */
+  private List<KeyQueue> ordered(String key) {
+    // '0' is the character following '/'
+    List<KeyQueue> result = new ArrayList<>(queues.subMap(key + "/", key + "0").values());
+    KeyQueue same = queues.get(key);
+    if (same != null) result.add(same);
+    for (int i = key.indexOf('/'); i > 0; i = key.indexOf('/', i + 1)) {
+      KeyQueue parent = queues.get(key.substring(0, i));
+      if (parent != null) result.add(parent);
+    }
+    return result;
+  }
+
+  private void submit(Task task) {
+    pool.execute(new Queued(() -> {
+      try {
+        task.runnable.run();
+      } catch (Throwable t) {
+        Logger.error("Unexpected error in storage operation on " + task.queue.key, t);
+      } finally {
+        finished(task);
+      }
+    }, task.priority, sequence.incrementAndGet()));
+  }
+
+  /** Start the operations which were waiting only for the given one, and release its key if nothing else is waiting. */
+  private void finished(Task task) {
+    List<Task> ready = new ArrayList<>(2);
+    synchronized (queues) {
+      KeyQueue queue = task.queue;
+      queue.tasks.remove(task);
+      if (queue.tasks.isEmpty()) queues.remove(queue.key);
+      if (task.dependents != null)
+        for (Task next : task.dependents) {
+          if (--next.waitingFor > 0) continue;
+          next.queue.counts[next.priority.ordinal()]--;
+          next.priority = next.queue.highest(next.priority);
+          ready.add(next);
+        }
+      if (queues.isEmpty()) queues.notifyAll();
+    }
+    for (Task next : ready) submit(next);
+  }
+
+  /**
+   * Refuse new operations, and wait for the submitted ones to be executed, at most the given time.
+   * Return true if all operations have been executed.
+   */
+  boolean shutdown(long timeoutMillis) throws InterruptedException {
+    long end = System.currentTimeMillis() + timeoutMillis;
+    synchronized (queues) {
+      shutdown = true;
+      long remaining;
+      while (!queues.isEmpty() && (remaining = end - System.currentTimeMillis()) > 0) queues.wait(remaining);
+      if (!queues.isEmpty()) {
+        pool.shutdownNow();
+        return false;
+      }
+    }
+    pool.shutdown();
+    return pool.awaitTermination(Math.max(0, end - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+  }
+
+}
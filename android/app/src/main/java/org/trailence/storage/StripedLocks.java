@@ -0,0 +1,27 @@
+package org.trailence.storage;
+
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Locks by file, so the operations replacing or deleting a file are not interleaved when they are executed
+ * with different keys, such as the end of a chunked write of a file and a batch write of its directory.
+ * A fixed number of locks is shared by all files: two files may share a lock, so a lock must never be
+ * acquired while holding the one of another file.
+ */
+class StripedLocks {
+
+  private final ReentrantLock[] locks;
+
+  /** The number of stripes is rounded up to a power of 2. */
+  StripedLocks(int stripes) {
+    int size = Integer.highestOneBit(Math.max(1, stripes - 1)) << 1;
+    locks = new ReentrantLock[size];
+    for (int i = 0; i < size; ++i) locks[i] = new ReentrantLock();
+  }
+
+  ReentrantLock get(String dir, String filename) {
+    int h = dir.hashCode() * 31 + filename.hashCode();
+    h ^= h >>> 16;
+    return locks[h & (locks.length - 1)];
+  }
+}
@@ -0,0 +1,51 @@
+package org.trailence.storage;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Temporary files of the writes in progress. Each write has its own file, so overlapping writes of the same file
+ * cannot corrupt each other, and they are in a directory of their own so they are never listed with the files.
+ * Being on the same file system, a complete file replaces its target atomically: a reader sees either the previous
+ * or the new content, never a missing or partial file.
+ * Anything remaining when the application starts is from an interrupted write and is deleted.
+ */
+class TempFiles {
+
+  static final String DIR_NAME = ".writes";
+
+  private final File dir;
+  private final AtomicLong counter = new AtomicLong(0);
+
+  TempFiles(File root) {
+    this.dir = new File(root, DIR_NAME);
+  }
+
+  /** Delete the files of interrupted writes. Must be called before any write starts. */
+  void purge() {
+    File[] files = dir.listFiles();
+    if (files == null) return;
+    for (File file : files) file.delete();
+  }
+
+  /** Return a new temporary file name, unique for the lifetime of the application. */
+  File create() throws IOException {
+    if (!dir.isDirectory() && !dir.mkdirs() && !dir.isDirectory())
+      throw new IOException("Cannot create directory for temporary files");
+    return new File(dir, System.currentTimeMillis() + "-" + counter.incrementAndGet() + ".tmp");
+  }
+
+  /** Replace the target by the temporary file. On failure, the temporary file is deleted and the target is unchanged. */
+  static void commit(File tempFile, File targetFile) throws IOException {
+    try {
+      targetFile.getParentFile().mkdirs();
+      Files.move(tempFile.toPath(), targetFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    } catch (IOException e) {
+      tempFile.delete();
+      throw e;
+    }
+  }
+}
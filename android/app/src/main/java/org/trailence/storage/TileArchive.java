@@ -0,0 +1,308 @@
+package org.trailence.storage;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Reader of a PMTiles (version 3) archive: a single file containing the tiles of a map, with a directory
+ * giving the location of each tile. The file is memory-mapped, and directories are parsed once then cached,
+ * so a tile is found by a binary search in the root directory and at most a few leaf directories.
+ * Tile ids follow the Hilbert curve of each zoom level, see https://github.com/protomaps/PMTiles/blob/main/spec/v3/spec.md
+ */
+class TileArchive {
+
+  private static final int HEADER_LENGTH = 127;
+  private static final byte[] MAGIC = "PMTiles".getBytes(StandardCharsets.US_ASCII);
+  private static final int VERSION = 3;
+  private static final int MAX_DIRECTORY_DEPTH = 4;
+  private static final int MAX_CACHED_DIRECTORIES = 64;
+  /** The file is mapped by regions, overlapping so that a directory or a tile is almost always in a single region. */
+  private static final long REGION_SIZE = 1L << 30;
+  private static final long REGION_OVERLAP = 16L << 20;
+
+  private static final int COMPRESSION_NONE = 1;
+  private static final int COMPRESSION_GZIP = 2;
+
+  /** A tile read from the archive. */
+  static final class Tile {
+    final byte[] data;
+    final String contentType;
+
+    private Tile(byte[] data, String contentType) {
+      this.data = data;
+      this.contentType = contentType;
+    }
+  }
+
+  private static final class Directory {
+    private final long[] tileIds;
+    private final long[] runLengths;
+    private final int[] lengths;
+    private final long[] offsets;
+
+    private Directory(int size) {
+      tileIds = new long[size];
+      runLengths = new long[size];
+      lengths = new int[size];
+      offsets = new long[size];
+    }
+
+    /** Index of the entry containing the given tile, or of the leaf directory which may contain it, or -1. */
+    private int find(long tileId) {
+      int low = 0;
+      int high = tileIds.length - 1;
+      while (low <= high) {
+        int mid = (low + high) >>> 1;
+        if (tileIds[mid] < tileId) low = mid + 1;
+        else if (tileIds[mid] > tileId) high = mid - 1;
+        else return mid;
+      }
+      // high is now the last entry before the tile
+      if (high >= 0 && (runLengths[high] == 0 || tileId - tileIds[high] < runLengths[high])) return high;
+      return -1;
+    }
+  }
+
+  private final FileChannel channel;
+  private final long fileSize;
+  /** Mapped regions, null if the file cannot be mapped in which case positional reads are used. */
+  private final MappedByteBuffer[] regions;
+
+  final int minZoom;
+  final int maxZoom;
+  final double minLon;
+  final double minLat;
+  final double maxLon;
+  final double maxLat;
+  final int centerZoom;
+  final double centerLon;
+  final double centerLat;
+  final long addressedTiles;
+  final String contentType;
+  private final int internalCompression;
+  private final int tileCompression;
+  private final long leafDirectoriesOffset;
+  private final long tileDataOffset;
+  private final Directory root;
+  private final Map<Long, Directory> leaves = new LinkedHashMap<>(16, 0.75f, true) {
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<Long, Directory> eldest) {
+      return size() > MAX_CACHED_DIRECTORIES;
+    }
+  };
+
+  private TileArchive(FileChannel channel, MappedByteBuffer[] regions) throws IOException {
+    this.channel = channel;
+    this.fileSize = channel.size();
+    this.regions = regions;
+    ByteBuffer header = ByteBuffer.wrap(read(0, HEADER_LENGTH)).order(ByteOrder.LITTLE_ENDIAN);
+    for (int i = 0; i < MAGIC.length; ++i)
+      if (header.get(i) != MAGIC[i]) throw new IOException("Not a PMTiles archive");
+    if (header.get(7) != VERSION) throw new IOException("Unsupported PMTiles version " + header.get(7));
+    long rootOffset = header.getLong(8);
+    long rootLength = header.getLong(16);
+    leafDirectoriesOffset = header.getLong(40);
+    tileDataOffset = header.getLong(56);
+    addressedTiles = header.getLong(72);
+    internalCompression = header.get(97);
+    tileCompression = header.get(98);
+    contentType = contentType(header.get(99));
+    minZoom = header.get(100) & 0xFF;
+    maxZoom = header.get(101) & 0xFF;
+    minLon = header.getInt(102) / 1e7;
+    minLat = header.getInt(106) / 1e7;
+    maxLon = header.getInt(110) / 1e7;
+    maxLat = header.getInt(114) / 1e7;
+    centerZoom = header.get(118) & 0xFF;
+    centerLon = header.getInt(119) / 1e7;
+    centerLat = header.getInt(123) / 1e7;
+    checkCompression(internalCompression);
+    checkCompression(tileCompression);
+    root = readDirectory(rootOffset, rootLength);
+  }
+
+  static TileArchive open(File file) throws IOException {
+    FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+    try {
+      return new TileArchive(channel, map(channel, channel.size()));
+    } catch (IOException | RuntimeException e) {
+      channel.close();
+      throw e;
+    }
+  }
+
+  private static MappedByteBuffer[] map(FileChannel channel, long size) {
+    MappedByteBuffer[] regions = new MappedByteBuffer[(int) ((size + REGION_SIZE - 1) / REGION_SIZE)];
+    try {
+      for (int i = 0; i < regions.length; ++i) {
+        long start = i * REGION_SIZE;
+        regions[i] = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(REGION_SIZE + REGION_OVERLAP, size - start));
+      }
+      return regions;
+    } catch (IOException e) {
+      // address space may be too small on 32-bit devices
+      return null;
+    }
+  }
+
+  /** Return the given tile, or null if it is not in the archive. */
+  Tile getTile(int z, long x, long y) throws IOException {
+    if (z < minZoom || z > maxZoom || x < 0 || y < 0 || x >= (1L << z) || y >= (1L << z)) return null;
+    long tileId = tileId(z, x, y);
+    Directory directory = root;
+    for (int depth = 0; depth < MAX_DIRECTORY_DEPTH; ++depth) {
+      int i = directory.find(tileId);
+      if (i < 0) return null;
+      if (directory.runLengths[i] > 0) {
+        byte[] data = read(tileDataOffset + directory.offsets[i], directory.lengths[i]);
+        return new Tile(tileCompression == COMPRESSION_GZIP ? gunzip(data) : data, contentType);
+      }
+      directory = getLeaf(leafDirectoriesOffset + directory.offsets[i], directory.lengths[i]);
+    }
+    return null;
+  }
+
+  void close() throws IOException {
+    channel.close();
+  }
+
+  private Directory getLeaf(long offset, int length) throws IOException {
+    synchronized (leaves) {
+      Directory leaf = leaves.get(offset);
+      if (leaf != null) return leaf;
+    }
+    Directory leaf = readDirectory(offset, length);
+    synchronized (leaves) {
+      leaves.put(offset, leaf);
+    }
+    return leaf;
+  }
+
+  private Directory readDirectory(long offset, long length) throws IOException {
+    if (length > Integer.MAX_VALUE) throw new IOException("Directory too large");
+    byte[] bytes = read(offset, (int) length);
+    if (internalCompression == COMPRESSION_GZIP) bytes = gunzip(bytes);
+    VarintReader in = new VarintReader(bytes);
+    long count = in.next();
+    if (count > bytes.length) throw new IOException("Invalid directory");
+    Directory directory = new Directory((int) count);
+    long lastId = 0;
+    for (int i = 0; i < count; ++i) {
+      lastId += in.next();
+      directory.tileIds[i] = lastId;
+    }
+    for (int i = 0; i < count; ++i) directory.runLengths[i] = in.next();
+    for (int i = 0; i < count; ++i) directory.lengths[i] = (int) in.next();
+    for (int i = 0; i < count; ++i) {
+      long value = in.next();
+      // 0 means just after the previous entry
+      directory.offsets[i] = value == 0 && i > 0 ? directory.offsets[i - 1] + directory.lengths[i - 1] : value - 1;
+    }
+    return directory;
+  }
+
+  private byte[] read(long offset, int length) throws IOException {
+    if (offset < 0 || length < 0 || offset + length > fileSize) throw new EOFException("Invalid range in archive");
+    byte[] bytes = new byte[length];
+    if (regions != null) {
+      int index = (int) (offset / REGION_SIZE);
+      MappedByteBuffer region = regions[index];
+      int position = (int) (offset - index * REGION_SIZE);
+      if (position + length <= region.capacity()) {
+        // duplicate, so concurrent reads do not share a position
+        ByteBuffer view = region.duplicate();
+        view.position(position);
+        view.get(bytes);
+        return bytes;
+      }
+    }
+    ByteBuffer buffer = ByteBuffer.wrap(bytes);
+    long pos = offset;
+    while (buffer.hasRemaining()) {
+      int nb = channel.read(buffer, pos);
+      if (nb < 0) throw new EOFException();
+      pos += nb;
+    }
+    return bytes;
+  }
+
+  /** Position of a tile on the Hilbert curves of all zoom levels. */
+  static long tileId(int z, long x, long y) {
+    long acc = ((1L << (2 * z)) - 1) / 3; // number of tiles in lower zoom levels
+    long d = 0;
+    for (long s = 1L << z >> 1; s > 0; s >>= 1) {
+      long rx = (x & s) != 0 ? 1 : 0;
+      long ry = (y & s) != 0 ? 1 : 0;
+      d += s * s * ((3 * rx) ^ ry);
+      if (ry == 0) {
+        if (rx == 1) {
+          x = s - 1 - x;
+          y = s - 1 - y;
+        }
+        long t = x;
+        x = y;
+        y = t;
+      }
+    }
+    return acc + d;
+  }
+
+  private static void checkCompression(int compression) throws IOException {
+    if (compression != COMPRESSION_NONE && compression != COMPRESSION_GZIP && compression != 0)
+      throw new IOException("Unsupported compression " + compression + " in PMTiles archive");
+  }
+
+  private static String contentType(int tileType) {
+    switch (tileType) {
+      case 1: return "application/vnd.mapbox-vector-tile";
+      case 2: return "image/png";
+      case 3: return "image/jpeg";
+      case 4: return "image/webp";
+      case 5: return "image/avif";
+      default: return "application/octet-stream";
+    }
+  }
+
+  private static byte[] gunzip(byte[] data) throws IOException {
+    try (InputStream in = new GZIPInputStream(new ByteArrayInputStream(data))) {
+      ByteArrayOutputStream out = new ByteArrayOutputStream(data.length * 4);
+      byte[] buffer = new byte[8192];
+      int nb;
+      while ((nb = in.read(buffer)) > 0) out.write(buffer, 0, nb);
+      return out.toByteArray();
+    }
+  }
+
+  private static final class VarintReader {
+    private final byte[] bytes;
+    private int pos = 0;
+
+    private VarintReader(byte[] bytes) {
+      this.bytes = bytes;
+    }
+
+    private long next() throws IOException {
+      long value = 0;
+      for (int shift = 0; shift < 64; shift += 7) {
+        if (pos >= bytes.length) throw new EOFException("Truncated directory");
+        int b = bytes[pos++];
+        value |= (long) (b & 0x7F) << shift;
+        if ((b & 0x80) == 0) return value;
+      }
+      throw new IOException("Invalid varint in directory");
+    }
+  }
+}
@@ -0,0 +1,82 @@
+package org.trailence.storage;
+
+import com.getcapacitor.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Tile archives opened on first access, and kept open for next accesses.
+ * An archive is forgotten when its file is written or deleted through the plugin.
+ */
+class TileArchives {
+
+  private static final int MAX_OPEN_ARCHIVES = 8;
+
+  private final File root;
+  private final Map<String, TileArchive> archives = new LinkedHashMap<>(16, 0.75f, true) {
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<String, TileArchive> eldest) {
+      if (size() <= MAX_OPEN_ARCHIVES) return false;
+      close(eldest.getValue());
+      return true;
+    }
+  };
+
+  TileArchives(File root) {
+    this.root = root;
+  }
+
+  /** Return the archive stored in the given file, or null if the file does not exist. */
+  TileArchive get(String dir, String filename) throws IOException {
+    String path = dir + "/" + filename;
+    synchronized (archives) {
+      TileArchive archive = archives.get(path);
+      if (archive != null) return archive;
+      File file = new File(new File(root, dir), filename);
+      if (!file.isFile()) return null;
+      archive = TileArchive.open(file);
+      archives.put(path, archive);
+      return archive;
+    }
+  }
+
+  /** Called when the given file is written or deleted. */
+  void changed(String dir, String filename) {
+    synchronized (archives) {
+      TileArchive archive = archives.remove(dir + "/" + filename);
+      if (archive != null) close(archive);
+    }
+  }
+
+  /** Forget the archives of the given directory and its sub-directories. */
+  void invalidate(String dir) {
+    String prefix = dir + "/";
+    synchronized (archives) {
+      for (Iterator<Map.Entry<String, TileArchive>> it = archives.entrySet().iterator(); it.hasNext(); ) {
+        Map.Entry<String, TileArchive> entry = it.next();
+        if (!entry.getKey().startsWith(prefix)) continue;
+        close(entry.getValue());
+        it.remove();
+      }
+    }
+  }
+
+  void closeAll() {
+    synchronized (archives) {
+      for (TileArchive archive : archives.values()) close(archive);
+      archives.clear();
+    }
+  }
+
+  private static void close(TileArchive archive) {
+    try {
+      archive.close();
+    } catch (IOException e) {
+      Logger.error("Error closing tile archive", e);
+    }
+  }
+}
@@ -0,0 +1,221 @@
+package org.trailence.storage;
+
+import com.getcapacitor.Logger;
+
+import org.trailence.BufferPool;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Download of a list of map tiles, by a bounded number of concurrent connections.
+ * Tiles are given to a sink by batches as soon as they are downloaded, so they are written to the storage
+ * without going through the JS side, and the download continues while the WebView is paused.
+ */
+class TileDownload {
+
+  static final int MAX_CONCURRENCY = 8;
+  static final int BATCH_SIZE = 50;
+  static final int MAX_ATTEMPTS = 3;
+  private static final long RETRY_DELAY = 1000;
+  private static final int CONNECT_TIMEOUT = 15000;
+  private static final int READ_TIMEOUT = 30000;
+  private static final int MAX_TILE_SIZE = 16 * 1024 * 1024;
+
+  /**
+   * Where the downloaded tiles are stored. Called by the download threads, it may block to slow down the download.
+   * The download is given so a batch can be dropped if the download has been cancelled while it was waiting.
+   */
+  interface Sink {
+    void store(TileDownload download, List<String> filenames, List<byte[]> contents) throws IOException;
+  }
+
+  final int id;
+  final String dir;
+  private final String[] filenames;
+  private final String[] urls;
+  private final Map<String, String> headers;
+  private final Sink sink;
+  private final Runnable onFinished;
+  private final ExecutorService workers;
+  private final int concurrency;
+
+  private final AtomicInteger next = new AtomicInteger(0);
+  private final AtomicInteger running = new AtomicInteger(0);
+  private final AtomicInteger done = new AtomicInteger(0);
+  private final AtomicInteger failed = new AtomicInteger(0);
+  private final AtomicLong bytes = new AtomicLong(0);
+  private volatile boolean cancelled = false;
+  private volatile long finishedAt = 0;
+
+  private final List<String> pendingNames = new ArrayList<>(BATCH_SIZE);
+  private final List<byte[]> pendingContents = new ArrayList<>(BATCH_SIZE);
+
+  TileDownload(int id, String dir, String[] filenames, String[] urls, Map<String, String> headers, int concurrency, Sink sink, Runnable onFinished) {
+    this.id = id;
+    this.dir = dir;
+    this.filenames = filenames;
+    this.urls = urls;
+    this.headers = headers;
+    this.sink = sink;
+    this.onFinished = onFinished;
+    this.concurrency = Math.max(1, Math.min(Math.min(concurrency, MAX_CONCURRENCY), filenames.length));
+    this.workers = Executors.newFixedThreadPool(this.concurrency, r -> {
+      Thread t = new Thread(r, "TileDownload-" + id);
+      t.setDaemon(true);
+      return t;
+    });
+  }
+
+  void start() {
+    if (filenames.length == 0) {
+      finish();
+      return;
+    }
+    running.set(concurrency);
+    for (int i = 0; i < concurrency; ++i) workers.execute(this::work);
+  }
+
+  void cancel() {
+    cancelled = true;
+    workers.shutdownNow();
+  }
+
+  int total() { return filenames.length; }
+  int done() { return done.get(); }
+  int failed() { return failed.get(); }
+  long bytes() { return bytes.get(); }
+  boolean isCancelled() { return cancelled; }
+  boolean isFinished() { return finishedAt != 0; }
+  long finishedAt() { return finishedAt; }
+
+  private void work() {
+    try {
+      int index;
+      while (!cancelled && (index = next.getAndIncrement()) < filenames.length) {
+        byte[] content = null;
+        try {
+          content = fetch(urls[index]);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          return;
+        } catch (Exception e) {
+          Logger.warn("Cannot download tile " + urls[index] + ": " + e.getMessage());
+        }
+        if (content == null) {
+          failed.incrementAndGet();
+          done.incrementAndGet();
+        } else {
+          add(filenames[index], content);
+        }
+      }
+    } finally {
+      if (running.decrementAndGet() == 0) {
+        if (!cancelled) flush(true);
+        finish();
+      }
+    }
+  }
+
+  private void finish() {
+    workers.shutdown();
+    finishedAt = System.currentTimeMillis();
+    onFinished.run();
+  }
+
+  private void add(String filename, byte[] content) {
+    synchronized (pendingNames) {
+      pendingNames.add(filename);
+      pendingContents.add(content);
+      if (pendingNames.size() < BATCH_SIZE) return;
+    }
+    flush(false);
+  }
+
+  private void flush(boolean all) {
+    List<String> names;
+    List<byte[]> contents;
+    synchronized (pendingNames) {
+      if (pendingNames.isEmpty() || (!all && pendingNames.size() < BATCH_SIZE)) return;
+      names = new ArrayList<>(pendingNames);
+      contents = new ArrayList<>(pendingContents);
+      pendingNames.clear();
+      pendingContents.clear();
+    }
+    long size = 0;
+    for (byte[] content : contents) size += content.length;
+    try {
+      sink.store(this, names, contents);
+      bytes.addAndGet(size);
+    } catch (Exception e) {
+      Logger.error("Cannot store " + names.size() + " downloaded tile(s) in " + dir, e);
+      failed.addAndGet(names.size());
+    }
+    done.addAndGet(names.size());
+  }
+
+  /** Return the content of the tile, or null if the server does not have it. Server and network errors are retried. */
+  private byte[] fetch(String url) throws IOException, InterruptedException {
+    for (int attempt = 1; ; ++attempt) {
+      // connections are not disconnected, so they are kept alive and reused by the next requests to the same server
+      try {
+        HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+        connection.setConnectTimeout(CONNECT_TIMEOUT);
+        connection.setReadTimeout(READ_TIMEOUT);
+        for (Map.Entry<String, String> header : headers.entrySet())
+          connection.setRequestProperty(header.getKey(), header.getValue());
+        int status = connection.getResponseCode();
+        if (status == HttpURLConnection.HTTP_OK) return read(connection.getInputStream(), connection.getContentLength());
+        // consume the error, so the connection can be reused
+        discard(connection.getErrorStream());
+        if (status < 500 && status != 429) {
+          Logger.warn("Cannot download tile " + url + ": HTTP " + status);
+          return null;
+        }
+        if (attempt >= MAX_ATTEMPTS) throw new IOException("HTTP " + status);
+      } catch (IOException e) {
+        if (attempt >= MAX_ATTEMPTS || cancelled) throw e;
+      }
+      Thread.sleep(RETRY_DELAY * attempt);
+    }
+  }
+
+  private static byte[] read(InputStream in, int length) throws IOException {
+    try (in) {
+      ByteArrayOutputStream out = new ByteArrayOutputStream(length > 0 && length <= MAX_TILE_SIZE ? length : 16384);
+      byte[] buffer = BufferPool.acquire(16384);
+      try {
+        int nb;
+        while ((nb = in.read(buffer)) > 0) {
+          if (out.size() + nb > MAX_TILE_SIZE) throw new IOException("Tile too large");
+          out.write(buffer, 0, nb);
+        }
+      } finally {
+        BufferPool.release(buffer);
+      }
+      return out.toByteArray();
+    }
+  }
+
+  private static void discard(InputStream in) {
+    if (in == null) return;
+    try (in) {
+      byte[] buffer = new byte[4096];
+      while (in.read(buffer) > 0) {
+        // ignore
+      }
+    } catch (IOException e) {
+      // ignore
+    }
+  }
+}
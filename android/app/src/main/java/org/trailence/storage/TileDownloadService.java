@@ -0,0 +1,130 @@
+package org.trailence.storage;
+
+import android.app.Notification;
+import android.app.NotificationManager;
+import android.app.Service;
+import android.content.Context;
+import android.content.Intent;
+import android.net.wifi.WifiManager;
+import android.os.Binder;
+import android.os.Build;
+import android.os.IBinder;
+import android.os.PowerManager;
+
+import com.getcapacitor.Logger;
+
+// A bound service promoted to a foreground service (showing a notification with the progress)
+// while tiles are downloaded, so the download continues when the application is in background
+// or the screen is off. Locks keep the CPU and the Wi-Fi awake during the download.
+public class TileDownloadService extends Service {
+  static final String CHANNEL_ID = TileDownloadService.class.getName();
+
+  // Must be unique for this application.
+  private static final int NOTIFICATION_ID = 28352;
+  // Locks are released after this duration even if the download is not finished, not to drain the battery.
+  private static final long MAX_LOCK_DURATION = 6 * 60 * 60 * 1000L;
+
+  private final IBinder binder = new LocalBinder();
+  private PowerManager.WakeLock wakeLock;
+  private WifiManager.WifiLock wifiLock;
+  private boolean foreground = false;
+  private Runnable onTimeout;
+
+  @Override
+  public IBinder onBind(Intent intent) {
+    return binder;
+  }
+
+  @Override
+  public boolean onUnbind(Intent intent) {
+    stopDownloading();
+    stopSelf();
+    return false;
+  }
+
+  @Override
+  public void onDestroy() {
+    releaseLocks();
+    super.onDestroy();
+  }
+
+  // The time allowed to a dataSync foreground service is exhausted: the downloads must stop, else the application is killed.
+  @Override
+  public void onTimeout(int startId, int fgsType) {
+    Logger.warn("Tile download service timed out, downloads are stopped");
+    Runnable listener = onTimeout;
+    if (listener != null) listener.run();
+    stopDownloading();
+    stopSelf();
+  }
+
+  private void stopDownloading() {
+    if (foreground) {
+      stopForeground(STOP_FOREGROUND_REMOVE);
+      foreground = false;
+    }
+    releaseLocks();
+  }
+
+  private void acquireLocks() {
+    if (wakeLock == null) {
+      PowerManager powerManager = (PowerManager) getSystemService(Context.POWER_SERVICE);
+      wakeLock = powerManager.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, "trailence:tile-download");
+      wakeLock.setReferenceCounted(false);
+    }
+    if (!wakeLock.isHeld()) wakeLock.acquire(MAX_LOCK_DURATION);
+    if (wifiLock == null) {
+      WifiManager wifiManager = (WifiManager) getApplicationContext().getSystemService(Context.WIFI_SERVICE);
+      if (wifiManager != null) {
+        wifiLock = wifiManager.createWifiLock(wifiLockMode(), "trailence:tile-download");
+        wifiLock.setReferenceCounted(false);
+      }
+    }
+    if (wifiLock != null && !wifiLock.isHeld()) wifiLock.acquire();
+  }
+
+  private static int wifiLockMode() {
+    if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) return WifiManager.WIFI_MODE_FULL_LOW_LATENCY;
+    return highPerfWifiLockMode();
+  }
+
+  @SuppressWarnings("deprecation")
+  private static int highPerfWifiLockMode() {
+    return WifiManager.WIFI_MODE_FULL_HIGH_PERF;
+  }
+
+  private void releaseLocks() {
+    if (wakeLock != null && wakeLock.isHeld()) wakeLock.release();
+    if (wifiLock != null && wifiLock.isHeld()) wifiLock.release();
+  }
+
+  // Handles requests from the plugin.
+  public class LocalBinder extends Binder {
+    // Called when downloads start, and then to update the progress.
+    void downloading(Notification notification) {
+      if (foreground) {
+        NotificationManager manager = (NotificationManager) getSystemService(Context.NOTIFICATION_SERVICE);
+        manager.notify(NOTIFICATION_ID, notification);
+        return;
+      }
+      acquireLocks();
+      try {
+        // This method has been known to fail due to permission bugs, so we prevent any exceptions from crashing the app.
+        startForeground(NOTIFICATION_ID, notification);
+        foreground = true;
+      } catch (Exception exception) {
+        Logger.error("Failed to foreground tile download service", exception);
+      }
+    }
+
+    // Called with what to do when the service must stop before the downloads are finished.
+    void setOnTimeout(Runnable listener) {
+      onTimeout = listener;
+    }
+
+    // Called when no more download is running.
+    void finished() {
+      stopDownloading();
+    }
+  }
+}
@@ -0,0 +1,172 @@
+package org.trailence.storage;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Tile downloads in progress. The names and sizes of the stored tiles are logged by directory,
+ * so the application can record them, even if it was not running when they were downloaded.
+ */
+class TileDownloads {
+
+  static final String DIR_NAME = ".downloads";
+  private static final String DOWNLOADED_SUFFIX = ".downloaded";
+  /** A finished download is forgotten after this delay, its final progress being available until then. */
+  private static final long FINISHED_RETENTION = 10 * 60 * 1000L;
+
+  /** Notified when downloads start or finish. */
+  interface Listener {
+    void downloadsChanged(boolean running);
+  }
+
+  static final class Downloaded {
+    final String filename;
+    final long size;
+
+    private Downloaded(String filename, long size) {
+      this.filename = filename;
+      this.size = size;
+    }
+  }
+
+  private final File logDir;
+  private final TileDownload.Sink sink;
+  private final Listener listener;
+  private final AtomicInteger downloadId = new AtomicInteger(0);
+  private final Map<Integer, TileDownload> downloads = new ConcurrentHashMap<>();
+
+  TileDownloads(File root, TileDownload.Sink sink, Listener listener) {
+    this.logDir = new File(root, DIR_NAME);
+    this.sink = sink;
+    this.listener = listener;
+  }
+
+  TileDownload start(String dir, String[] filenames, String[] urls, Map<String, String> headers, int concurrency) {
+    TileDownload download = new TileDownload(downloadId.incrementAndGet(), dir, filenames, urls, headers, concurrency, sink, () -> listener.downloadsChanged(isRunning()));
+    downloads.put(download.id, download);
+    listener.downloadsChanged(true);
+    download.start();
+    return download;
+  }
+
+  TileDownload get(int id) {
+    return downloads.get(id);
+  }
+
+  void cancel(int id) {
+    TileDownload download = downloads.remove(id);
+    if (download == null) return;
+    download.cancel();
+    listener.downloadsChanged(isRunning());
+  }
+
+  /** Cancel all downloads, keeping them so their progress tells they are finished. */
+  void stopAll() {
+    for (TileDownload download : downloads.values()) download.cancel();
+  }
+
+  /** Cancel the downloads into a directory, and its sub-directories if requested, because it is deleted or moved. */
+  void cancel(String dir, boolean subDirectories) {
+    String prefix = dir + "/";
+    for (TileDownload download : downloads.values())
+      if (download.dir.equals(dir) || (subDirectories && download.dir.startsWith(prefix))) download.cancel();
+  }
+
+  void cancelAll() {
+    for (TileDownload download : downloads.values()) download.cancel();
+    downloads.clear();
+  }
+
+  boolean isRunning() {
+    for (TileDownload download : downloads.values())
+      if (!download.isFinished()) return true;
+    return false;
+  }
+
+  /** Progress of all running downloads: total tiles and done tiles. */
+  long[] progress() {
+    long total = 0;
+    long done = 0;
+    for (TileDownload download : downloads.values()) {
+      if (download.isFinished()) continue;
+      total += download.total();
+      done += download.done();
+    }
+    return new long[] { total, done };
+  }
+
+  void expireFinished() {
+    long now = System.currentTimeMillis();
+    for (Iterator<TileDownload> it = downloads.values().iterator(); it.hasNext(); ) {
+      TileDownload download = it.next();
+      if (download.isFinished() && now - download.finishedAt() > FINISHED_RETENTION) it.remove();
+    }
+  }
+
+  /** Called by the sink after tiles have been stored, with the directory's key. */
+  void stored(String dir, List<String> filenames, List<byte[]> contents) throws IOException {
+    if (!logDir.isDirectory() && !logDir.mkdirs())
+      throw new IOException("Cannot create directory " + logDir.getAbsolutePath());
+    try (BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(logFile(dir), true), StandardCharsets.UTF_8))) {
+      for (int i = 0; i < filenames.size(); ++i) {
+        writer.write(filenames.get(i));
+        writer.write('\t');
+        writer.write(Long.toString(contents.get(i).length));
+        writer.write('\n');
+      }
+    }
+  }
+
+  /** Return the files downloaded into the given directory since the last call, and forget them. */
+  List<Downloaded> takeDownloaded(String dir) throws IOException {
+    File log = logFile(dir);
+    List<Downloaded> files = new ArrayList<>();
+    if (!log.exists()) return files;
+    try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(log), StandardCharsets.UTF_8))) {
+      String line;
+      while ((line = reader.readLine()) != null) {
+        int i = line.lastIndexOf('\t');
+        // incomplete line if the application was killed while writing
+        if (i <= 0) continue;
+        try {
+          files.add(new Downloaded(line.substring(0, i), Long.parseLong(line.substring(i + 1))));
+        } catch (NumberFormatException e) {
+          // ignore
+        }
+      }
+    }
+    if (!log.delete()) throw new IOException("Cannot delete " + log.getAbsolutePath());
+    return files;
+  }
+
+  /** Forget the files downloaded into the given directory, and its sub-directories if requested, after its content has been deleted. */
+  void forget(String dir, boolean subDirectories) throws IOException {
+    Files.deleteIfExists(logFile(dir).toPath());
+    if (!subDirectories) return;
+    File[] logs = logDir.listFiles();
+    if (logs == null) return;
+    // names are encoded character by character, so the prefix is kept
+    String prefix = URLEncoder.encode(dir + "/", "UTF-8");
+    for (File log : logs)
+      if (log.getName().startsWith(prefix)) Files.deleteIfExists(log.toPath());
+  }
+
+  private File logFile(String dir) throws IOException {
+    return new File(logDir, URLEncoder.encode(dir, "UTF-8") + DOWNLOADED_SUFFIX);
+  }
+}
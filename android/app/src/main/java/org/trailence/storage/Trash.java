@@ -0,0 +1,119 @@
+package org.trailence.storage;
+
+import com.getcapacitor.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Directories to delete are first moved into a trash directory, which is immediate whatever their size,
+ * then their content is deleted in background by a low priority thread.
+ * Anything remaining in the trash when the application starts is deleted too, so an interrupted deletion is resumed.
+ */
+class Trash {
+
+  static final String DIR_NAME = ".trash";
+  private static final String PENDING_SUFFIX = ".pending";
+
+  private final File trashDir;
+  private final AtomicInteger counter = new AtomicInteger(0);
+  private final AtomicBoolean purgeScheduled = new AtomicBoolean(false);
+  private final ExecutorService worker = Executors.newSingleThreadExecutor(r -> {
+    Thread t = new Thread(r, "LocalFiles-trash");
+    t.setDaemon(true);
+    t.setPriority(Thread.MIN_PRIORITY);
+    return t;
+  });
+
+  Trash(File root) {
+    this.trashDir = new File(root, DIR_NAME);
+  }
+
+  /** Move the given file or directory into the trash, and return false if it cannot be moved. */
+  boolean moveToTrash(File file) {
+    File target = move(file, "");
+    if (target == null) return false;
+    schedulePurge();
+    return true;
+  }
+
+  /**
+   * Move the given file or directory into the trash, but do not delete it until release is called,
+   * so something can still be taken back from it. Return its location in the trash, or null if it cannot be moved.
+   */
+  File moveToTrashPending(File file) {
+    return move(file, PENDING_SUFFIX);
+  }
+
+  /** Allow to delete something moved with moveToTrashPending. */
+  void release(File pending) throws IOException {
+    String name = pending.getName();
+    Files.move(pending.toPath(), new File(trashDir, name.substring(0, name.length() - PENDING_SUFFIX.length())).toPath(), StandardCopyOption.ATOMIC_MOVE);
+    schedulePurge();
+  }
+
+  /** At startup, delete everything remaining in the trash, including what was still pending. */
+  void resume() {
+    File[] files = trashDir.listFiles();
+    if (files == null) return;
+    for (File file : files) {
+      if (!file.getName().endsWith(PENDING_SUFFIX)) continue;
+      try {
+        release(file);
+      } catch (IOException e) {
+        Logger.error("Cannot release " + file.getAbsolutePath() + " in trash", e);
+      }
+    }
+    schedulePurge();
+  }
+
+  private File move(File file, String suffix) {
+    if (!trashDir.isDirectory() && !trashDir.mkdirs()) return null;
+    File target = new File(trashDir, System.currentTimeMillis() + "-" + counter.incrementAndGet() + suffix);
+    try {
+      Files.move(file.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE);
+      return target;
+    } catch (IOException e) {
+      Logger.error("Cannot move " + file.getAbsolutePath() + " to trash", e);
+      return null;
+    }
+  }
+
+  /** Delete the content of the trash in background. */
+  private void schedulePurge() {
+    if (!purgeScheduled.compareAndSet(false, true)) return;
+    worker.execute(() -> {
+      // anything moved to the trash from now will need a new purge
+      purgeScheduled.set(false);
+      File[] files = trashDir.listFiles();
+      if (files == null) return;
+      for (File file : files) {
+        if (Thread.currentThread().isInterrupted()) return;
+        if (file.getName().endsWith(PENDING_SUFFIX)) continue;
+        if (file.isDirectory()) deleteRecursive(file);
+        else file.delete();
+      }
+    });
+  }
+
+  void shutdown() {
+    worker.shutdownNow();
+  }
+
+  /** Delete the given directory and its content, and return false if it cannot be fully deleted. */
+  static boolean deleteRecursive(File dir) {
+    File[] files = dir.listFiles();
+    if (files == null) return false;
+    for (var file : files) {
+      if (file.isFile()) file.delete();
+      else if (!file.getName().equals(".") && !file.getName().equals("..") && file.isDirectory()) deleteRecursive(file);
+    }
+    return dir.delete();
+  }
+}
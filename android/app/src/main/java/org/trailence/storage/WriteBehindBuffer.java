@@ -0,0 +1,193 @@
+package org.trailence.storage;
+
+import com.getcapacitor.Logger;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Writes delayed in memory for directories where the same files are saved several times in a short time,
+ * so a burst of saves of a file costs a single disk write: a pending write is replaced by a newer one.
+ * Pending writes are visible to reads, and are written after a delay, when the memory budget is exceeded,
+ * on memory pressure, or when the application goes to background.
+ */
+class WriteBehindBuffer {
+
+  static final long DEFAULT_DELAY = 2000;
+  /** Above this total size of pending writes, all directories are flushed. */
+  private static final long MAX_PENDING_BYTES = 8L * 1024 * 1024;
+
+  /** Write files of a directory, called with the directory's key. */
+  interface Writer {
+    void write(String dir, List<String> filenames, List<byte[]> contents) throws IOException;
+  }
+
+  private static final class DirBuffer {
+    private final long delay;
+    private final Map<String, byte[]> pending = new LinkedHashMap<>();
+    /** Held while writing, so a flush cannot write a content older than a write done meanwhile. */
+    private final Object flushLock = new Object();
+    private boolean flushScheduled = false;
+
+    private DirBuffer(long delay) {
+      this.delay = delay;
+    }
+  }
+
+  private final StorageExecutor io;
+  private final ScheduledExecutorService scheduler;
+  private final Writer writer;
+  private final Map<String, DirBuffer> dirs = new HashMap<>();
+  private long pendingBytes = 0;
+
+  WriteBehindBuffer(StorageExecutor io, ScheduledExecutorService scheduler, Writer writer) {
+    this.io = io;
+    this.scheduler = scheduler;
+    this.writer = writer;
+  }
+
+  /** Delay the writes of the given directory, by the given delay in milliseconds. */
+  synchronized void enable(String dir, long delay) {
+    DirBuffer previous = dirs.get(dir);
+    if (previous != null && previous.delay == delay) return;
+    DirBuffer buffer = new DirBuffer(delay);
+    if (previous != null) buffer.pending.putAll(previous.pending);
+    dirs.put(dir, buffer);
+    if (!buffer.pending.isEmpty()) scheduleFlush(dir, buffer);
+  }
+
+  synchronized boolean isEnabled(String dir) {
+    return dirs.containsKey(dir);
+  }
+
+  /** Keep the given files in memory, for a directory which delays its writes. */
+  void put(String dir, List<String> filenames, List<byte[]> contents) {
+    boolean overBudget;
+    synchronized (this) {
+      DirBuffer buffer = dirs.get(dir);
+      if (buffer == null) throw new IllegalStateException("Writes are not delayed in " + dir);
+      for (int i = 0; i < filenames.size(); ++i) {
+        byte[] previous = buffer.pending.put(filenames.get(i), contents.get(i));
+        if (previous != null) pendingBytes -= previous.length;
+        pendingBytes += contents.get(i).length;
+      }
+      overBudget = pendingBytes > MAX_PENDING_BYTES;
+      if (!overBudget) scheduleFlush(dir, buffer);
+    }
+    if (overBudget) flushAll();
+  }
+
+  /** Return the content waiting to be written for the given file, or null. */
+  synchronized byte[] get(String dir, String filename) {
+    DirBuffer buffer = dirs.get(dir);
+    return buffer != null ? buffer.pending.get(filename) : null;
+  }
+
+  /** Forget the pending writes of the given files, because they are deleted or written by another way. */
+  void remove(String dir, Iterable<String> filenames) {
+    DirBuffer buffer;
+    synchronized (this) {
+      buffer = dirs.get(dir);
+    }
+    if (buffer == null) return;
+    synchronized (buffer.flushLock) {
+      synchronized (this) {
+        for (String filename : filenames) {
+          byte[] previous = buffer.pending.remove(filename);
+          if (previous != null) pendingBytes -= previous.length;
+        }
+      }
+    }
+  }
+
+  /** Forget the pending writes of the given directory, and optionally of its sub-directories, because their content is deleted. */
+  void discard(String dir, boolean subDirectories) {
+    for (Map.Entry<String, DirBuffer> entry : snapshot().entrySet()) {
+      if (!isIn(entry.getKey(), dir, subDirectories)) continue;
+      DirBuffer buffer = entry.getValue();
+      synchronized (buffer.flushLock) {
+        synchronized (this) {
+          for (byte[] content : buffer.pending.values()) pendingBytes -= content.length;
+          buffer.pending.clear();
+        }
+      }
+    }
+  }
+
+  /** Write the pending writes of the given directory. Called with the directory's key, or before operations on the whole directory. */
+  void flush(String dir) {
+    DirBuffer buffer;
+    synchronized (this) {
+      buffer = dirs.get(dir);
+    }
+    if (buffer == null) return;
+    synchronized (buffer.flushLock) {
+      List<String> filenames;
+      List<byte[]> contents;
+      synchronized (this) {
+        if (buffer.pending.isEmpty()) return;
+        filenames = new ArrayList<>(buffer.pending.keySet());
+        contents = new ArrayList<>(buffer.pending.values());
+      }
+      try {
+        writer.write(dir, filenames, contents);
+      } catch (Exception e) {
+        // the files keep their previous content
+        Logger.error("Error writing " + filenames.size() + " delayed file(s) in " + dir, e);
+      }
+      synchronized (this) {
+        for (int i = 0; i < filenames.size(); ++i) {
+          // replaced meanwhile: keep the newer content pending
+          if (buffer.pending.remove(filenames.get(i), contents.get(i))) pendingBytes -= contents.get(i).length;
+        }
+      }
+    }
+  }
+
+  /** Write the pending writes of the given directory and its sub-directories, before they are moved. */
+  void flushTree(String dir) {
+    for (String d : snapshot().keySet())
+      if (isIn(d, dir, true)) flush(d);
+  }
+
+  /** Flush all directories, each with its key, for example on memory pressure or when going to background. */
+  void flushAll() {
+    for (String dir : snapshot().keySet()) {
+      try {
+        io.execute(dir, () -> flush(dir));
+      } catch (RejectedExecutionException e) {
+        // shutting down
+      }
+    }
+  }
+
+  private static boolean isIn(String d, String dir, boolean subDirectories) {
+    return d.equals(dir) || (subDirectories && d.startsWith(dir + "/"));
+  }
+
+  private synchronized Map<String, DirBuffer> snapshot() {
+    return new HashMap<>(dirs);
+  }
+
+  private void scheduleFlush(String dir, DirBuffer buffer) {
+    if (buffer.flushScheduled) return;
+    buffer.flushScheduled = true;
+    try {
+      scheduler.schedule(() -> {
+        synchronized (this) {
+          buffer.flushScheduled = false;
+        }
+        io.execute(dir, StorageExecutor.Priority.BACKGROUND, () -> flush(dir));
+      }, buffer.delay, TimeUnit.MILLISECONDS);
+    } catch (RejectedExecutionException e) {
+      buffer.flushScheduled = false;
+    }
+  }
+}
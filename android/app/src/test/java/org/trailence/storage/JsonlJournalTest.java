@@ -0,0 +1,159 @@
+package org.trailence.storage;
+
+import static org.junit.Assert.*;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.GZIPOutputStream;
+
+public class JsonlJournalTest {
+
+  @Rule
+  public TemporaryFolder temp = new TemporaryFolder();
+
+  private File snapshot(long seq, boolean compressed, String... records) throws IOException {
+    return snapshot("file.jsonl", seq, compressed, records);
+  }
+
+  private File snapshot(String name, long seq, boolean compressed, String... records) throws IOException {
+    File file = new File(temp.getRoot(), name);
+    try (FileOutputStream out = new FileOutputStream(file)) {
+      GZIPOutputStream gzip = compressed ? JsonlFormat.compress(out) : null;
+      Writer writer = new OutputStreamWriter(gzip != null ? gzip : out, StandardCharsets.UTF_8);
+      writer.write(JsonlJournal.HEADER + seq + "\n");
+      for (String record : records) writer.write(record + "\n");
+      writer.flush();
+      if (gzip != null) gzip.finish();
+    }
+    return file;
+  }
+
+  private static JsonlJournal.Record put(String key, String json) {
+    return new JsonlJournal.Record(key, json);
+  }
+
+  private static JsonlJournal.Record delete(String key) {
+    return new JsonlJournal.Record(key, null);
+  }
+
+  private static List<String> read(JsonlJournal journal, File file) throws IOException {
+    List<String> lines = new ArrayList<>();
+    try (JsonlJournal.LineSource source = journal.open(file)) {
+      CharSequence line;
+      while ((line = source.readLine()) != null) lines.add(line.toString());
+    }
+    return lines;
+  }
+
+  private static void appendRaw(File file, String text) throws IOException {
+    try (OutputStream out = new FileOutputStream(file, true)) {
+      out.write(text.getBytes(StandardCharsets.UTF_8));
+    }
+  }
+
+  @Test
+  public void journalIsReplayedOverTheSnapshot() throws Exception {
+    File file = snapshot(0, false, "a\t{\"a\":1}", "b\t{\"b\":1}", "c\t{\"c\":1}");
+    JsonlJournal journal = new JsonlJournal();
+    journal.append(file, Arrays.asList(put("b", "{\"b\":2}"), delete("c"), put("d", "{\"d\":1}")));
+    journal.append(file, List.of(put("b", "{\"b\":3}")));
+    assertEquals(Arrays.asList("{\"a\":1}", "{\"d\":1}", "{\"b\":3}"), read(journal, file));
+    assertEquals(4, journal.lastSeq(file));
+    // a new instance reads the sequence from the files
+    assertEquals(4, new JsonlJournal().lastSeq(file));
+    assertEquals(JsonlJournal.HEADER + 4, new JsonlJournal().newSnapshotHeader(file));
+  }
+
+  @Test
+  public void recordsAlreadyInTheSnapshotAreIgnored() throws Exception {
+    File file = snapshot(5, false, "a\t{\"a\":5}");
+    File journalFile = JsonlJournal.journalFile(file);
+    // journal of the previous snapshot, not yet deleted
+    appendRaw(journalFile, "4\ta\t{\"a\":4}\n5\tb\n6\tc\t{\"c\":6}\n");
+    JsonlJournal journal = new JsonlJournal();
+    assertEquals(Arrays.asList("{\"a\":5}", "{\"c\":6}"), read(journal, file));
+    assertEquals(6, journal.lastSeq(file));
+  }
+
+  @Test
+  public void tornJournalTailIsIgnoredAndRepaired() throws Exception {
+    File file = snapshot(0, false, "a\t{\"a\":1}");
+    new JsonlJournal().append(file, List.of(put("b", "{\"b\":1}")));
+    File journalFile = JsonlJournal.journalFile(file);
+    long validLength = journalFile.length();
+    // the application stopped in the middle of an append
+    appendRaw(journalFile, "2\tc\t{\"c\":");
+    JsonlJournal journal = new JsonlJournal();
+    assertEquals(1, journal.lastSeq(file));
+    assertEquals(validLength, journalFile.length());
+    assertEquals(Arrays.asList("{\"a\":1}", "{\"b\":1}"), read(journal, file));
+    journal.append(file, List.of(put("c", "{\"c\":2}")));
+    assertEquals(Arrays.asList("{\"a\":1}", "{\"b\":1}", "{\"c\":2}"), read(journal, file));
+  }
+
+  @Test
+  public void compactionKeepsTheLatestValues() throws Exception {
+    for (boolean compressed : new boolean[] { false, true }) {
+      File file = snapshot("file-" + compressed + ".jsonl", 0, compressed, "a\t{\"a\":1}", "b\t{\"b\":1}", "c\t{\"c\":1}");
+      JsonlJournal journal = new JsonlJournal();
+      journal.append(file, Arrays.asList(put("a", "{\"a\":2}"), delete("b"), put("d", "{\"d\":1}")));
+      journal.append(file, Arrays.asList(put("a", "{\"a\":3}"), put("b", "{\"b\":2}"), delete("d")));
+      List<String> expected = read(journal, file);
+      assertEquals(Arrays.asList("{\"c\":1}", "{\"a\":3}", "{\"b\":2}"), expected);
+
+      File tempFile = new File(temp.getRoot(), "compact-" + compressed + ".tmp");
+      journal.compact(file, tempFile);
+      assertFalse(JsonlJournal.journalFile(file).exists());
+      assertFalse(tempFile.exists());
+      assertEquals(compressed, JsonlFormat.isCompressed(file));
+      assertEquals(expected, read(new JsonlJournal(), file));
+      assertEquals(6, new JsonlJournal().lastSeq(file));
+
+      // appends continue after the compacted sequence
+      journal.append(file, List.of(delete("c")));
+      assertEquals(7, new JsonlJournal().lastSeq(file));
+      assertEquals(Arrays.asList("{\"a\":3}", "{\"b\":2}"), read(new JsonlJournal(), file));
+    }
+  }
+
+  @Test
+  public void snapshotWrittenMakesTheJournalObsolete() throws Exception {
+    File file = snapshot(0, false, "a\t{\"a\":1}");
+    JsonlJournal journal = new JsonlJournal();
+    journal.append(file, List.of(put("a", "{\"a\":2}")));
+    String header = journal.newSnapshotHeader(file);
+    snapshot(1, false, "a\t{\"a\":2}");
+    journal.snapshotWritten(file, header);
+    assertFalse(JsonlJournal.journalFile(file).exists());
+    assertEquals(1, journal.lastSeq(file));
+    assertEquals(List.of("{\"a\":2}"), read(journal, file));
+  }
+
+  @Test
+  public void plainFilesAreReadButNotJournaled() throws Exception {
+    File file = new File(temp.getRoot(), "plain.jsonl");
+    Files.write(file.toPath(), "{\"a\":1}\r\n{\"b\":1}\n".getBytes(StandardCharsets.UTF_8));
+    JsonlJournal journal = new JsonlJournal();
+    assertEquals(Arrays.asList("{\"a\":1}", "{\"b\":1}"), read(journal, file));
+    assertEquals(-1, journal.lastSeq(file));
+    try {
+      journal.append(file, List.of(put("a", "{}")));
+      fail();
+    } catch (LocalFilesException e) {
+      assertEquals(LocalFilesException.Code.NOT_JOURNALED, e.getCode());
+    }
+  }
+}
@@ -0,0 +1,97 @@
+package org.trailence.storage;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public class LineReaderTest {
+
+  /** Give the text by small pieces, so lines and \r\n are split between reads. */
+  private static class PiecesReader extends Reader {
+    private final String text;
+    private final int pieceSize;
+    private int pos = 0;
+
+    private PiecesReader(String text, int pieceSize) {
+      this.text = text;
+      this.pieceSize = pieceSize;
+    }
+
+    @Override
+    public int read(char[] buffer, int offset, int length) {
+      if (pos == text.length()) return -1;
+      int nb = Math.min(Math.min(length, pieceSize), text.length() - pos);
+      text.getChars(pos, pos + nb, buffer, offset);
+      pos += nb;
+      return nb;
+    }
+
+    @Override
+    public void close() {
+      // nothing
+    }
+  }
+
+  private static List<String> lines(Reader reader) throws IOException {
+    List<String> lines = new ArrayList<>();
+    try (LineReader lr = new LineReader(reader)) {
+      LineReader.Line line;
+      while ((line = lr.next()) != null) lines.add(line.toString());
+    }
+    return lines;
+  }
+
+  @Test
+  public void linesAreSplitOnNewLines() throws Exception {
+    assertEquals(Arrays.asList("a", "", "bc", "d"), lines(new StringReader("a\n\nbc\nd\n")));
+    assertEquals(Arrays.asList("a", "last"), lines(new StringReader("a\nlast")));
+    assertEquals(List.of(), lines(new StringReader("")));
+  }
+
+  @Test
+  public void carriageReturnBeforeNewLineIsIgnored() throws Exception {
+    String text = "first\r\nsecond\r\n\r\nthird\rstill third\r\n";
+    List<String> expected = Arrays.asList("first", "second", "", "third\rstill third");
+    assertEquals(expected, lines(new StringReader(text)));
+    for (int pieceSize = 1; pieceSize <= 7; ++pieceSize)
+      assertEquals("pieces of " + pieceSize, expected, lines(new PiecesReader(text, pieceSize)));
+  }
+
+  @Test
+  public void lineLongerThanTheBuffer() throws Exception {
+    char[] chars = new char[200_000];
+    for (int i = 0; i < chars.length; ++i) chars[i] = (char) ('a' + i % 26);
+    String longLine = new String(chars);
+    String text = "short\n" + longLine + "\r\nafter\n" + longLine;
+    List<String> expected = Arrays.asList("short", longLine, "after", longLine);
+    assertEquals(expected, lines(new StringReader(text)));
+    assertEquals(expected, lines(new PiecesReader(text, 10_000)));
+  }
+
+  @Test
+  public void lineIsUsedWithoutCopy() throws Exception {
+    try (LineReader lr = new LineReader(new StringReader("key\t{\"v\":1}\nnext\n"))) {
+      LineReader.Line line = lr.next();
+      int tab = line.indexOf('\t', 0);
+      assertEquals(3, tab);
+      assertEquals("key", line.subSequence(0, tab));
+      assertEquals(-1, line.indexOf('\t', tab + 1));
+      line.skip(tab + 1);
+      assertEquals(7, line.length());
+      assertEquals('{', line.charAt(0));
+      StringWriter writer = new StringWriter();
+      line.writeTo(writer);
+      assertEquals("{\"v\":1}", writer.toString());
+      assertEquals("next", lr.next().toString());
+      assertNull(lr.next());
+    }
+  }
+}
@@ -0,0 +1,77 @@
+package org.trailence.storage;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Random;
+
+public class PackIndexTest {
+
+  private static byte[] hash(int seed) {
+    byte[] hash = new byte[PackIndex.HASH_LENGTH];
+    new Random(seed).nextBytes(hash);
+    return hash;
+  }
+
+  @Test
+  public void namesMatchAMapAfterRandomUpdates() throws Exception {
+    PackIndex index = new PackIndex();
+    Map<String, Integer> expected = new HashMap<>();
+    Random random = new Random(42);
+    for (int i = 0; i < 200_000; ++i) {
+      String name = "tile-" + random.nextInt(20_000);
+      if (random.nextInt(3) == 0) {
+        Integer previous = expected.remove(name);
+        assertEquals(previous != null ? previous : -1, index.remove(name));
+      } else {
+        Integer previous = expected.put(name, i);
+        assertEquals(previous != null ? previous : -1, index.set(name, i));
+      }
+    }
+    assertEquals(expected.size(), index.count());
+    for (int i = 0; i < 20_000; ++i) {
+      Integer content = expected.get("tile-" + i);
+      assertEquals(content != null ? content : -1, index.get("tile-" + i));
+    }
+    assertEquals(expected.keySet(), new HashSet<>(index.names()));
+    Map<String, Integer> visited = new HashMap<>();
+    index.forEach(visited::put);
+    assertEquals(expected, visited);
+  }
+
+  @Test
+  public void contentsAreFoundByHashUntilFreed() {
+    PackIndex index = new PackIndex();
+    int[] contents = new int[1000];
+    for (int i = 0; i < contents.length; ++i) {
+      contents[i] = index.add(i / 100, i * 10L, 10, hash(i));
+      index.publishHash(contents[i]);
+    }
+    int unhashed = index.add(50, 0, 5, null);
+    assertFalse(index.hasHash(unhashed));
+    assertNull(index.hash(unhashed));
+    for (int i = 0; i < contents.length; ++i) {
+      assertEquals(contents[i], index.find(hash(i), 10));
+      assertEquals(-1, index.find(hash(i), 11));
+      assertArrayEquals(hash(i), index.hash(contents[i]));
+      assertEquals(i / 100, index.segment(contents[i]));
+      assertEquals(i * 10L, index.offset(contents[i]));
+    }
+    for (int i = 0; i < contents.length; i += 2) index.free(contents[i]);
+    for (int i = 0; i < contents.length; ++i)
+      assertEquals(i % 2 == 0 ? -1 : contents[i], index.find(hash(i), 10));
+
+    // slots are reused
+    int reused = index.add(99, 0, 20, hash(5000));
+    assertTrue(Arrays.stream(contents).anyMatch(c -> c == reused));
+    assertEquals(0, index.refs(reused));
+    assertEquals(-1, index.find(hash(5000), 20));
+    index.publishHash(reused);
+    assertEquals(reused, index.find(hash(5000), 20));
+  }
+}
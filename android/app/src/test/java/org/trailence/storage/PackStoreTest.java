@@ -0,0 +1,164 @@
+package org.trailence.storage;
+
+import static org.junit.Assert.*;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+public class PackStoreTest {
+
+  @Rule
+  public TemporaryFolder temp = new TemporaryFolder();
+
+  private static byte[] bytes(String s) {
+    return s.getBytes(StandardCharsets.UTF_8);
+  }
+
+  private static byte[] bytes(int size, char c) {
+    byte[] data = new byte[size];
+    Arrays.fill(data, (byte) c);
+    return data;
+  }
+
+  private static byte[] read(PackStore store, String name) throws IOException {
+    try (BlobStream blob = store.open(name, 0)) {
+      assertNotNull(name + " not found", blob);
+      byte[] data = blob.in.readAllBytes();
+      assertEquals(blob.size, data.length);
+      return data;
+    }
+  }
+
+  private File segment(int id) {
+    return new File(new File(temp.getRoot(), PackStore.DIR_NAME), id + ".seg");
+  }
+
+  @Test
+  public void filesRemainAfterReopening() throws Exception {
+    PackStore store = PackStore.open(temp.getRoot());
+    store.putAll(Arrays.asList("a", "b", "c"), Arrays.asList(bytes("a1"), bytes("b1"), bytes("c1")));
+    store.put("a", bytes("a2"));
+    assertTrue(store.remove("b"));
+    assertFalse(store.remove("b"));
+    store.close();
+
+    store = PackStore.open(temp.getRoot());
+    assertEquals(2, store.count());
+    assertArrayEquals(bytes("a2"), read(store, "a"));
+    assertArrayEquals(bytes("c1"), read(store, "c"));
+    assertFalse(store.contains("b"));
+    assertNull(store.open("b", 0));
+    assertEquals(4, store.totalSize());
+    assertEquals(Arrays.asList("c", "a"), store.namesByAge());
+    store.close();
+  }
+
+  @Test
+  public void truncatedIndexRecordIsIgnored() throws Exception {
+    PackStore store = PackStore.open(temp.getRoot());
+    store.put("a", bytes("a1"));
+    store.put("b", bytes("b1"));
+    store.close();
+    File index = new File(new File(temp.getRoot(), PackStore.DIR_NAME), "index");
+    try (RandomAccessFile f = new RandomAccessFile(index, "rw")) {
+      f.setLength(f.length() - 3);
+    }
+
+    store = PackStore.open(temp.getRoot());
+    assertArrayEquals(bytes("a1"), read(store, "a"));
+    assertFalse(store.contains("b"));
+    store.put("c", bytes("c1"));
+    store.close();
+
+    store = PackStore.open(temp.getRoot());
+    assertArrayEquals(bytes("a1"), read(store, "a"));
+    assertArrayEquals(bytes("c1"), read(store, "c"));
+    assertEquals(2, store.count());
+    store.close();
+  }
+
+  @Test
+  public void deduplicatedContentIsReleasedWithItsLastFile() throws Exception {
+    PackStore store = PackStore.open(temp.getRoot());
+    store.enableDeduplication();
+    byte[] shared = bytes(100, 's');
+    store.putAll(Arrays.asList("a", "b"), Arrays.asList(shared, shared));
+    store.put("c", shared);
+    assertEquals(100, segment(0).length());
+    assertEquals(100, store.totalSize());
+    store.close();
+
+    // references are counted again when the index is replayed
+    store = PackStore.open(temp.getRoot());
+    assertTrue(store.isDeduplicated());
+    store.removeAll(Arrays.asList("a", "b"));
+    assertArrayEquals(shared, read(store, "c"));
+    assertEquals(100, store.totalSize());
+    store.remove("c");
+    assertEquals(0, store.totalSize());
+    // released: written again
+    store.put("d", shared);
+    assertEquals(200, segment(0).length());
+    assertArrayEquals(shared, read(store, "d"));
+    store.close();
+  }
+
+  @Test
+  public void compactionMovesLiveContentAndRemovesSparseSegments() throws Exception {
+    PackStore store = PackStore.open(temp.getRoot());
+    store.enableDeduplication();
+    byte[] small = bytes(10, 'x');
+    store.putAll(Arrays.asList("big", "small1", "small2"), Arrays.asList(bytes(1000, 'b'), small, small));
+    store.remove("big");
+    store.close();
+    // a later segment, so the first one is not the current segment anymore
+    assertTrue(segment(1).createNewFile());
+
+    store = PackStore.open(temp.getRoot());
+    assertTrue(store.startCompaction());
+    assertFalse(store.startCompaction());
+    store.compact();
+    assertFalse(segment(0).exists());
+    // shared content is moved once
+    assertEquals(10, segment(1).length());
+    assertArrayEquals(small, read(store, "small1"));
+    assertArrayEquals(small, read(store, "small2"));
+    assertFalse(store.startCompaction());
+    store.close();
+
+    store = PackStore.open(temp.getRoot());
+    assertEquals(2, store.count());
+    assertArrayEquals(small, read(store, "small1"));
+    store.remove("small1");
+    assertArrayEquals(small, read(store, "small2"));
+    assertEquals(10, store.totalSize());
+    store.close();
+  }
+
+  @Test
+  public void contentOfAReplacedFileIsKeptForAnotherFileOfTheSameBatch() throws Exception {
+    PackStore store = PackStore.open(temp.getRoot());
+    store.enableDeduplication();
+    store.put("a", bytes("shared"));
+    store.putAll(Arrays.asList("a", "b"), Arrays.asList(bytes("new a"), bytes("shared")));
+    assertArrayEquals(bytes("new a"), read(store, "a"));
+    assertArrayEquals(bytes("shared"), read(store, "b"));
+    assertEquals(11, store.totalSize());
+    // still found for deduplication
+    store.put("c", bytes("shared"));
+    assertEquals(11, store.totalSize());
+    store.close();
+
+    store = PackStore.open(temp.getRoot());
+    assertArrayEquals(bytes("shared"), read(store, "c"));
+    assertEquals(11, store.totalSize());
+    store.close();
+  }
+}
@@ -0,0 +1,106 @@
+package org.trailence.storage;
+
+import static org.junit.Assert.*;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+public class StorageExecutorTest {
+
+  private final StorageExecutor io = new StorageExecutor("test");
+  private final List<String> executed = Collections.synchronizedList(new ArrayList<>());
+
+  @After
+  public void shutdown() throws InterruptedException {
+    io.shutdown(5000);
+  }
+
+  /** Submit an operation which records its name once the given latch is released. */
+  private void execute(String key, String name, CountDownLatch started, CountDownLatch release) {
+    io.execute(key, () -> {
+      if (started != null) started.countDown();
+      try {
+        if (release != null) assertTrue(release.await(10, TimeUnit.SECONDS));
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      executed.add(name);
+    });
+  }
+
+  private void awaitAll() throws InterruptedException {
+    CountDownLatch done = new CountDownLatch(1);
+    // the root of all the keys used by the tests, executed after all of them
+    io.execute("d", done::countDown);
+    assertTrue(done.await(10, TimeUnit.SECONDS));
+  }
+
+  @Test
+  public void directoryIsOrderedWithItsFiles() throws Exception {
+    CountDownLatch fileStarted = new CountDownLatch(1);
+    CountDownLatch releaseFile = new CountDownLatch(1);
+    execute("d/f", "save f", fileStarted, releaseFile);
+    assertTrue(fileStarted.await(10, TimeUnit.SECONDS));
+    execute("d", "delete files", null, null);
+    execute("d/f", "save f again", null, null);
+    execute("d/sub/g", "save sub/g", null, null);
+    Thread.sleep(100);
+    assertEquals(List.of(), executed);
+    releaseFile.countDown();
+    awaitAll();
+    assertEquals("save f", executed.get(0));
+    assertEquals("delete files", executed.get(1));
+    assertEquals(4, executed.size());
+  }
+
+  @Test
+  public void directoryWaitsForAllItsFiles() throws Exception {
+    CountDownLatch started = new CountDownLatch(1);
+    CountDownLatch release = new CountDownLatch(1);
+    execute("d/sub/b", "b", started, release);
+    assertTrue(started.await(10, TimeUnit.SECONDS));
+    execute("d/a", "a", null, null);
+    execute("d/sub", "sub", null, null);
+    execute("d/sub/c", "c", null, null);
+    // not contained in d/sub
+    execute("d/subway", "subway", null, null);
+    // other files are executed in parallel
+    awaitExecuted(2);
+    Thread.sleep(100);
+    assertEquals(Arrays.asList("a", "subway"), sorted(executed));
+    release.countDown();
+    awaitAll();
+    assertEquals(executed.toString(), Arrays.asList("b", "sub", "c"), executed.subList(2, 5));
+  }
+
+  @Test
+  public void failedOperationDoesNotBlockTheKey() throws Exception {
+    io.execute("d/f", () -> {
+      throw new IllegalStateException("test");
+    });
+    execute("d/f", "after failure", null, null);
+    awaitAll();
+    assertEquals(List.of("after failure"), executed);
+  }
+
+  private void awaitExecuted(int count) throws InterruptedException {
+    long end = System.currentTimeMillis() + 10000;
+    while (executed.size() < count && System.currentTimeMillis() < end) Thread.sleep(10);
+  }
+
+  private static List<String> sorted(List<String> list) {
+    List<String> result;
+    synchronized (list) {
+      result = new ArrayList<>(list);
+    }
+    Collections.sort(result);
+    return result;
+  }
+}
@@ -0,0 +1,258 @@
+package org.trailence.storage;
+
+import static org.junit.Assert.*;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Downloads against a local HTTP server, whose answer depends on the first segment of the path:
+ * ok, missing (404), error (500), busy (429), flaky (500 then 200), slow (200 after a delay).
+ */
+public class TileDownloadTest {
+
+  @Rule
+  public TemporaryFolder temp = new TemporaryFolder();
+
+  private HttpServer server;
+  private ExecutorService serverThreads;
+  private final Map<String, AtomicInteger> requests = new ConcurrentHashMap<>();
+  private final CountDownLatch slowRequested = new CountDownLatch(1);
+
+  private final List<List<String>> batches = new ArrayList<>();
+  private final Map<String, byte[]> stored = new HashMap<>();
+
+  @Before
+  public void startServer() throws IOException {
+    server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+    serverThreads = Executors.newCachedThreadPool();
+    server.setExecutor(serverThreads);
+    server.createContext("/", this::handle);
+    server.start();
+  }
+
+  @After
+  public void stopServer() {
+    server.stop(0);
+    serverThreads.shutdownNow();
+  }
+
+  private void handle(HttpExchange exchange) throws IOException {
+    String path = exchange.getRequestURI().getPath();
+    int count = requests.computeIfAbsent(path, p -> new AtomicInteger()).incrementAndGet();
+    String kind = path.split("/")[1];
+    int status;
+    switch (kind) {
+      case "missing": status = 404; break;
+      case "error": status = 500; break;
+      case "busy": status = 429; break;
+      case "flaky": status = count == 1 ? 500 : 200; break;
+      case "slow":
+        slowRequested.countDown();
+        try {
+          Thread.sleep(200);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+        status = 200;
+        break;
+      default: status = 200;
+    }
+    if (status != 200) {
+      exchange.sendResponseHeaders(status, -1);
+      exchange.close();
+      return;
+    }
+    byte[] body = content(path);
+    exchange.sendResponseHeaders(200, body.length);
+    try (OutputStream out = exchange.getResponseBody()) {
+      out.write(body);
+    }
+  }
+
+  private static byte[] content(String path) {
+    return ("tile " + path).getBytes(StandardCharsets.UTF_8);
+  }
+
+  private String url(String path) {
+    return "http://127.0.0.1:" + server.getAddress().getPort() + path;
+  }
+
+  private synchronized void store(TileDownload download, List<String> filenames, List<byte[]> contents) {
+    assertEquals("tiles", download.dir);
+    batches.add(new ArrayList<>(filenames));
+    for (int i = 0; i < filenames.size(); ++i) stored.put(filenames.get(i), contents.get(i));
+  }
+
+  private TileDownload download(String[] paths, int concurrency, CountDownLatch finished) {
+    String[] filenames = new String[paths.length];
+    String[] urls = new String[paths.length];
+    for (int i = 0; i < paths.length; ++i) {
+      filenames[i] = "tile" + i;
+      urls[i] = url(paths[i]);
+    }
+    return new TileDownload(1, "tiles", filenames, urls, Map.of(), concurrency, this::store, finished::countDown);
+  }
+
+  private TileDownload run(String[] paths, int concurrency) throws InterruptedException {
+    CountDownLatch finished = new CountDownLatch(1);
+    TileDownload download = download(paths, concurrency, finished);
+    download.start();
+    assertTrue("download not finished", finished.await(30, TimeUnit.SECONDS));
+    assertTrue(download.isFinished());
+    return download;
+  }
+
+  @Test
+  public void tilesAreStoredInBatches() throws Exception {
+    int nb = TileDownload.BATCH_SIZE * 2 + 20;
+    String[] paths = new String[nb];
+    for (int i = 0; i < nb; ++i) paths[i] = "/ok/" + i;
+    TileDownload download = run(paths, 4);
+    assertEquals(nb, download.total());
+    assertEquals(nb, download.done());
+    assertEquals(0, download.failed());
+    long bytes = 0;
+    for (int i = 0; i < nb; ++i) {
+      assertArrayEquals(content(paths[i]), stored.get("tile" + i));
+      bytes += content(paths[i]).length;
+    }
+    assertEquals(bytes, download.bytes());
+    assertTrue(batches.size() >= 2 && batches.size() <= 3);
+    for (int i = 0; i < batches.size() - 1; ++i) assertTrue(batches.get(i).size() >= TileDownload.BATCH_SIZE);
+  }
+
+  @Test
+  public void notFoundIsFailedWithoutRetry() throws Exception {
+    TileDownload download = run(new String[] { "/ok/1", "/missing/1" }, 2);
+    assertEquals(2, download.done());
+    assertEquals(1, download.failed());
+    assertEquals(1, requests.get("/missing/1").get());
+    assertEquals(List.of("tile0"), new ArrayList<>(stored.keySet()));
+  }
+
+  @Test
+  public void serverErrorsAreRetried() throws Exception {
+    TileDownload download = run(new String[] { "/error/1", "/busy/1", "/flaky/1" }, 3);
+    assertEquals(3, download.done());
+    assertEquals(2, download.failed());
+    assertEquals(TileDownload.MAX_ATTEMPTS, requests.get("/error/1").get());
+    assertEquals(TileDownload.MAX_ATTEMPTS, requests.get("/busy/1").get());
+    assertEquals(2, requests.get("/flaky/1").get());
+    assertArrayEquals(content("/flaky/1"), stored.get("tile2"));
+  }
+
+  @Test
+  public void cancelStopsTheWorkers() throws Exception {
+    String[] paths = new String[100];
+    for (int i = 0; i < paths.length; ++i) paths[i] = "/slow/" + i;
+    CountDownLatch finished = new CountDownLatch(1);
+    TileDownload download = download(paths, 2, finished);
+    download.start();
+    assertTrue(slowRequested.await(10, TimeUnit.SECONDS));
+    download.cancel();
+    assertTrue("workers not stopped", finished.await(10, TimeUnit.SECONDS));
+    assertTrue(download.isCancelled());
+    assertTrue(download.isFinished());
+    int requested = 0;
+    for (AtomicInteger count : requests.values()) requested += count.get();
+    assertTrue(requested < 10);
+    assertTrue(download.done() < download.total());
+  }
+
+  @Test
+  public void takeDownloadedReturnsAndClearsTheLog() throws Exception {
+    CountDownLatch finished = new CountDownLatch(1);
+    TileDownloads[] holder = new TileDownloads[1];
+    TileDownloads downloads = new TileDownloads(
+      temp.getRoot(),
+      (download, filenames, contents) -> {
+        store(download, filenames, contents);
+        holder[0].stored(download.dir, filenames, contents);
+      },
+      running -> {
+        if (!running && holder[0].get(1) != null) finished.countDown();
+      }
+    );
+    holder[0] = downloads;
+    downloads.start("tiles", new String[] { "a", "b", "c" }, new String[] { url("/ok/a"), url("/missing/b"), url("/ok/c") }, Map.of(), 2);
+    assertTrue(finished.await(30, TimeUnit.SECONDS));
+    assertFalse(downloads.isRunning());
+
+    Map<String, Long> files = new HashMap<>();
+    for (TileDownloads.Downloaded file : downloads.takeDownloaded("tiles")) files.put(file.filename, file.size);
+    assertEquals(Map.of("a", (long) content("/ok/a").length, "c", (long) content("/ok/c").length), files);
+    assertTrue(downloads.takeDownloaded("tiles").isEmpty());
+    assertTrue(downloads.takeDownloaded("other").isEmpty());
+  }
+
+  @Test
+  public void deletedDirectoryIsNotFilledByItsDownload() throws Exception {
+    Object storage = new Object();
+    Map<String, List<String>> storedByDir = new HashMap<>();
+    CountDownLatch firstStored = new CountDownLatch(1);
+    CountDownLatch finished = new CountDownLatch(1);
+    TileDownloads[] holder = new TileDownloads[1];
+    TileDownloads downloads = new TileDownloads(
+      temp.getRoot(),
+      (download, filenames, contents) -> {
+        // like the plugin, with the lock of the storage queue
+        synchronized (storage) {
+          if (download.isCancelled()) throw new InterruptedIOException("Download cancelled");
+          storedByDir.computeIfAbsent(download.dir, d -> new ArrayList<>()).addAll(filenames);
+          holder[0].stored(download.dir, filenames, contents);
+        }
+        firstStored.countDown();
+      },
+      running -> {
+        if (!running) finished.countDown();
+      }
+    );
+    holder[0] = downloads;
+    int nb = TileDownload.BATCH_SIZE * 4;
+    String[] filenames = new String[nb];
+    String[] urls = new String[nb];
+    for (int i = 0; i < nb; ++i) {
+      filenames[i] = "tile" + i;
+      urls[i] = url(i < TileDownload.BATCH_SIZE ? "/ok/" + i : "/slow/" + i);
+    }
+    TileDownload download = downloads.start("tiles/layer", filenames, urls, Map.of(), 2);
+    TileDownload other = downloads.start("tilesother", new String[] { "a" }, new String[] { url("/slow/a") }, Map.of(), 1);
+    assertTrue(firstStored.await(30, TimeUnit.SECONDS));
+
+    synchronized (storage) {
+      downloads.cancel("tiles", true);
+      downloads.forget("tiles", true);
+      storedByDir.remove("tiles/layer");
+    }
+    assertTrue(finished.await(30, TimeUnit.SECONDS));
+    assertTrue(download.isCancelled());
+    assertFalse(other.isCancelled());
+    assertNull(storedByDir.get("tiles/layer"));
+    assertTrue(downloads.takeDownloaded("tiles/layer").isEmpty());
+    assertEquals(List.of("a"), storedByDir.get("tilesother"));
+    assertEquals(1, downloads.takeDownloaded("tilesother").size());
+  }
+}
@@ -20,6 +20,8 @@ export class DbTableWithBlob<DTO> extends DbTable<DTO> {
     dtoKeyField: string,
     protected readonly dtoBlobField: string,
     protected readonly getContentType: (dto: Partial<DTO>) => string | undefined = () => undefined,
+    // for caches whose entries are saved again and again: writes are delayed and a file saved several times is written once
+    private readonly writeBehind = false,
   ) {
     super(injector, name, schema, dtoKeyField);
     this.localFiles = injector.get(LocalFilesService);
@@ -29,8 +31,8 @@ export class DbTableWithBlob<DTO> extends DbTable<DTO> {
         version: 10600,
         migration: (injector, dexie, table, localDir) => this.migrateToLocalFiles(injector, dexie, table, localDir),
       } as DbTableMigration);
-      this.toDtos = (fromTable, status) => Promise.all(fromTable.map(dto => this.augmentWithBlob(dto, status)));
-      this.fromDtos = (dtos, status) => Promise.all(dtos.map(dto => this.storeAndRemoveBlob(dto, status)));
+      this.toDtos = (fromTable, status) => this.augmentWithBlobs(fromTable, status);
+      this.fromDtos = (dtos, status) => this.storeAndRemoveBlobs(dtos, status);
       this.deleted = (keys, status) => this.deleteFiles(keys, status);
     }
   }
@@ -44,25 +46,15 @@ export class DbTableWithBlob<DTO> extends DbTable<DTO> {
     const next = async (from: number) => {
       const end = Math.min(keys.length, from + 25);
       const keysToProcess = keys.slice(from, end);
-      const dtosWithBlob = await table.bulkGet(keysToProcess)
-      const dtosWithoutBlob = await Promise.all(
-        dtosWithBlob.map(dto => {
-          const blob = dto[this.dtoBlobField];
-          if (!blob) {
-            progress.addWorkDone(1);
-            workDone++;
-            return Promise.resolve(dto);
-          }
-          return this.localFiles.saveBinaryFile(localDir, dto[this.dtoKeyField], new BinaryContent(blob))
-          .then(() => {
-            progress.addWorkDone(1);
-            workDone++;
-            delete dto[this.dtoBlobField];
-            return dto;
-          });
-        })
-      );
-      await table.bulkPut(dtosWithoutBlob);
+      const dtos = (await table.bulkGet(keysToProcess)).filter(dto => !!dto);
+      const dtosWithBlob = dtos.filter(dto => !!dto[this.dtoBlobField]);
+      const saved = await this.localFiles.saveBinaryFiles(localDir, dtosWithBlob.map(dto => ({filename: dto[this.dtoKeyField], data: new BinaryContent(dto[this.dtoBlobField])})), 'background');
+      const failed = dtosWithBlob.filter((_, i) => !saved[i]).map(dto => dto[this.dtoKeyField]);
+      if (failed.length > 0) throw new Error('Cannot save files: ' + failed.join(', '));
+      for (const dto of dtosWithBlob) delete dto[this.dtoBlobField];
+      progress.addWorkDone(keysToProcess.length);
+      workDone += keysToProcess.length;
+      await table.bulkPut(dtos);
       if (end === keys.length) return;
       await next(from + 25);
     };
@@ -70,20 +62,36 @@ export class DbTableWithBlob<DTO> extends DbTable<DTO> {
     if (workDone < keys.length) progress.addWorkDone(keys.length - workDone);
   }
 
-  private async augmentWithBlob(fromTable: Partial<DTO>, status: DbStatus<DTO>) {
-    (fromTable as any)[this.dtoBlobField] = await this.localFiles.readBlob(status.localDir, (fromTable as any)[this.dtoKeyField] as string, this.getContentType(fromTable));
-    return fromTable as DTO;
+  private async augmentWithBlobs(fromTable: Partial<DTO>[], status: DbStatus<DTO>) {
+    if (fromTable.length === 0) return [];
+    const byKey = new Map<string, Partial<DTO>>(fromTable.map(dto => [(dto as any)[this.dtoKeyField] as string, dto]));
+    const blobs = await this.localFiles.readBlobs(status.localDir, Array.from(byKey.keys()), key => this.getContentType(byKey.get(key)!));
+    return fromTable.map(dto => {
+      const key = (dto as any)[this.dtoKeyField] as string;
+      const blob = blobs.get(key);
+      if (!blob) throw new Error('File ' + key + ' not found');
+      (dto as any)[this.dtoBlobField] = blob;
+      return dto as DTO;
+    });
   }
 
-  private async storeAndRemoveBlob(dto: DTO, status: DbStatus<DTO>) {
-    const key = (dto as any)[this.dtoKeyField] as string;
-    const blob = (dto as any)[this.dtoBlobField] as Blob;
-    if (!key) throw new Error('Missing key on DTO');
-    if (!blob) throw new Error('Missing blob for key: ' + key);
-    await this.localFiles.saveBinaryFile(status.localDir, key, new BinaryContent(blob));
-    dto = {...dto};
-    delete (dto as any)[this.dtoBlobField];
-    return dto;
+  private async storeAndRemoveBlobs(dtos: DTO[], status: DbStatus<DTO>) {
+    const files = dtos.map(dto => {
+      const key = (dto as any)[this.dtoKeyField] as string;
+      const blob = (dto as any)[this.dtoBlobField] as Blob;
+      if (!key) throw new Error('Missing key on DTO');
+      if (!blob) throw new Error('Missing blob for key: ' + key);
+      return {filename: key, data: new BinaryContent(blob)};
+    });
+    if (this.writeBehind) await this.localFiles.enableWriteBehind(status.localDir);
+    const saved = await this.localFiles.saveBinaryFiles(status.localDir, files);
+    const failed = files.filter((_, i) => !saved[i]).map(file => file.filename);
+    if (failed.length > 0) throw new Error('Cannot save files: ' + failed.join(', '));
+    return dtos.map(dto => {
+      const withoutBlob = {...dto};
+      delete (withoutBlob as any)[this.dtoBlobField];
+      return withoutBlob;
+    });
   }
 
   private async deleteFiles(keys: string[], status: DbStatus<DTO>) {
@@ -28,7 +28,28 @@ export class DbTable<DTO> {
   protected _changed$ = new EventEmitter<string>();
 
   public get changed$() { return this._changed$; }
-  public triggerChanged(reason: string): void { this._changed$.emit(reason); }
+
+  /** Signal a change. If changedKeys is not given, the next backup will be a full one. */
+  public triggerChanged(reason: string, changedKeys?: string[]): void {
+    if (changedKeys) for (const key of changedKeys) this._changedKeysForBackup.add(key);
+    else this._fullBackupNeeded = true;
+    this._changed$.emit(reason);
+  }
+
+  private readonly _changedKeysForBackup = new Set<string>();
+  private _fullBackupNeeded = true;
+
+  /** Return the keys changed since the previous backup, or undefined if a full backup is needed. */
+  public takeChangesForBackup(): string[] | undefined {
+    const keys = this._fullBackupNeeded ? undefined : [...this._changedKeysForBackup];
+    this._fullBackupNeeded = false;
+    this._changedKeysForBackup.clear();
+    return keys;
+  }
+
+  public backupFailed(): void {
+    this._fullBackupNeeded = true;
+  }
 
   public backupEnabled = true;
 
@@ -68,6 +89,8 @@ export class DbTable<DTO> {
   private readonly ngZone: NgZone;
 
   async start(db: Db, ready: DbReady, table: Table, localDir: string, stillValid: () => boolean) {
+    this._fullBackupNeeded = true;
+    this._changedKeysForBackup.clear();
     this.ready$.next({db, table, localDir, email: ready.email, isNewDb: ready.isNew, counter: ready.counter});
   }
 
@@ -220,7 +243,7 @@ export class DbTable<DTO> {
       switchMap(async status => {
         const toStore = await this.fromDtos([dto], status).then(dtos => dtos[0]);
         await status.table.add(toStore as DTO, (dto as any)[this.dtoKeyField]);
-        this.triggerChanged('addOne');
+        this.triggerChanged('addOne', [(dto as any)[this.dtoKeyField]]);
         return dto;
       })
     );
@@ -231,7 +254,7 @@ export class DbTable<DTO> {
       switchMap(async status => {
         const toStore = await this.fromDtos(dtos, status);
         await status.table.bulkAdd(toStore as DTO[]);
-        this.triggerChanged('addMany ' + dtos.length);
+        this.triggerChanged('addMany ' + dtos.length, dtos.map(dto => (dto as any)[this.dtoKeyField]));
         return dtos;
       })
     );
@@ -242,7 +265,7 @@ export class DbTable<DTO> {
       switchMap(async status => {
         const toStore = await this.fromDtos([dto], status).then(dtos => dtos[0]);
         await status.table.put(toStore as DTO, (dto as any)[this.dtoKeyField]);
-        this.triggerChanged('setOne');
+        this.triggerChanged('setOne', [(dto as any)[this.dtoKeyField]]);
         return dto;
       })
     );
@@ -253,7 +276,7 @@ export class DbTable<DTO> {
       switchMap(async status => {
         const toStore = await this.fromDtos(dtos, status);
         await status.table.bulkPut(toStore as DTO[]);
-        this.triggerChanged('setMany ' + dtos.length);
+        this.triggerChanged('setMany ' + dtos.length, dtos.map(dto => (dto as any)[this.dtoKeyField]));
         return dtos;
       })
     );
@@ -265,7 +288,7 @@ export class DbTable<DTO> {
         status.table.delete(key),
         this.deleted([key], status),
       ]).then(() => {
-        this.triggerChanged('deleteOne');
+        this.triggerChanged('deleteOne', [key]);
         return true;
       }))
     );
@@ -278,7 +301,7 @@ export class DbTable<DTO> {
         status.table.bulkDelete(keys),
         this.deleted(keys, status),
       ]).then(() => {
-        this.triggerChanged('deleteMany ' + keys.length);
+        this.triggerChanged('deleteMany ' + keys.length, keys);
         return true;
       }))
     );
@@ -290,6 +313,7 @@ export class DbTable<DTO> {
         let count = 0;
         let keys$ = status.table.toCollection().primaryKeys();
         if (keyPredicate) keys$ = keys$.then(k => k.filter(keyPredicate));
+        const removed: string[] = [];
         return from(keys$.then(keys => {
           if (keys.length === 0 || !this.isStillValid(status)) return count;
           const next = (i:number): Promise<number> => {
@@ -304,7 +328,10 @@ export class DbTable<DTO> {
               if (!this.isStillValid(status)) return count;
               return status.table.bulkDelete(toRemove)
               .then(() => this.isStillValid(status) ? this.deleted(toRemove, status) : undefined)
-              .then(() => count += toRemove.length);
+              .then(() => {
+                removed.push(...toRemove);
+                return count += toRemove.length;
+              });
             }).then(() => {
               if (this.isStillValid(status) && end < keys.length) return next(end);
               return count;
@@ -313,7 +340,7 @@ export class DbTable<DTO> {
           return next(0)
           .then(result => {
             if (result > 0)
-              this.triggerChanged('deleteWhen ' + result);
+              this.triggerChanged('deleteWhen ' + result, removed);
             return result;
           });
         }));
@@ -117,6 +117,15 @@ function runTests(withFiles: boolean) {
       expect(await firstValueFrom(table.getBlob$('key9'))).toBeUndefined();
       expect(await firstValueFrom(table.getBlob$('key10'))).toBeUndefined();
 
+      // getBlobsStats$
+      const stats = await firstValueFrom(table.getBlobsStats$());
+      if (withFiles) {
+        expect(stats?.files).toBe(6);
+        expect(stats?.size).toBe(Array.from(expectedBlobs.values()).reduce((total, b) => total + b.blob.size, 0));
+      } else {
+        expect(stats).toBeUndefined();
+      }
+
       // deleteAll
       await firstValueFrom(table.deleteAll$());
       expect(await firstValueFrom(table.metadata.getAll$())).toHaveSize(0);
@@ -1,7 +1,8 @@
 import { Injector } from '@angular/core';
 import { DbTable } from './db-table';
 import { LocalFilesService } from '../../local-files/local-files.service';
-import { catchError, concat, filter, first, forkJoin, from, last, map, Observable, switchMap, throwError, zip } from 'rxjs';
+import { DirectoryQuota } from '../../local-files/local-files.interface';
+import { catchError, filter, first, forkJoin, from, map, Observable, of, switchMap, throwError, zip } from 'rxjs';
 import { BinaryContent } from 'src/app/utils/binary-content';
 import { Table } from 'dexie';
 import { ProgressService } from '../../progress/progress.service';
@@ -21,6 +22,8 @@ export class DbTablesMetaBlob<MetaDto> {
     private readonly blobTableSuffix: string,
     metaTableSchema: string,
     private readonly metaDtoKeyField: string,
+    private readonly packed: boolean | 'deduplicated' = false,
+    private readonly quota?: DirectoryQuota,
   ) {
     this.localFiles = injector.get(LocalFilesService);
     this.metaTable = new DbTable<MetaDto>(injector, tablesPrefix + '_' + metaTableSuffix, metaTableSchema, metaDtoKeyField);
@@ -38,6 +41,7 @@ export class DbTablesMetaBlob<MetaDto> {
   }
 
   private readonly localFiles: LocalFilesService;
+  private quotaDir?: string;
   private readonly metaTable: DbTable<MetaDto>;
   private blobTable?: DbTable<BlobDto>;
 
@@ -46,17 +50,18 @@ export class DbTablesMetaBlob<MetaDto> {
   }
 
   private async migrateToLocalFiles(injector: Injector, table: Table, localDir: string) {
-    const nb = await table.count();
-    if (nb > 0) {
-      const progress = injector.get(ProgressService).getOrCreate('update-migration', injector.get(I18nService).texts.update.updating, nb);
-      let workDone = 0;
-      await table.each(async (dto: BlobDto) => {
-        await this.localFiles.saveBinaryFile(localDir, dto.key, new BinaryContent(dto.blob));
-        progress.addWorkDone(1);
-        workDone++;
-      });
+    const keys = await table.toCollection().primaryKeys();
+    if (keys.length > 0) {
+      const progress = injector.get(ProgressService).getOrCreate('update-migration', injector.get(I18nService).texts.update.updating, keys.length);
+      for (let i = 0; i < keys.length; i += 50) {
+        const keysToProcess = keys.slice(i, i + 50);
+        const dtos = (await table.bulkGet(keysToProcess)).filter(dto => !!dto) as BlobDto[];
+        const saved = await this.localFiles.saveBinaryFiles(localDir, dtos.map(dto => ({filename: dto.key, data: new BinaryContent(dto.blob)})), 'background');
+        const failed = dtos.filter((_, i) => !saved[i]).map(dto => dto.key);
+        if (failed.length > 0) throw new Error('Cannot save files: ' + failed.join(', '));
+        progress.addWorkDone(keysToProcess.length);
+      }
       await table.clear();
-      if (workDone < nb) progress.addWorkDone(nb - workDone);
     }
     this.blobTable = undefined;
   }
@@ -68,6 +73,11 @@ export class DbTablesMetaBlob<MetaDto> {
     return this.getFile$(key, contentType);
   }
 
+  public getBlobUrl$(key: string, contentType?: string): Observable<string | undefined> {
+    if (this.blobTable || !this.localFiles.supported()) return of(undefined);
+    return this.localDir$.pipe(map(localDir => this.localFiles.getFileUrl(localDir, key, contentType)));
+  }
+
   public setMany$(metas: MetaDto[], blobs: BlobDto[]): Observable<boolean> {
     const setMetas$ = this.metaTable.setMany$(metas);
     const setBlobs$ = this.blobTable ? this.blobTable.setMany$(blobs) : this.storeManyBlobs$(blobs);
@@ -95,29 +105,80 @@ export class DbTablesMetaBlob<MetaDto> {
     return zip([deleteMeta$, deleteBlobs$]).pipe(map(() => true));
   }
 
+  /** Number of stored blobs and their total size, or undefined if it cannot be known without reading every blob. */
+  public getBlobsStats$(): Observable<{files: number, size: number} | undefined> {
+    if (this.blobTable || !this.localFiles.supported()) return of(undefined);
+    return this.localDir$.pipe(
+      switchMap(localDir => from(this.localFiles.getDirectoryStats([localDir]))),
+      map(stats => stats[0]?.error ? undefined : stats[0]),
+      catchError(() => of(undefined)),
+    );
+  }
+
+  /**
+   * Forget the metadata of blobs deleted natively to respect the quota, so they are not considered as stored anymore.
+   * Return the number of blobs forgotten.
+   */
+  public purgeEvicted$(): Observable<number> {
+    if (this.blobTable || !this.localFiles.supported() || !this.quota) return of(0);
+    return this.localDir$.pipe(
+      switchMap(localDir => from(this.localFiles.takeEvictedFiles(localDir))),
+      switchMap(keys => keys.length === 0 ? of(0) : this.metaTable.deleteMany$(keys).pipe(map(() => keys.length))),
+      catchError(() => of(0)),
+    );
+  }
+
+  /**
+   * Download blobs natively, directly into the local files. Return the id of the download,
+   * or undefined if they cannot be downloaded natively, in which case the caller has to download them itself.
+   * The metadata of the downloaded blobs is then recorded by recordDownloaded$.
+   */
+  public startDownload$(blobs: {key: string, url: string}[], maxConcurrentRequests: number, title?: string): Observable<number | undefined> {
+    if (this.blobTable || !this.localFiles.supported()) return of(undefined);
+    return this.localDir$.pipe(
+      switchMap(localDir => from(this.localFiles.startTileDownload(localDir, blobs.map(b => ({filename: b.key, url: b.url})), maxConcurrentRequests, title))),
+      catchError(() => of(undefined)),
+    );
+  }
+
+  /** Store the metadata of the blobs downloaded natively since the last call, and return their number. */
+  public recordDownloaded$(toMetadata: (key: string, size: number) => MetaDto): Observable<number> {
+    if (this.blobTable || !this.localFiles.supported()) return of(0);
+    return this.localDir$.pipe(
+      switchMap(localDir => from(this.localFiles.takeDownloadedFiles(localDir))),
+      switchMap(files => files.length === 0 ? of(0) : this.metaTable.setMany$(files.map(f => toMetadata(f.filename, f.size))).pipe(map(() => files.length))),
+    );
+  }
+
   private get localDir$() {
     return this.metaTable.whenReady$().pipe(
       filter(info => !!info),
       switchMap(info => info.db.tableLocalDir$(this.tablesPrefix + '_' + this.blobTableSuffix)),
       first(),
+      switchMap(localDir => this.packed ? from(this.localFiles.enablePackedStorage(localDir, this.packed === 'deduplicated').then(() => localDir)) : of(localDir)),
+      switchMap(localDir => this.applyQuota(localDir)),
     );
   }
 
+  private applyQuota(localDir: string): Observable<string> {
+    if (!this.quota || this.quotaDir === localDir) return of(localDir);
+    this.quotaDir = localDir;
+    return from(this.localFiles.setDirectoryQuota(localDir, this.quota).then(() => localDir));
+  }
+
   private getFile$(key: string, contentType?: string): Observable<Blob | undefined> {
     return this.localDir$.pipe(
-      switchMap(localDir => this.localFiles.readBlob(localDir, key, contentType).catch(() => undefined)),
+      switchMap(localDir => this.localFiles.readBlob(localDir, key, contentType, 'interactive').catch(() => undefined)),
     );
   }
 
   private storeManyBlobs$(blobs: BlobDto[]): Observable<boolean> {
     return this.localDir$.pipe(
-      switchMap(localDir => {
-        const storeFiles$ = from(blobs).pipe(
-          switchMap(blob => this.localFiles.saveBinaryFile(localDir, blob.key, new BinaryContent(blob.blob)))
-        );
-        return concat(storeFiles$).pipe(
-          last()
-        );
+      switchMap(localDir => this.localFiles.saveBinaryFiles(localDir, blobs.map(blob => ({filename: blob.key, data: new BinaryContent(blob.blob)})))),
+      map(results => {
+        const failed = results.filter(success => !success).length;
+        if (failed > 0) throw new Error(failed + ' file(s) cannot be saved');
+        return true;
       }),
     );
   }
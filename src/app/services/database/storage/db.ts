@@ -1,6 +1,6 @@
 import { Injector, NgZone } from '@angular/core';
 import { AuthService } from '../../auth/auth.service';
-import Dexie from 'dexie';
+import Dexie, { Table } from 'dexie';
 import { BehaviorSubject, EMPTY, filter, from, map, Observable, of, Subject, Subscription, switchMap, tap } from 'rxjs';
 import { Console } from 'src/app/utils/console';
 import { DbTable } from './db-table';
@@ -292,48 +292,73 @@ export class Db {
         switchMap(latestChange => {
           if (this.ready$.value !== ready) return EMPTY;
           if (pending) {
-            table.triggerChanged('replay due to pending backup: ' + latestChange);
+            table.triggerChanged('replay due to pending backup: ' + latestChange, []);
             return of(undefined);
           } else {
             Console.info('Start backuping table ' + table.name + ', trigger = ' + latestChange);
             pending = true;
-            return from(this.backupTable(ready, localFiles, table.name, table.backupLinesBunch, false)).pipe(tap(() => pending = false));
+            return from(this.backupTable(ready, localFiles, table.name, table.backupLinesBunch, false, table)).pipe(tap(() => pending = false));
           }
         })
       ).subscribe());
     });
     if (this.ready$.value === ready)
-      table.addShutdownHook(() => this.backupTable(ready, localFiles, table.name, table.backupLinesBunch, true));
+      table.addShutdownHook(() => this.backupTable(ready, localFiles, table.name, table.backupLinesBunch, true, table));
   }
 
-  private async backupTable(ready: DbReady, localFiles: LocalFilesService, tableName: string, chunkSize: number, onClose: boolean) {
+  private async backupTable(ready: DbReady, localFiles: LocalFilesService, tableName: string, chunkSize: number, onClose: boolean, table?: DbTable<any>) {
     if (!onClose && this.ready$.value !== ready) return;
-    Console.info('Backuping DB table ' + ready.db.name + '/' + tableName);
-    const start = Date.now();
     const t = ready.db.table(tableName);
     const filename = tableName + '.jsonl';
+    const changedKeys = table?.takeChangesForBackup();
+    if (changedKeys?.length === 0) return;
+    Console.info('Backuping DB table ' + ready.db.name + '/' + tableName + (changedKeys ? ': ' + changedKeys.length + ' change(s)' : ''));
+    const start = Date.now();
     try {
+      if (changedKeys && await this.backupChanges(ready, localFiles, t, filename, changedKeys, chunkSize)) {
+        Console.info('Backup changes done for DB table to', ready.localDir + '/' + filename, 'in', (Date.now() - start), 'ms.');
+        return;
+      }
       const keys = await t.toCollection().primaryKeys();
-      if (!onClose && this.ready$.value !== ready) return;
+      if (!onClose && this.ready$.value !== ready) {
+        table?.backupFailed();
+        return;
+      }
       await localFiles.saveJsonl(
         ready.localDir,
         filename,
         async (from, limit) => {
           const end = Math.min(keys.length, from + limit);
           const hasMore = end < keys.length;
-          const dtos = await t.bulkGet(keys.slice(from, end));
-          const lines = dtos.map(dto => JSON.stringify(dto));
+          const bunch = keys.slice(from, end);
+          const dtos = await t.bulkGet(bunch);
+          const lines: string[] = [];
+          for (let i = 0; i < bunch.length; ++i)
+            if (dtos[i]) lines.push(JSON.stringify(bunch[i]) + '\t' + JSON.stringify(dtos[i]));
           return {lines, hasMore};
         },
         chunkSize,
+        {keyed: true, compressed: true, priority: 'background'},
       );
       Console.info('Backup done for DB table to', ready.localDir + '/' + filename, 'in', (Date.now() - start), 'ms.');
     } catch (e) {
       Console.error('Error storing backup to ' + ready.localDir + '/' + filename, e);
+      table?.backupFailed();
       this.injector.get(LocalFilesService).deleteFile(ready.localDir, filename);
     }
   }
 
+  /** Append the changed records to the journal of the backup, or return false if a full backup is needed. */
+  private async backupChanges(ready: DbReady, localFiles: LocalFilesService, t: Table, filename: string, changedKeys: string[], chunkSize: number): Promise<boolean> {
+    for (let i = 0; i < changedKeys.length; i += chunkSize) {
+      const bunch = changedKeys.slice(i, i + chunkSize);
+      const dtos = await t.bulkGet(bunch);
+      const records = bunch.map((key, index) => ({key: JSON.stringify(key), line: dtos[index] ? JSON.stringify(dtos[index]) : undefined}));
+      if (!(await localFiles.appendJsonlJournal(ready.localDir, filename, records))) return false;
+    }
+    return true;
+  }
+
   public static setInternalData(db: Dexie, key: string, data: any) {
     return db.table(INTERNAL_TABLE_NAME).put({key, data});
   }
@@ -0,0 +1,64 @@
+const CHANNEL_OBJECT_NAME = 'trailenceLocalFiles';
+
+interface NativeChannel {
+  postMessage(message: string | ArrayBuffer): void;
+  addEventListener(type: 'message', listener: (event: MessageEvent) => void): void;
+}
+
+type pendingChunk = {resolve: (result: string) => void, reject: (reason: any) => void};
+
+/**
+ * Send binary files content to the native LocalFiles plugin as ArrayBuffer instead of base64.
+ * Each message is the write id on 4 bytes (big endian), followed by the chunk content.
+ */
+export class LocalFilesBinaryChannel {
+
+  private readonly channel?: NativeChannel;
+  private readonly pending = new Map<number, pendingChunk>();
+
+  constructor() {
+    const channel = (globalThis as any)[CHANNEL_OBJECT_NAME];
+    if (channel && typeof channel.postMessage === 'function' && typeof channel.addEventListener === 'function') {
+      this.channel = channel as NativeChannel;
+      this.channel.addEventListener('message', event => this.onReply(event.data));
+    }
+  }
+
+  public available(): boolean {
+    return !!this.channel;
+  }
+
+  public write(id: number, maxChunkSize: number, content: Uint8Array, offset: number = 0): Promise<string> {
+    const end = Math.min(offset + maxChunkSize, content.length);
+    return this.sendChunk(id, content.subarray(offset, end))
+    .then(result => {
+      if (end === content.length || result === 'done') return result;
+      return this.write(id, maxChunkSize, content, end);
+    });
+  }
+
+  private sendChunk(id: number, data: Uint8Array): Promise<string> {
+    return new Promise<string>((resolve, reject) => {
+      const message = new Uint8Array(4 + data.length);
+      new DataView(message.buffer).setInt32(0, id);
+      message.set(data, 4);
+      this.pending.set(id, {resolve, reject});
+      try {
+        this.channel!.postMessage(message.buffer);
+      } catch (e) {
+        this.pending.delete(id);
+        reject(e);
+      }
+    });
+  }
+
+  private onReply(data: any): void {
+    if (typeof data !== 'string') return;
+    const reply = JSON.parse(data);
+    const pending = this.pending.get(reply.id);
+    if (!pending) return;
+    this.pending.delete(reply.id);
+    if (reply.error !== undefined) pending.reject({message: reply.error, code: reply.code});
+    else pending.resolve(reply.result);
+  }
+}
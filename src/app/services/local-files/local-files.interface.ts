@@ -3,8 +3,11 @@ export interface LocalFilesPlugin {
   fileExists(call: {dir: string, filename: string}): Promise<{exists: boolean}>;
   filesExist(call: {dir: string, files: string[]}): Promise<{exist: boolean[]}>;
   getFilesSize(call: {dir: string, files: string[]}): Promise<{files: {filename: string, size: number}[]}>;
+  getDirectoryStats(call: {dirs: string[]}): Promise<{dirs: DirectoryStats[]}>;
 
   listFiles(call: {dir: string}): Promise<{files: string[]}>;
+  listFilesByPage(call: {dir: string, pageSize?: number} & FileListingFilter): Promise<{files: FileInfo[], id?: number}>;
+  listFilesNextPage(call: {id: number}): Promise<{files: FileInfo[], end: boolean}>;
 
   deleteFile(call: {dir: string, filename: string}): Promise<any>;
   deleteFiles(call: {dir: string, files: string[]}): Promise<any>;
@@ -13,19 +16,176 @@ export interface LocalFilesPlugin {
 
   renameDirectory(call: {previousPath: string, newPath: string}): Promise<any>;
 
-  readBinaryFile(call: {dir: string, filename: string}): Promise<{data: string | undefined, chunks: number, id: number | undefined}>;
+  enablePackedStorage(call: {dir: string, deduplicate?: boolean}): Promise<any>;
+  enableWriteBehind(call: {dir: string, delay?: number}): Promise<any>;
+  setDirectoryQuota(call: {dir: string} & DirectoryQuota): Promise<any>;
+  takeEvictedFiles(call: {dir: string}): Promise<{files: string[]}>;
+
+  readBinaryFile(call: {dir: string, filename: string, priority?: StoragePriority}): Promise<{data: string | undefined, chunks: number, id: number | undefined}>;
   readBinaryFileChunk(call: {id: number}): Promise<{data: string}>;
+  readBinaryFileRange(call: {dir: string, filename: string, offset: number, length: number, priority?: StoragePriority}): Promise<{data: string, size: number}>;
+
+  getTileArchiveInfo(call: {dir: string, filename: string}): Promise<TileArchiveInfo>;
+  readArchiveTile(call: {dir: string, filename: string, z: number, x: number, y: number}): Promise<{data?: string, contentType?: string}>;
+
+  readBinaryFiles(call: {dir: string, files: string[], priority?: StoragePriority}, callback: (message: {files: BinaryFileRead[], end: boolean} | undefined, error?: any) => void): Promise<string>;
 
-  readJsonlFile(call: {dir: string, filename: string}): Promise<{events: JsonLEvent[], id: number | undefined}>;
-  readJsonlFileChunk(call: {id: number}): Promise<{events: JsonLEvent[], end: boolean}>;
+  readJsonlFile(call: {dir: string, filename: string, lines?: boolean, priority?: StoragePriority}): Promise<JsonlReadChunk & {id: number | undefined}>;
+  readJsonlFileChunk(call: {id: number}): Promise<JsonlReadChunk & {end: boolean}>;
+  /** Chunks are pushed to the callback, at most window of them before being acknowledged with ackReadStream. */
+  streamBinaryFile(call: {dir: string, filename: string, window?: number, priority?: StoragePriority}, callback: (message: BinaryStreamChunk | undefined, error?: any) => void): Promise<string>;
+  streamJsonlFile(call: {dir: string, filename: string, lines?: boolean, window?: number, priority?: StoragePriority}, callback: (message: JsonlStreamChunk | undefined, error?: any) => void): Promise<string>;
+  ackReadStream(call: {id: number, chunks?: number}): Promise<any>;
 
-  saveBinaryFile(call: {dir: string, filename: string, size: number}): Promise<{id: number, maxChunkSize: number} | {}>;
+  saveBinaryFile(call: {dir: string, filename: string, size: number, priority?: StoragePriority}): Promise<{id: number, maxChunkSize: number, binaryChannel?: boolean} | {}>;
   saveBinaryFileChunk(call: {id: number, data: string}): Promise<{result: string}>;
+  saveBinaryFiles(call: {dir: string, files: {filename: string, data: string}[], priority?: StoragePriority}): Promise<{results: {filename: string, success: boolean, error?: string}[]}>;
 
-  saveJsonlFile(call: {dir: string, filename: string, events: JsonLEvent[], more: boolean}): Promise<{id: number | undefined}>;
+  saveJsonlFile(call: {dir: string, filename: string, events: JsonLEvent[], more: boolean, keyed?: boolean, compressed?: boolean, priority?: StoragePriority}): Promise<{id: number | undefined}>;
   saveJsonlFileChunk(call: {id: number, events: JsonLEvent[], more: boolean}): Promise<{result: string}>;
 
+  /** Abort a read in progress: its handle is closed without waiting for its expiration. */
+  cancelRead(call: {id: number}): Promise<any>;
+  /** Abort a write in progress: its handle is closed and the temporary file deleted, the existing file is kept unchanged. */
+  cancelWrite(call: {id: number}): Promise<any>;
+  appendJsonlJournal(call: {dir: string, filename: string, records: {k: string, d?: string}[]}): Promise<any>;
+
+  startTileDownload(call: {dir: string, tiles: {filename: string, url: string}[], maxConcurrentRequests: number, headers?: {[name: string]: string}, notificationTitle?: string}): Promise<{id: number}>;
+  getTileDownloadProgress(call: {id: number}): Promise<TileDownloadProgress>;
+  cancelTileDownload(call: {id: number}): Promise<any>;
+  takeDownloadedFiles(call: {dir: string}): Promise<{files: {filename: string, size: number}[]}>;
+
+  getOpenHandles(): Promise<OpenHandles>;
+  getReadCacheStats(): Promise<ReadCacheStats>;
+  getBufferPoolStats(): Promise<BufferPoolStats>;
+
+}
+
+export interface BinaryFileRead {
+  filename: string;
+  data?: string;
+  chunks?: number;
+  id?: number;
+  missing?: boolean;
+  error?: string;
+}
+
+/** Zoom levels, bounds (in degrees), and number and type of tiles of a tile archive. */
+export interface TileArchiveInfo {
+  minZoom: number;
+  maxZoom: number;
+  minLon: number;
+  minLat: number;
+  maxLon: number;
+  maxLat: number;
+  centerZoom: number;
+  centerLon: number;
+  centerLat: number;
+  tiles: number;
+  contentType: string;
+}
+
+/** Progress of a native tile download. Once finished, it can be requested only once. */
+export interface TileDownloadProgress {
+  total: number;
+  /** Tiles downloaded and stored, or failed. */
+  done: number;
+  failed: number;
+  /** Size of the stored tiles. */
+  bytes: number;
+  finished: boolean;
+}
+
+export interface DirectoryQuota {
+  /** Maximum total size of the files directly in the directory, in bytes. */
+  maxSize?: number;
+  /** Minimum free space to keep on the device, in bytes. */
+  minFreeSpace?: number;
+}
+
+/** Number of files and total size of a directory, not including its sub-directories. */
+export interface DirectoryStats {
+  dir: string;
+  files: number;
+  size: number;
+  error?: string;
+}
+
+/** A file listed by page, with modified its last modification timestamp in milliseconds. */
+export interface FileInfo {
+  filename: string;
+  size: number;
+  modified: number;
+}
+
+/** Criteria on the files listed by page. The glob is like *.pbf, and timestamps are in milliseconds. */
+export interface FileListingFilter {
+  prefix?: string;
+  glob?: string;
+  modifiedAfter?: number;
+  modifiedBefore?: number;
+}
+
+/** Chunked reads and writes still open on the native side. Idle ones expire after a while. */
+export interface OpenHandles {
+  binaryReads: OpenHandlesStats;
+  jsonlReads: OpenHandlesStats;
+  binaryWrites: OpenHandlesStats;
+  jsonlWrites: OpenHandlesStats;
+  fileListings: OpenHandlesStats;
+  readStreams: OpenHandlesStats;
+  expired: number;
+}
+
+/** Usage of the native cache of recently read small files. Sizes are in bytes. */
+export interface ReadCacheStats {
+  hits: number;
+  misses: number;
+  sharedLoads: number;
+  evictions: number;
+  count: number;
+  size: number;
+  maxSize: number;
+}
+
+/** Reuse of the native buffers used for reads and writes. Sizes are in bytes. */
+export interface BufferPoolStats {
+  hits: number;
+  misses: number;
+  dropped: number;
+  count: number;
+  size: number;
+}
+
+export interface OpenHandlesStats {
+  count: number;
+  pendingBytes: number;
+  tempBytes: number;
+  oldestAge: number;
+  longestIdle: number;
 }
 
 export type JsonLEvent = {nl: boolean} | {d: string};
+
+/** Interactive operations are executed before others waiting, background ones after. Default is normal. */
+export type StoragePriority = 'interactive' | 'normal' | 'background';
+
+/** Events, or lines if requested when opening the file. If partial is true, the last line continues in the next chunk. */
+export interface JsonlReadChunk {
+  events?: JsonLEvent[];
+  lines?: string[];
+  partial?: boolean;
+}
+
+/** A chunk pushed by a streamed read, with the id to acknowledge it. */
+export interface ReadStreamChunk {
+  id: number;
+  end: boolean;
+}
+
+export interface BinaryStreamChunk extends ReadStreamChunk {
+  data: string;
+}
+
+export type JsonlStreamChunk = JsonlReadChunk & ReadStreamChunk;
 export const JSONL_CHUNK_MAX_SIZE = 4 * 1024 * 1024;
@@ -0,0 +1,200 @@
+import { BinaryContent } from 'src/app/utils/binary-content';
+import { BinaryStreamChunk, JSONL_CHUNK_MAX_SIZE, JsonLEvent, JsonlStreamChunk, LocalFilesPlugin } from './local-files.interface';
+import { LocalFilesPluginProvider, LocalFilesService } from './local-files.service';
+
+/** Service using a plugin which implements only the methods used by a test. */
+function createService(plugin: Partial<LocalFilesPlugin>): LocalFilesService {
+  return new LocalFilesService({
+    supported: () => true,
+    getPlugin: () => plugin as LocalFilesPlugin,
+  } as unknown as LocalFilesPluginProvider);
+}
+
+function bytes(size: number, value: number): BinaryContent {
+  return new BinaryContent(new Uint8Array(size).fill(value));
+}
+
+/** Native side of a streamed read, pushing the given chunks, at most window of them before they are acknowledged. */
+class FakeStream<T extends {id: number, end: boolean}> {
+  public window?: number;
+  public acks = 0;
+  public cancelled: number[] = [];
+  private sent = 0;
+  private credits = 0;
+  private callback?: (message: T | undefined, error?: any) => void;
+
+  constructor(private readonly chunks: Omit<T, 'id' | 'end'>[]) {}
+
+  public start(call: {window?: number}, callback: (message: T | undefined, error?: any) => void): Promise<string> {
+    this.window = call.window;
+    this.credits = call.window ?? 1;
+    this.callback = callback;
+    setTimeout(() => this.send(), 0);
+    return Promise.resolve('callback');
+  }
+
+  public ack(call: {id: number, chunks?: number}): Promise<any> {
+    expect(call.id).toBe(12);
+    this.acks += call.chunks ?? 1;
+    this.credits += call.chunks ?? 1;
+    setTimeout(() => this.send(), 0);
+    return Promise.resolve();
+  }
+
+  public cancel(call: {id: number}): Promise<any> {
+    this.cancelled.push(call.id);
+    return Promise.resolve();
+  }
+
+  private send(): void {
+    while (this.credits > 0 && this.sent < this.chunks.length && this.cancelled.length === 0) {
+      this.credits--;
+      const chunk = {...this.chunks[this.sent], id: 12, end: this.sent === this.chunks.length - 1} as T;
+      this.sent++;
+      this.callback!(chunk);
+    }
+  }
+
+  public plugin(): Partial<LocalFilesPlugin> {
+    return {
+      streamBinaryFile: (call, callback) => this.start(call, callback as any),
+      streamJsonlFile: (call, callback) => this.start(call, callback as any),
+      ackReadStream: call => this.ack(call),
+      cancelRead: call => this.cancel(call),
+    };
+  }
+}
+
+describe('LocalFilesService', () => {
+
+  it('saveBinaryFiles groups small files in batches', async () => {
+    const batches: string[][] = [];
+    const singles: string[] = [];
+    const service = createService({
+      saveBinaryFiles: call => {
+        batches.push(call.files.map(f => f.filename));
+        return Promise.resolve({results: call.files.map(f => ({filename: f.filename, success: f.filename !== 'small-5'}))});
+      },
+      saveBinaryFile: call => {
+        singles.push(call.filename);
+        return Promise.resolve({});
+      },
+    });
+    const files: {filename: string, data: BinaryContent}[] = [];
+    for (let i = 0; i < 150; ++i) files.push({filename: 'small-' + i, data: bytes(10, i)});
+    files.push({filename: 'large', data: bytes(1024 * 1024 + 1, 1)});
+    for (let i = 0; i < 3; ++i) files.push({filename: 'medium-' + i, data: bytes(400 * 1024, i)});
+
+    const results = await service.saveBinaryFiles('dir', files);
+
+    expect(singles).toEqual(['large']);
+    expect(batches.length).toBe(3);
+    expect(batches[0].length).toBe(100);
+    expect(batches[1].length).toBe(52); // 50 small and 2 medium within 1 MB
+    expect(batches[2]).toEqual(['medium-2']);
+    expect(batches.flat().length).toBe(153);
+    expect(results.length).toBe(files.length);
+    expect(results.filter(r => !r).length).toBe(1);
+    expect(results[5]).toBeFalse();
+    expect(results[150]).toBeTrue();
+  });
+
+  it('readBlob consumes streamed chunks with a bounded window', async () => {
+    const contents = [[1, 2, 3, 4], [5], [6, 7], [8, 9, 10], [11]];
+    const chunks = await Promise.all(contents.map(c => new BinaryContent(new Uint8Array(c)).toBase64().then(data => ({data}))));
+    const stream = new FakeStream<BinaryStreamChunk>(chunks);
+    const service = createService(stream.plugin());
+
+    const blob = await service.readBlob('dir', 'file', 'application/test');
+
+    expect(stream.window).toBeGreaterThan(0);
+    expect(new Uint8Array(await blob.arrayBuffer())).toEqual(new Uint8Array([1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11]));
+    expect(blob.type).toBe('application/test');
+    // every chunk but the last one is acknowledged
+    expect(stream.acks).toBe(contents.length - 1);
+    expect(stream.cancelled).toEqual([]);
+  });
+
+  it('readJsonl re-assembles lines split between chunks', async () => {
+    const stream = new FakeStream<JsonlStreamChunk>([
+      {lines: ['a', 'b', 'c-start'], partial: true},
+      {lines: ['-middle'], partial: true},
+      {lines: ['-end', 'd'], partial: false},
+      {lines: ['e', 'last'], partial: true},
+    ]);
+    const service = createService(stream.plugin());
+    const received: string[][] = [];
+
+    await service.readJsonl('dir', 'file.jsonl', lines => { received.push([...lines]); return Promise.resolve(); });
+
+    expect(received).toEqual([['a', 'b'], ['c-start-middle-end', 'd'], ['e'], ['last'], []]);
+  });
+
+  it('readJsonl cancels the stream when the consumer fails', async () => {
+    const stream = new FakeStream<JsonlStreamChunk>([{lines: ['a']}, {lines: ['b']}, {lines: ['c']}, {lines: ['d']}]);
+    const service = createService(stream.plugin());
+    const received: string[] = [];
+    const error = new Error('consumer error');
+
+    await expectAsync(service.readJsonl('dir', 'file.jsonl', lines => {
+      received.push(...lines);
+      return lines.includes('b') ? Promise.reject(error) : Promise.resolve();
+    })).toBeRejectedWith(error);
+
+    expect(stream.cancelled).toEqual([12]);
+    expect(received).toEqual(['a', 'b']);
+  });
+
+  it('appendJsonlJournal sends records by chunks of bounded size', async () => {
+    const sent: {k: string, d?: string}[][] = [];
+    const service = createService({
+      appendJsonlJournal: call => { sent.push(call.records); return Promise.resolve(); },
+    });
+    const line = 'x'.repeat(Math.floor(JSONL_CHUNK_MAX_SIZE / 3));
+    const records = [
+      {key: 'a', line}, {key: 'b'}, {key: 'c', line}, {key: 'd', line},
+      {key: 'e', line: 'y'.repeat(JSONL_CHUNK_MAX_SIZE + 10)}, {key: 'f', line: '{}'},
+    ];
+
+    expect(await service.appendJsonlJournal('dir', 'file.jsonl', records)).toBeTrue();
+
+    expect(sent.map(chunk => chunk.map(r => r.k))).toEqual([['a', 'b', 'c'], ['d'], ['e'], ['f']]);
+    expect(sent[0][1]).toEqual({k: 'b'});
+    expect(sent[0][0].d).toBe(line);
+  });
+
+  it('appendJsonlJournal resolves to false when the file is not journaled', async () => {
+    const service = createService({
+      appendJsonlJournal: () => Promise.reject({code: 'not-journaled'}),
+    });
+    expect(await service.appendJsonlJournal('dir', 'file.jsonl', [{key: 'a', line: '{}'}])).toBeFalse();
+  });
+
+  it('saveJsonl splits lines larger than a chunk', async () => {
+    const events: JsonLEvent[][] = [];
+    const service = createService({
+      saveJsonlFile: call => { events.push(call.events); return Promise.resolve({id: call.more ? 3 : undefined}); },
+      saveJsonlFileChunk: call => { expect(call.id).toBe(3); events.push(call.events); return Promise.resolve({result: 'ok'}); },
+    });
+    const longLine = 'z'.repeat(JSONL_CHUNK_MAX_SIZE * 2 + 100);
+    const lines = ['first', longLine, 'last'];
+
+    await service.saveJsonl('dir', 'file.jsonl', from => Promise.resolve({lines: from === 0 ? lines : [], hasMore: false}));
+
+    expect(events.length).toBeGreaterThan(2);
+    let text = '';
+    for (const chunk of events) {
+      let size = 0;
+      for (const event of chunk) {
+        if ((event as any).nl) text += '\n';
+        else {
+          text += (event as any).d;
+          size += (event as any).d.length;
+        }
+      }
+      expect(size).toBeLessThanOrEqual(JSONL_CHUNK_MAX_SIZE);
+    }
+    expect(text).toBe(lines.join('\n') + '\n');
+  });
+
+});
@@ -3,7 +3,15 @@ import { Platform } from '@ionic/angular/standalone';
 import { BinaryContent } from 'src/app/utils/binary-content';
 import LocalFiles from './local-files';
 import { Console } from 'src/app/utils/console';
-import { JSONL_CHUNK_MAX_SIZE, JsonLEvent, LocalFilesPlugin } from './local-files.interface';
+import { BinaryStreamChunk, BufferPoolStats, DirectoryQuota, DirectoryStats, FileInfo, FileListingFilter, JSONL_CHUNK_MAX_SIZE, JsonLEvent, JsonlReadChunk, JsonlStreamChunk, LocalFilesPlugin, OpenHandles, ReadCacheStats, ReadStreamChunk, StoragePriority, TileArchiveInfo, TileDownloadProgress } from './local-files.interface';
+import { LocalFilesBinaryChannel } from './local-files-binary-channel';
+
+const FILES_URL_PREFIX = '/_trailence_files_/';
+const TILES_URL_PREFIX = '/_trailence_tiles_/';
+const SAVE_BATCH_MAX_SIZE = 1024 * 1024;
+const SAVE_BATCH_MAX_FILES = 100;
+/** Number of chunks a streamed read can send before they are consumed. */
+const READ_STREAM_WINDOW = 3;
 
 type waitingOperation = {name: string, operation: () => Promise<any>, resolve: (result: any) => void, reject: (reason: any) => void};
 
@@ -31,12 +39,14 @@ export class LocalFilesService {
 
   private readonly support: boolean;
   private readonly plugin: LocalFilesPlugin;
+  private readonly binaryChannel?: LocalFilesBinaryChannel;
 
   constructor(
     readonly pluginProvider: LocalFilesPluginProvider,
   ) {
     this.support = this.pluginProvider.supported();
     this.plugin = this.pluginProvider.getPlugin();
+    if (this.support) this.binaryChannel = new LocalFilesBinaryChannel();
   }
 
   public supported(): boolean {
@@ -182,11 +192,51 @@ export class LocalFilesService {
     return this.multipleOperation(dir, files, 'filesSize', () => this.plugin.getFilesSize({dir, files}).then(r => r.files));
   }
 
+  /** Number of files and total size of each directory, maintained natively so it does not need to list the files. */
+  public getDirectoryStats(dirs: string[]): Promise<DirectoryStats[]> {
+    dirs = dirs.map(dir => this.sanitizeDir(dir));
+    return this.plugin.getDirectoryStats({dirs}).then(r => r.dirs);
+  }
+
+  /** Chunked reads and writes currently open, to diagnose leaks. */
+  public getOpenHandles(): Promise<OpenHandles> {
+    return this.plugin.getOpenHandles();
+  }
+
+  /** Hit rate and size of the native cache of recently read small files. */
+  public getReadCacheStats(): Promise<ReadCacheStats> {
+    return this.plugin.getReadCacheStats();
+  }
+
+  /** Reuse of the native buffers, to check the allocations made by reads and writes. */
+  public getBufferPoolStats(): Promise<BufferPoolStats> {
+    return this.plugin.getBufferPoolStats();
+  }
+
   public listFiles(dir: string): Promise<string[]> {
     dir = this.sanitizeDir(dir);
     return this.plugin.listFiles({dir}).then(r => r.files);
   }
 
+  /**
+   * List the files of a directory with their size and modification, giving them by pages to the consumer,
+   * so a directory containing a huge number of files can be walked in bounded memory. Sub-directories are not listed.
+   */
+  public listFilesByPage(dir: string, filter: FileListingFilter, pageConsumer: (files: FileInfo[]) => Promise<any>, pageSize?: number): Promise<any> {
+    dir = this.sanitizeDir(dir);
+    return this.plugin.listFilesByPage({dir, pageSize, ...filter})
+    .then(r => {
+      if (!r.id) return pageConsumer(r.files);
+      const id = r.id;
+      return pageConsumer(r.files).then(() => this.continueListFiles(id, pageConsumer)).catch(e => this.abortRead(id, e));
+    });
+  }
+
+  private continueListFiles(id: number, pageConsumer: (files: FileInfo[]) => Promise<any>): Promise<any> {
+    return this.plugin.listFilesNextPage({id})
+    .then(r => pageConsumer(r.files).then(() => r.end ? undefined : this.continueListFiles(id, pageConsumer)));
+  }
+
   public deleteFile(dir: string, filename: string): Promise<any> {
     dir = this.sanitizeDir(dir);
     filename = this.sanitizeFilename(filename);
@@ -207,6 +257,7 @@ export class LocalFilesService {
 
   public deleteDirectoryAndContent(dir: string): Promise<any> {
     dir = this.sanitizeDir(dir);
+    this.forgetPackedStorage(dir);
     const retry: (trial:number) => Promise<any> = (trial: number) => this.plugin.deleteDirectoryAndContent({dir}).catch(_ => {
       if (trial < 10) return retry(trial + 1);
       return false;
@@ -218,19 +269,164 @@ export class LocalFilesService {
     dir = this.sanitizeDir(dir);
     newDir = this.sanitizeDir(newDir);
     if (dir === newDir) return Promise.resolve();
+    this.forgetPackedStorage(dir);
     return this.plugin.renameDirectory({previousPath: dir, newPath: newDir});
   }
 
-  public saveBinaryFile(dir: string, filename: string, data: BinaryContent): Promise<boolean> {
+  private readonly _packedDirs = new Map<string, Promise<void>>();
+
+  /**
+   * Store the files of the given directory in a few large pack files instead of one file each,
+   * for directories containing a huge number of small files. Existing files are moved into the pack.
+   * With deduplicate, files having the same content as another one are stored only once.
+   * If it fails, files are still stored one by one.
+   */
+  public enablePackedStorage(dir: string, deduplicate = false): Promise<void> {
+    dir = this.sanitizeDir(dir);
+    let enabled = this._packedDirs.get(dir);
+    if (!enabled) {
+      enabled = this.plugin.enablePackedStorage({dir, deduplicate}).then(() => {}).catch(e => {
+        Console.error('Cannot enable packed storage on ' + dir, e);
+        this._packedDirs.delete(dir);
+      });
+      this._packedDirs.set(dir, enabled);
+    }
+    return enabled;
+  }
+
+  private readonly _writeBehindDirs = new Map<string, Promise<void>>();
+
+  /**
+   * Delay the writes of saveBinaryFiles in the given directory, so a file saved again during the delay is written only once.
+   * Delayed files are visible to reads, but a write error cannot be reported, so this is for files which can be lost, like caches.
+   * If it fails, files are written immediately.
+   */
+  public enableWriteBehind(dir: string, delay?: number): Promise<void> {
+    dir = this.sanitizeDir(dir);
+    let enabled = this._writeBehindDirs.get(dir);
+    if (!enabled) {
+      enabled = this.plugin.enableWriteBehind({dir, delay}).then(() => {}).catch(e => {
+        Console.error('Cannot enable write-behind on ' + dir, e);
+        this._writeBehindDirs.delete(dir);
+      });
+      this._writeBehindDirs.set(dir, enabled);
+    }
+    return enabled;
+  }
+
+  /**
+   * Keep the given directory under a quota: its least recently used files are deleted natively when files are written.
+   * The quota is not persisted, it must be set each time the application starts.
+   */
+  public setDirectoryQuota(dir: string, quota: DirectoryQuota): Promise<void> {
+    dir = this.sanitizeDir(dir);
+    return this.plugin.setDirectoryQuota({dir, ...quota}).then(() => {}).catch(e => {
+      Console.error('Cannot set quota on ' + dir, e);
+    });
+  }
+
+  /** Names of the files deleted by the quota of the given directory since the last call. */
+  public takeEvictedFiles(dir: string): Promise<string[]> {
+    dir = this.sanitizeDir(dir);
+    return this.plugin.takeEvictedFiles({dir}).then(r => r.files);
+  }
+
+  /**
+   * Download tiles natively into the given directory: they are stored without going through the bridge,
+   * and the download continues in a foreground service while the application is in background.
+   * Return the id of the download, to follow its progress.
+   */
+  public startTileDownload(dir: string, tiles: {filename: string, url: string}[], maxConcurrentRequests: number, notificationTitle?: string): Promise<number> {
+    dir = this.sanitizeDir(dir);
+    tiles = tiles.map(tile => ({filename: this.sanitizeFilename(tile.filename), url: tile.url}));
+    return this.plugin.startTileDownload({dir, tiles, maxConcurrentRequests, notificationTitle}).then(r => r.id);
+  }
+
+  public getTileDownloadProgress(id: number): Promise<TileDownloadProgress> {
+    return this.plugin.getTileDownloadProgress({id});
+  }
+
+  public cancelTileDownload(id: number): Promise<void> {
+    return this.plugin.cancelTileDownload({id}).then(() => {});
+  }
+
+  /** Files stored by native tile downloads into the given directory since the last call. */
+  public takeDownloadedFiles(dir: string): Promise<{filename: string, size: number}[]> {
+    dir = this.sanitizeDir(dir);
+    return this.plugin.takeDownloadedFiles({dir}).then(r => r.files);
+  }
+
+  private forgetPackedStorage(dir: string): void {
+    for (const packed of [...this._packedDirs.keys()])
+      if (packed === dir || packed.startsWith(dir + '/')) this._packedDirs.delete(packed);
+  }
+
+  public saveBinaryFile(dir: string, filename: string, data: BinaryContent, priority?: StoragePriority): Promise<boolean> {
     dir = this.sanitizeDir(dir);
     filename = this.sanitizeFilename(filename);
     return this.operation(dir, filename, 'saveBinary', () =>
-      this.plugin.saveBinaryFile({dir, filename, size: data.getSize()})
-      .then(init => (init as any)['id'] ? data.toUint8Array().then(content =>this.saveBinaryChunk((init as any).id, (init as any).maxChunkSize, content, 0)) : {})
+      this.plugin.saveBinaryFile({dir, filename, size: data.getSize(), priority})
+      .then(r => {
+        const init = r as {id?: number, maxChunkSize: number, binaryChannel?: boolean};
+        if (!init.id) return {};
+        const id = init.id;
+        return data.toUint8Array().then(content => {
+          if (init.binaryChannel && this.binaryChannel?.available()) return this.binaryChannel.write(id, init.maxChunkSize, content);
+          return this.saveBinaryChunk(id, init.maxChunkSize, content, 0);
+        }).catch(e => this.abortWrite(id, e));
+      })
       .then(() => true)
     );
   }
 
+  /** Save several files, small files being grouped in batches. Returns for each file if it has been successfully saved. */
+  public saveBinaryFiles(dir: string, files: {filename: string, data: BinaryContent}[], priority?: StoragePriority): Promise<boolean[]> {
+    dir = this.sanitizeDir(dir);
+    const results: boolean[] = files.map(() => false);
+    const singles: Promise<any>[] = [];
+    const batches: number[][] = [];
+    let batch: number[] = [];
+    let batchSize = 0;
+    files.forEach((file, index) => {
+      const size = file.data.getSize();
+      if (size > SAVE_BATCH_MAX_SIZE) {
+        singles.push(
+          this.saveBinaryFile(dir, file.filename, file.data, priority)
+          .then(() => results[index] = true)
+          .catch(e => Console.error('Error saving file ' + dir + '/' + file.filename, e))
+        );
+        return;
+      }
+      if (batch.length > 0 && (batchSize + size > SAVE_BATCH_MAX_SIZE || batch.length >= SAVE_BATCH_MAX_FILES)) {
+        batches.push(batch);
+        batch = [];
+        batchSize = 0;
+      }
+      batch.push(index);
+      batchSize += size;
+    });
+    if (batch.length > 0) batches.push(batch);
+    const saveBatches = (batchIndex: number): Promise<any> => {
+      if (batchIndex >= batches.length) return Promise.resolve();
+      const indexes = batches[batchIndex];
+      return this.saveBinaryFilesBatch(dir, indexes.map(index => files[index]), priority)
+      .then(batchResults => {
+        indexes.forEach((index, i) => results[index] = batchResults[i]);
+        return saveBatches(batchIndex + 1);
+      });
+    };
+    return Promise.all([saveBatches(0), ...singles]).then(() => results);
+  }
+
+  private saveBinaryFilesBatch(dir: string, files: {filename: string, data: BinaryContent}[], priority?: StoragePriority): Promise<boolean[]> {
+    const filenames = files.map(file => this.sanitizeFilename(file.filename));
+    return this.multipleOperation(dir, filenames, 'saveBinaries', () =>
+      Promise.all(files.map((file, i) => file.data.toBase64().then(data => ({filename: filenames[i], data}))))
+      .then(toSave => this.plugin.saveBinaryFiles({dir, files: toSave, priority}))
+      .then(r => filenames.map((_, i) => r.results[i]?.success ?? false))
+    );
+  }
+
   private saveBinaryChunk(id: number, maxChunkSize: number, content: Uint8Array, offset: number): Promise<any> {
     const end = Math.min(offset + maxChunkSize, content.length);
     const data = btoa(content.slice(offset, end).reduce((data, byte) => {
@@ -243,19 +439,109 @@ export class LocalFilesService {
     });
   }
 
-  public readBlob(dir: string, filename: string, contentType?: string): Promise<Blob> {
+  /** URL to load the file directly from the WebView (img src, fetch...), without going through the plugin. */
+  public getFileUrl(dir: string, filename: string, contentType?: string): string | undefined {
+    if (!this.support) return undefined;
     dir = this.sanitizeDir(dir);
     filename = this.sanitizeFilename(filename);
-    return this.operation(dir, filename, 'readBlob', () =>
-      this.plugin.readBinaryFile({dir, filename})
-      .then(init => {
-        if (init.chunks === 0) return new Blob([], {type: contentType});
-        if (init.chunks === 1) return BinaryContent.b64toBlob(init.data!, contentType);
-        return this.readBlobChunk(init.id!, init.chunks, 2, init.data!, contentType);
-      })
+    return globalThis.location.origin + FILES_URL_PREFIX +
+      dir.split('/').filter(s => s.length > 0).map(s => encodeURIComponent(s)).join('/') +
+      '/' + encodeURIComponent(filename) +
+      (contentType ? '?type=' + encodeURIComponent(contentType) : '');
+  }
+
+  /** Zoom levels, bounds and type of the tiles of a tile archive (PMTiles) stored as a file. */
+  public getTileArchiveInfo(dir: string, filename: string): Promise<TileArchiveInfo> {
+    dir = this.sanitizeDir(dir);
+    filename = this.sanitizeFilename(filename);
+    return this.plugin.getTileArchiveInfo({dir, filename});
+  }
+
+  /** Read a tile from a tile archive, undefined if the archive does not contain it. */
+  public readArchiveTile(dir: string, filename: string, z: number, x: number, y: number): Promise<BinaryContent | undefined> {
+    dir = this.sanitizeDir(dir);
+    filename = this.sanitizeFilename(filename);
+    return this.plugin.readArchiveTile({dir, filename, z, x, y})
+    .then(r => r.data !== undefined ? new BinaryContent(r.data, r.contentType) : undefined);
+  }
+
+  /** URL template ({z}/{x}/{y}) to load the tiles of a tile archive directly from the WebView, such as for a map layer. */
+  public getArchiveTilesUrlTemplate(dir: string, filename: string): string | undefined {
+    if (!this.support) return undefined;
+    dir = this.sanitizeDir(dir);
+    filename = this.sanitizeFilename(filename);
+    return globalThis.location.origin + TILES_URL_PREFIX +
+      dir.split('/').filter(s => s.length > 0).map(s => encodeURIComponent(s)).join('/') +
+      '/' + encodeURIComponent(filename) + '/{z}/{x}/{y}';
+  }
+
+  public readBlob(dir: string, filename: string, contentType?: string, priority?: StoragePriority): Promise<Blob> {
+    dir = this.sanitizeDir(dir);
+    filename = this.sanitizeFilename(filename);
+    return this.operation(dir, filename, 'readBlob', () => {
+      // each chunk is decoded separately, as a chunk may end with base64 padding
+      const parts: Blob[] = [];
+      return this.consumeStream<BinaryStreamChunk>(
+        callback => this.plugin.streamBinaryFile({dir, filename, window: READ_STREAM_WINDOW, priority}, callback),
+        chunk => {
+          if (chunk.data.length > 0) parts.push(BinaryContent.b64toBlob(chunk.data, contentType));
+          return Promise.resolve();
+        },
+      ).then(() => parts.length === 1 ? parts[0] : new Blob(parts, {type: contentType}));
+    });
+  }
+
+  /**
+   * Read length bytes from the given offset of a file, without reading what is before.
+   * The data is shorter if the end of the file is reached, or if length is larger than the maximum read at once.
+   */
+  public readRange(dir: string, filename: string, offset: number, length: number, priority?: StoragePriority): Promise<{data: BinaryContent, size: number}> {
+    dir = this.sanitizeDir(dir);
+    filename = this.sanitizeFilename(filename);
+    return this.operation(dir, filename, 'readRange', () =>
+      this.plugin.readBinaryFileRange({dir, filename, offset, length, priority})
+      .then(r => ({data: new BinaryContent(r.data), size: r.size}))
     );
   }
 
+  /** Read several files at once. Missing files are mapped to undefined. */
+  public readBlobs(dir: string, filenames: string[], getContentType?: (filename: string) => string | undefined, priority?: StoragePriority): Promise<Map<string, Blob | undefined>> {
+    dir = this.sanitizeDir(dir);
+    const originalNames = new Map<string, string>();
+    for (const filename of filenames) originalNames.set(this.sanitizeFilename(filename), filename);
+    const files = Array.from(originalNames.keys());
+    const result = new Map<string, Blob | undefined>();
+    if (files.length === 0) return Promise.resolve(result);
+    return this.multipleOperation(dir, files, 'readBlobs', () => new Promise<Map<string, Blob | undefined>>((resolve, reject) => {
+      const continuations: Promise<any>[] = [];
+      this.plugin.readBinaryFiles({dir, files, priority}, (message, error) => {
+        if (!message) {
+          reject(error);
+          return;
+        }
+        for (const file of message.files) {
+          const filename = originalNames.get(file.filename) ?? file.filename;
+          const contentType = getContentType ? getContentType(filename) : undefined;
+          if (file.missing || file.error !== undefined) {
+            if (file.error !== undefined) Console.error('Error reading file ' + dir + '/' + file.filename, file.error);
+            result.set(filename, undefined);
+          } else if (!file.chunks) {
+            result.set(filename, new Blob([], {type: contentType}));
+          } else if (file.chunks === 1) {
+            result.set(filename, BinaryContent.b64toBlob(file.data!, contentType));
+          } else {
+            continuations.push(
+              this.readBlobChunk(file.id!, file.chunks, 2, file.data!, contentType)
+              .then(blob => result.set(filename, blob))
+              .catch(e => this.abortRead(file.id!, e))
+            );
+          }
+        }
+        if (message.end) Promise.all(continuations).then(() => resolve(result)).catch(reject);
+      }).catch(reject);
+    }));
+  }
+
   private readBlobChunk(id: number, nbChunks: number, chunkIndex: number, b64: string, contentType?: string): Promise<Blob> {
     return this.plugin.readBinaryFileChunk({id})
     .then(r => {
@@ -265,19 +551,76 @@ export class LocalFilesService {
     });
   }
 
-  public saveJsonl(dir: string, filename: string, linesGenerator: (from: number, limit: number) => Promise<{lines: string[], hasMore: boolean}>, chunkSize: number = 250): Promise<any> {
+  /**
+   * Consume in order the chunks pushed by a streamed read. Each consumed chunk is acknowledged, so the native side
+   * reads the next ones while the previous ones are consumed, without sending more than READ_STREAM_WINDOW in advance.
+   */
+  private consumeStream<T extends ReadStreamChunk>(
+    start: (callback: (message: T | undefined, error?: any) => void) => Promise<string>,
+    consumer: (chunk: T) => Promise<any>,
+  ): Promise<void> {
+    return new Promise<void>((resolve, reject) => {
+      let consumed: Promise<any> = Promise.resolve();
+      let failed = false;
+      const fail = (error: any, id?: number) => {
+        if (failed) return;
+        failed = true;
+        if (id === undefined) reject(error);
+        else this.abortRead(id, error).catch(reject);
+      };
+      start((message, error) => {
+        if (!message) {
+          // the stream is already closed on the native side
+          fail(error);
+          return;
+        }
+        consumed = consumed
+        .then(() => failed ? undefined : consumer(message).then(() => {
+          if (message.end) resolve();
+          else this.plugin.ackReadStream({id: message.id, chunks: 1}).catch(e => fail(e, message.id));
+        }))
+        .catch(e => fail(e, message.id));
+      }).catch(e => fail(e));
+    });
+  }
+
+  /** When a sequence of chunks fails, release the read on the native side immediately, then forward the error. */
+  private abortRead<T>(id: number, error: any): Promise<T> {
+    return this.plugin.cancelRead({id}).catch(() => {}).then(() => { throw error; });
+  }
+
+  /** When a sequence of chunks fails, release the write and its temporary file on the native side immediately, then forward the error. */
+  private abortWrite<T>(id: number, error: any): Promise<T> {
+    return this.plugin.cancelWrite({id}).catch(() => {}).then(() => { throw error; });
+  }
+
+  /**
+   * Write a JSONL file. If keyed is true, each line must be the key of the record, a tab, then the JSON,
+   * so changes can then be appended with appendJsonlJournal instead of writing the full file again.
+   * If compressed is true, the file is written gzip compressed, which is transparent when reading it.
+   * A background priority lets the other operations on the device storage go first, such as for a backup.
+   */
+  public saveJsonl(
+    dir: string, filename: string,
+    linesGenerator: (from: number, limit: number) => Promise<{lines: string[], hasMore: boolean}>,
+    chunkSize: number = 250,
+    options: {keyed?: boolean, compressed?: boolean, priority?: StoragePriority} = {},
+  ): Promise<any> {
+    const keyed = !!options.keyed;
+    const compressed = !!options.compressed;
+    const priority = options.priority;
     dir = this.sanitizeDir(dir);
     filename = this.sanitizeFilename(filename);
     return this.operation(dir, filename, 'saveJsonl', () =>
       linesGenerator(0, chunkSize)
       .then(generated => {
         if (generated.lines.length === 0) {
-          return this.plugin.saveJsonlFile({dir, filename, events: [], more: false});
+          return this.plugin.saveJsonlFile({dir, filename, events: [], more: false, keyed, compressed, priority});
         }
         const chunks = this.splitJsonLinesToEvents(generated.lines);
-        return this.plugin.saveJsonlFile({dir, filename, events: chunks[0], more: generated.hasMore || chunks.length > 1})
+        return this.plugin.saveJsonlFile({dir, filename, events: chunks[0], more: generated.hasMore || chunks.length > 1, keyed, compressed, priority})
         .then(r => {
-          if (r.id) return this.continueJsonl(r.id, chunks, 1, generated.hasMore, linesGenerator, chunkSize, chunkSize);
+          if (r.id) return this.continueJsonl(r.id, chunks, 1, generated.hasMore, linesGenerator, chunkSize, chunkSize).catch(e => this.abortWrite(r.id!, e));
           return undefined;
         });
       })
@@ -333,26 +676,47 @@ export class LocalFilesService {
     });
   }
 
-  public readJsonl(dir: string, filename: string, linesConsumer: (lines: string[]) => Promise<any>): Promise<any> {
+  /**
+   * Append changed records to a keyed JSONL file written by saveJsonl. A record without line has been deleted.
+   * Resolves to false if the file is not a keyed snapshot, in which case it must be fully written with saveJsonl.
+   */
+  public appendJsonlJournal(dir: string, filename: string, records: {key: string, line?: string}[]): Promise<boolean> {
     dir = this.sanitizeDir(dir);
     filename = this.sanitizeFilename(filename);
-    const reader = new JsonlReader(linesConsumer);
-    return this.operation(dir, filename, 'readJsonl', () =>
-      this.plugin.readJsonlFile({dir, filename})
-      .then(r => reader.consumeEvents(r.events).then(() => {
-        if (!r.id) return reader.end();
-        return this.continueReadJsonl(r.id, reader);
-      }))
+    if (records.length === 0) return Promise.resolve(true);
+    return this.operation(dir, filename, 'appendJsonlJournal', () =>
+      this.appendJsonlJournalChunk(dir, filename, records, 0)
+      .catch(e => {
+        if (e?.code === 'not-journaled') return false;
+        throw e;
+      })
     );
   }
 
-  private continueReadJsonl(id: number, reader: JsonlReader): Promise<any> {
-    return this.plugin.readJsonlFileChunk({id})
-    .then(r => {
-      reader.consumeEvents(r.events);
-      if (r.end) return reader.end();
-      else return this.continueReadJsonl(id, reader);
-    });
+  private appendJsonlJournalChunk(dir: string, filename: string, records: {key: string, line?: string}[], from: number): Promise<boolean> {
+    let end = from;
+    let size = 0;
+    while (end < records.length) {
+      const recordSize = records[end].key.length + (records[end].line?.length ?? 0) + 20;
+      if (end > from && size + recordSize > JSONL_CHUNK_MAX_SIZE) break;
+      size += recordSize;
+      end++;
+    }
+    const chunk = records.slice(from, end).map(r => r.line === undefined ? {k: r.key} : {k: r.key, d: r.line});
+    return this.plugin.appendJsonlJournal({dir, filename, records: chunk})
+    .then(() => end < records.length ? this.appendJsonlJournalChunk(dir, filename, records, end) : true);
+  }
+
+  public readJsonl(dir: string, filename: string, linesConsumer: (lines: string[]) => Promise<any>, priority?: StoragePriority): Promise<any> {
+    dir = this.sanitizeDir(dir);
+    filename = this.sanitizeFilename(filename);
+    const reader = new JsonlReader(linesConsumer);
+    return this.operation(dir, filename, 'readJsonl', () =>
+      this.consumeStream<JsonlStreamChunk>(
+        callback => this.plugin.streamJsonlFile({dir, filename, lines: true, window: READ_STREAM_WINDOW, priority}, callback),
+        chunk => reader.consume(chunk),
+      ).then(() => reader.end())
+    );
   }
 
 }
@@ -364,7 +728,24 @@ class JsonlReader {
 
   private currentLine = '';
 
-  consumeEvents(events: JsonLEvent[]): Promise<any> {
+  consume(chunk: JsonlReadChunk): Promise<any> {
+    // an older native plugin may not support lines, and still send events
+    if (chunk.lines) return this.consumeLines(chunk.lines, !!chunk.partial);
+    return this.consumeEvents(chunk.events ?? []);
+  }
+
+  private consumeLines(lines: string[], partial: boolean): Promise<any> {
+    if (lines.length === 0) return Promise.resolve(undefined);
+    if (this.currentLine.length > 0) {
+      lines[0] = this.currentLine + lines[0];
+      this.currentLine = '';
+    }
+    if (partial) this.currentLine = lines.pop()!;
+    if (lines.length === 0) return Promise.resolve(undefined);
+    return this.linesConsumer(lines);
+  }
+
+  private consumeEvents(events: JsonLEvent[]): Promise<any> {
     const lines: string[] = [];
     for (const event of events) {
       if ((event as any)['nl']) {
@@ -1,4 +1,4 @@
-import { JsonLEvent, LocalFilesPlugin } from './local-files.interface';
+import { BinaryFileRead, BinaryStreamChunk, BufferPoolStats, DirectoryQuota, DirectoryStats, FileInfo, FileListingFilter, JsonLEvent, JsonlReadChunk, JsonlStreamChunk, LocalFilesPlugin, OpenHandles, ReadCacheStats, StoragePriority, TileArchiveInfo, TileDownloadProgress } from './local-files.interface';
 
 const notSupported = () => Promise.reject(new Error('not supported'));
 const LocalFiles = {
@@ -6,8 +6,11 @@ const LocalFiles = {
   fileExists: notSupported as (call: {dir: string, filename: string}) => Promise<{exists: boolean}>,
   filesExist: notSupported as (call: {dir: string, files: string[]}) => Promise<{exist: boolean[]}>,
   getFilesSize: notSupported as (call: {dir: string, files: string[]}) => Promise<{files: {filename: string, size: number}[]}>,
+  getDirectoryStats: notSupported as (call: {dirs: string[]}) => Promise<{dirs: DirectoryStats[]}>,
 
   listFiles: notSupported as (call: {dir: string}) => Promise<{files: string[]}>,
+  listFilesByPage: notSupported as (call: {dir: string, pageSize?: number} & FileListingFilter) => Promise<{files: FileInfo[], id?: number}>,
+  listFilesNextPage: notSupported as (call: {id: number}) => Promise<{files: FileInfo[], end: boolean}>,
 
   deleteFile: notSupported as (call: {dir: string, filename: string}) => Promise<any>,
   deleteFiles: notSupported as (call: {dir: string, files: string[]}) => Promise<any>,
@@ -16,17 +19,45 @@ const LocalFiles = {
 
   renameDirectory: notSupported as (call: {previousPath: string, newPath: string}) => Promise<any>,
 
-  readBinaryFile: notSupported as (call: {dir: string, filename: string}) => Promise<{data: string | undefined, chunks: number, id: number | undefined}>,
+  enablePackedStorage: notSupported as (call: {dir: string, deduplicate?: boolean}) => Promise<any>,
+  enableWriteBehind: notSupported as (call: {dir: string, delay?: number}) => Promise<any>,
+  setDirectoryQuota: notSupported as (call: {dir: string} & DirectoryQuota) => Promise<any>,
+  takeEvictedFiles: notSupported as (call: {dir: string}) => Promise<{files: string[]}>,
+
+  readBinaryFile: notSupported as (call: {dir: string, filename: string, priority?: StoragePriority}) => Promise<{data: string | undefined, chunks: number, id: number | undefined}>,
   readBinaryFileChunk: notSupported as (call: {id: number}) => Promise<{data: string}>,
+  readBinaryFileRange: notSupported as (call: {dir: string, filename: string, offset: number, length: number, priority?: StoragePriority}) => Promise<{data: string, size: number}>,
+
+  getTileArchiveInfo: notSupported as (call: {dir: string, filename: string}) => Promise<TileArchiveInfo>,
+  readArchiveTile: notSupported as (call: {dir: string, filename: string, z: number, x: number, y: number}) => Promise<{data?: string, contentType?: string}>,
+
+  readBinaryFiles: notSupported as (call: {dir: string, files: string[], priority?: StoragePriority}, callback: (message: {files: BinaryFileRead[], end: boolean} | undefined, error?: any) => void) => Promise<string>,
 
-  readJsonlFile: notSupported as (call: {dir: string, filename: string}) => Promise<{events: JsonLEvent[], id: number | undefined}>,
-  readJsonlFileChunk: notSupported as (call: {id: number}) => Promise<{events: JsonLEvent[], end: boolean}>,
+  readJsonlFile: notSupported as (call: {dir: string, filename: string, lines?: boolean, priority?: StoragePriority}) => Promise<JsonlReadChunk & {id: number | undefined}>,
+  readJsonlFileChunk: notSupported as (call: {id: number}) => Promise<JsonlReadChunk & {end: boolean}>,
+  streamBinaryFile: notSupported as (call: {dir: string, filename: string, window?: number, priority?: StoragePriority}, callback: (message: BinaryStreamChunk | undefined, error?: any) => void) => Promise<string>,
+  streamJsonlFile: notSupported as (call: {dir: string, filename: string, lines?: boolean, window?: number, priority?: StoragePriority}, callback: (message: JsonlStreamChunk | undefined, error?: any) => void) => Promise<string>,
+  ackReadStream: notSupported as (call: {id: number, chunks?: number}) => Promise<any>,
 
-  saveBinaryFile: notSupported as (call: {dir: string, filename: string, size: number}) => Promise<{id: number, maxChunkSize: number} | {}>,
+  saveBinaryFile: notSupported as (call: {dir: string, filename: string, size: number, priority?: StoragePriority}) => Promise<{id: number, maxChunkSize: number, binaryChannel?: boolean} | {}>,
   saveBinaryFileChunk: notSupported as (call: {id: number, data: string}) => Promise<{result: string}>,
+  saveBinaryFiles: notSupported as (call: {dir: string, files: {filename: string, data: string}[], priority?: StoragePriority}) => Promise<{results: {filename: string, success: boolean, error?: string}[]}>,
 
-  saveJsonlFile: notSupported as (call: {dir: string, filename: string, events: JsonLEvent[], more: boolean}) => Promise<{id: number | undefined}>,
+  saveJsonlFile: notSupported as (call: {dir: string, filename: string, events: JsonLEvent[], more: boolean, keyed?: boolean, compressed?: boolean, priority?: StoragePriority}) => Promise<{id: number | undefined}>,
   saveJsonlFileChunk: notSupported as (call: {id: number, events: JsonLEvent[], more: boolean}) => Promise<{result: string}>,
+
+  cancelRead: notSupported as (call: {id: number}) => Promise<any>,
+  cancelWrite: notSupported as (call: {id: number}) => Promise<any>,
+  appendJsonlJournal: notSupported as (call: {dir: string, filename: string, records: {k: string, d?: string}[]}) => Promise<any>,
+
+  startTileDownload: notSupported as (call: {dir: string, tiles: {filename: string, url: string}[], maxConcurrentRequests: number, headers?: {[name: string]: string}, notificationTitle?: string}) => Promise<{id: number}>,
+  getTileDownloadProgress: notSupported as (call: {id: number}) => Promise<TileDownloadProgress>,
+  cancelTileDownload: notSupported as (call: {id: number}) => Promise<any>,
+  takeDownloadedFiles: notSupported as (call: {dir: string}) => Promise<{files: {filename: string, size: number}[]}>,
+
+  getOpenHandles: notSupported as () => Promise<OpenHandles>,
+  getReadCacheStats: notSupported as () => Promise<ReadCacheStats>,
+  getBufferPoolStats: notSupported as () => Promise<BufferPoolStats>,
 } as LocalFilesPlugin;
 
 export default LocalFiles;
@@ -14,6 +14,29 @@ export function handleMapOffline(name: string, displayName: string, tiles: L.Til
       if (img.src) img.src = '';
       img._offlineLoaded = true;
       img._loaded = false;
+      offlineMap.getTileUrl(name, coords).subscribe(url => {
+        if (!url) {
+          loadOfflineContent(img, trial, originalSrc);
+          return;
+        }
+        // load directly from the local file, and fallback to the content if not available
+        img.onload = function() {
+          img.onload = undefined;
+          img.onerror = undefined;
+          img._loaded = true;
+          img.classList.add('map-tile-offline');
+          img.classList.remove('map-tile-loading');
+          done(undefined, img);
+        };
+        img.onerror = function() {
+          img.onload = undefined;
+          img.onerror = undefined;
+          loadOfflineContent(img, trial, originalSrc);
+        };
+        img.src = url;
+      });
+    };
+    const loadOfflineContent = (img: any, trial: number, originalSrc: string) => {
       offlineMap.getTile(name, coords).subscribe({
         next: binary => {
           if (binary) {
@@ -18,6 +18,10 @@ import { AssetsService } from '../assets/assets.service';
 import { Ways } from './ways';
 import { POI_TYPES, POIType } from './poi';
 import { CleanupService } from '../database/cleanup/cleanup.service';
+import { LocalFilesService } from '../local-files/local-files.service';
+
+/** Tiles are evicted, least recently used first, when the device is running out of space. */
+const TILES_MIN_FREE_SPACE = 256 * 1024 * 1024;
 
 interface TileMetadata {
   key: string;
@@ -25,6 +29,12 @@ interface TileMetadata {
   date: number;
 }
 
+/** Metadata of a tile downloaded natively, recorded once the application is told about it. */
+const downloadedTileMetadata = (key: string, size: number): TileMetadata => ({key, size, date: Date.now()});
+
+/** Interval to follow the progress of a native download. */
+const NATIVE_DOWNLOAD_POLL_INTERVAL = 1000;
+
 @Injectable({
   providedIn: 'root'
 })
@@ -47,7 +57,7 @@ export class OfflineMapService implements OnDestroy {
   ) {
     const tables: DbTable<any>[] = [];
     for (const layer of this.layers.possibleLayers) {
-      const layerTables = new DbTablesMetaBlob<TileMetadata>(injector, layer, 'meta', 'tiles', 'key, date', 'key');
+      const layerTables = new DbTablesMetaBlob<TileMetadata>(injector, layer, 'meta', 'tiles', 'key, date', 'key', 'deduplicated', {minFreeSpace: TILES_MIN_FREE_SPACE});
       this.tilesTables.set(layer, layerTables);
       tables.push(...layerTables.getTables());
     }
@@ -96,7 +106,11 @@ export class OfflineMapService implements OnDestroy {
     if (!table) return Promise.resolve([]);
     const maxCacheValidDate = Date.now() - this.injector.get(PreferencesService).preferences.offlineMapMaxKeepDays * 24 * 60 * 60 * 1000;
     const toSearch = tiles.map(tile => '' + zoomLevel + '_' + tile.y + '_' + tile.x);
-    return firstValueFrom(table.metadata.getByKeys$(toSearch))
+    // evicted tiles must be downloaded again, while tiles downloaded natively in a previous session may not be recorded yet
+    return firstValueFrom(table.purgeEvicted$().pipe(
+      switchMap(() => table.recordDownloaded$(downloadedTileMetadata).pipe(catchError(() => of(0)))),
+      switchMap(() => table.metadata.getByKeys$(toSearch)),
+    ))
     .then(metas => {
       const byKey = new Map<string, TileMetadata>(metas.map(m => [m.key, m]));
       const result: L.Point[] = [];
@@ -118,6 +132,13 @@ export class OfflineMapService implements OnDestroy {
     });
   }
 
+  public getTileUrl(layerName: string, coords: L.Coords): Observable<string | undefined> {
+    const table = this.tilesTables.get(layerName);
+    if (!table) return of(undefined);
+    const contentType = this.layers.layers.find(l => l.name === layerName)?.tileMimeFormat;
+    return table.getBlobUrl$('' + coords.z + '_' + coords.y + '_' + coords.x, contentType);
+  }
+
   public computeContent(): Observable<{items: number, size: number}> {
     const startTime = Date.now();
     return combineLatest(this.layers.layers.map(layer => this.computeLayerContent(layer.name))).pipe(
@@ -134,9 +155,15 @@ export class OfflineMapService implements OnDestroy {
   }
 
   private computeLayerContent(name: string): Observable<{items: number, size: number}> {
-    const result = {items: 0, size: 0};
     const table = this.tilesTables.get(name);
-    if (!table) return of(result);
+    if (!table) return of({items: 0, size: 0});
+    return table.getBlobsStats$().pipe(
+      switchMap(stats => stats ? of({items: stats.files, size: stats.size}) : this.computeLayerContentFromMetadata(table)),
+    );
+  }
+
+  private computeLayerContentFromMetadata(table: DbTablesMetaBlob<TileMetadata>): Observable<{items: number, size: number}> {
+    const result = {items: 0, size: 0};
     return table.metadata.count$().pipe(
       switchMap(count => {
         result.items = count;
@@ -181,9 +208,13 @@ export class OfflineMapService implements OnDestroy {
     const table = this.tilesTables.get(layerName);
     if (!table) return Promise.resolve('table not found');
     return firstValueFrom(
-      table.metadata.keysWhere$(new DbTableWhereLessThan('date', Date.now() - this.preferencesService.preferences.offlineMapMaxKeepDays * 24 * 60 * 60 * 1000))
-      .pipe(
-        switchMap(keys => table.deleteMany$(keys).pipe(map(() => '' + keys.length)))
+      table.purgeEvicted$().pipe(
+        switchMap(evicted =>
+          table.metadata.keysWhere$(new DbTableWhereLessThan('date', Date.now() - this.preferencesService.preferences.offlineMapMaxKeepDays * 24 * 60 * 60 * 1000))
+          .pipe(
+            switchMap(keys => table.deleteMany$(keys).pipe(map(() => '' + keys.length + (evicted > 0 ? ' + ' + evicted + ' evicted' : ''))))
+          )
+        )
       )
     );
   }
@@ -210,9 +241,11 @@ class Saver {
     this.limiter = new RequestLimiter(layer.maxConcurrentRequests);
     this.i18n = injector.get(I18nService);
     this.mapLayerService = injector.get(MapLayersService);
-    this.progress = injector.get(ProgressService).create(new TranslatedString('offline_map.downloading.progress_title', [layer.displayName]).translate(this.i18n), 1, async () => {
+    this.title = new TranslatedString('offline_map.downloading.progress_title', [layer.displayName]).translate(this.i18n);
+    this.progress = injector.get(ProgressService).create(this.title, 1, async () => {
       this.cancelled = true;
       this.limiter.cancel();
+      if (this.nativeDownloadId !== undefined) await this.injector.get(LocalFilesService).cancelTileDownload(this.nativeDownloadId);
     });
     this.zooms = Array.from(toDownload.keys()).sort((a, b) => a - b);
     this.currentZoom = 0;
@@ -222,11 +255,12 @@ class Saver {
 
   public start(): void {
     setTimeout(() => {
-      this.process(0)
+      this.processNative()
+      .then(native => native ? undefined : this.process(0))
       .then(() => {
         // TODO retry errors
         this.progress.done();
-        let nbErrors = 0;
+        let nbErrors = this.nativeErrors;
         for (const [_, tiles] of this.errorsByZoom) {
           nbErrors += tiles.length;
         }
@@ -236,6 +270,7 @@ class Saver {
   }
 
   private readonly limiter: RequestLimiter;
+  private readonly title: string;
   private readonly progress: Progress;
   private readonly i18n: I18nService;
   private readonly mapLayerService: MapLayersService;
@@ -243,6 +278,58 @@ class Saver {
   private cancelled = false;
   private currentZoom: number;
   private readonly errorsByZoom = new Map<number, L.Point[]>();
+  private nativeDownloadId?: number;
+  private nativeErrors = 0;
+
+  /**
+   * Download all tiles natively when possible, so tiles are stored without going through the bridge,
+   * and the download continues while the application is in background. Resolve to false if it is not possible.
+   */
+  private processNative(): Promise<boolean> {
+    if (this.layer.doNotUseNativeHttp) return Promise.resolve(false);
+    const tiles: {key: string, url: string}[] = [];
+    for (const zoomLevel of this.zooms) {
+      for (const c of this.toDownload.get(zoomLevel)!) {
+        (c as any)['z'] = zoomLevel;
+        tiles.push({key: this.getDbKey(c.x, c.y, zoomLevel), url: this.layer.getTileUrl(this.tileLayer, c as L.Coords, this.crs)});
+      }
+    }
+    return firstValueFrom(this.table.startDownload$(tiles, this.layer.maxConcurrentRequests, this.title))
+    .then(id => {
+      if (id === undefined) return false;
+      this.nativeDownloadId = id;
+      this.progress.workDone = 0;
+      this.progress.workAmount = tiles.length + 1;
+      this.progress.subTitle = '0/' + tiles.length;
+      return this.followNative(id).then(() => true);
+    });
+  }
+
+  private followNative(id: number): Promise<void> {
+    const localFiles = this.injector.get(LocalFilesService);
+    const record = () => firstValueFrom(this.table.recordDownloaded$(downloadedTileMetadata)).catch(e => {
+      Console.error('Error storing map tiles metadata', e);
+      return 0;
+    });
+    return new Promise<void>(resolve => {
+      const next = () => {
+        localFiles.getTileDownloadProgress(id)
+        .then(progress => record().then(() => {
+          this.progress.subTitle = '' + progress.done + '/' + progress.total;
+          this.progress.workDone = progress.done;
+          if (!progress.finished) {
+            setTimeout(next, NATIVE_DOWNLOAD_POLL_INTERVAL);
+            return;
+          }
+          this.nativeErrors = progress.failed;
+          resolve();
+        }))
+        // cancelled: record what has already been stored
+        .catch(() => record().then(() => resolve()));
+      };
+      next();
+    });
+  }
 
   private process(zoomIndex: number): Promise<any> {
     this.currentZoom = zoomIndex;
@@ -40,7 +40,7 @@ export class Ways {
   constructor(
     injector: Injector,
   ) {
-    this.table = new DbTableWithBlob<DbDto>(injector, 'osm-data-ways', 'tile, lastUsed, version', 'tile', 'blob');
+    this.table = new DbTableWithBlob<DbDto>(injector, 'osm-data-ways', 'tile, lastUsed, version', 'tile', 'blob', undefined, true);
     this.http = injector.get(HttpService);
     this.network = injector.get(NetworkService);
     this.worker = injector.get(WorkerService);
@@ -1,4 +1,4 @@
-import { JsonLEvent, LocalFilesPlugin } from 'src/app/services/local-files/local-files.interface';
+import { BinaryFileRead, BinaryStreamChunk, BufferPoolStats, DirectoryQuota, DirectoryStats, FileInfo, FileListingFilter, JsonLEvent, JsonlReadChunk, JsonlStreamChunk, LocalFilesPlugin, OpenHandles, ReadCacheStats, TileArchiveInfo, TileDownloadProgress } from 'src/app/services/local-files/local-files.interface';
 import { LocalFilesPluginProvider, LocalFilesService } from 'src/app/services/local-files/local-files.service';
 import { BinaryContent } from 'src/app/utils/binary-content';
 
@@ -44,12 +44,35 @@ class MockPlugin implements LocalFilesPlugin {
     return createPromise().then(() => d.getFileSizes(call.files)).then(r => ({files: r}));
   }
 
+  public async getDirectoryStats(call: {dirs: string[]}): Promise<{dirs: DirectoryStats[]}> {
+    const dirs: DirectoryStats[] = [];
+    for (const dir of call.dirs) {
+      const d = await this.getDir(dir, false);
+      const sizes = d ? d.getFileSizes(d.listFiles()) : [];
+      dirs.push({dir, files: sizes.length, size: sizes.reduce((total, s) => total + s.size, 0)});
+    }
+    return {dirs};
+  }
+
   public async listFiles(call: {dir: string}): Promise<{files: string[]}> {
     const d = await this.getDir(call.dir, false);
     if (!d) return {files: []};
     return createPromise().then(() => ({files: d.listFiles()}));
   }
 
+  public async listFilesByPage(call: {dir: string, pageSize?: number} & FileListingFilter): Promise<{files: FileInfo[], id?: number}> {
+    // everything in a single page, mock files have no modification time
+    const d = await this.getDir(call.dir, false);
+    if (!d) return {files: []};
+    const glob = call.glob ? new RegExp('^' + call.glob.replace(/[.+^${}()|[\]\\]/g, '\\$&').replace(/\*/g, '.*').replace(/\?/g, '.') + '$') : undefined;
+    const names = d.listFiles().filter(name => (!call.prefix || name.startsWith(call.prefix)) && (!glob || glob.test(name)));
+    return createPromise().then(() => ({files: d.getFileSizes(names).map(s => ({filename: s.filename, size: s.size, modified: 0}))}));
+  }
+
+  public listFilesNextPage(call: {id: number}): Promise<{files: FileInfo[], end: boolean}> {
+    return Promise.reject(new Error('Invalid id: ' + call.id));
+  }
+
   public async deleteFile(call: {dir: string, filename: string}): Promise<any> {
     const d = await this.getDir(call.dir, false);
     if (!d) return;
@@ -80,33 +103,161 @@ class MockPlugin implements LocalFilesPlugin {
     d.rename(call.newPath);
   }
 
+  public enablePackedStorage(call: {dir: string, deduplicate?: boolean}): Promise<any> {
+    // packing is a native storage detail, files remain accessible the same way
+    return createPromise();
+  }
+
+  public enableWriteBehind(call: {dir: string, delay?: number}): Promise<any> {
+    // writes are immediate, which is what delayed writes look like from outside
+    return createPromise();
+  }
+
+  public setDirectoryQuota(call: {dir: string} & DirectoryQuota): Promise<any> {
+    // no eviction in tests
+    return createPromise();
+  }
+
+  public takeEvictedFiles(call: {dir: string}): Promise<{files: string[]}> {
+    return Promise.resolve({files: []});
+  }
+
   public readBinaryFile(call: {dir: string, filename: string}) {
     return this._root.startReadBinary(call.dir, call.filename);
   }
   public readBinaryFileChunk(call: {id: number}) {
     return this._root.continueReadBinary(call.id);
   }
+  public readBinaryFileRange(call: {dir: string, filename: string, offset: number, length: number}) {
+    return this._root.readBinaryRange(call.dir, call.filename, call.offset, call.length);
+  }
+
+  public getTileArchiveInfo(call: {dir: string, filename: string}): Promise<TileArchiveInfo> {
+    // tile archives are read natively only
+    return Promise.reject(new Error('Not a tile archive: ' + call.dir + '/' + call.filename));
+  }
+  public readArchiveTile(call: {dir: string, filename: string, z: number, x: number, y: number}): Promise<{data?: string, contentType?: string}> {
+    return Promise.reject(new Error('Not a tile archive: ' + call.dir + '/' + call.filename));
+  }
+  public async readBinaryFiles(call: {dir: string, files: string[]}, callback: (message: {files: BinaryFileRead[], end: boolean} | undefined, error?: any) => void) {
+    const files = await Promise.all(call.files.map(filename =>
+      this._root.startReadBinary(call.dir, filename)
+      .then(r => ({filename, ...r} as BinaryFileRead))
+      .catch(() => ({filename, missing: true}))
+    ));
+    callback({files, end: true});
+    return 'mock';
+  }
 
-  public readJsonlFile(call: {dir: string, filename: string}) {
-    return this._root.startReadJsonl(call.dir, call.filename);
+  public readJsonlFile(call: {dir: string, filename: string, lines?: boolean}) {
+    return this._root.startReadJsonl(call.dir, call.filename, !!call.lines);
   }
   public readJsonlFileChunk(call: {id: number}) {
     return this._root.continueReadJsonl(call.id);
   }
 
+  // streamed reads push all chunks without waiting for acknowledgements in mock
+  public async streamBinaryFile(call: {dir: string, filename: string}, callback: (message: BinaryStreamChunk | undefined, error?: any) => void) {
+    try {
+      const first = await this._root.startReadBinary(call.dir, call.filename);
+      const id = first.id ?? 0;
+      callback({id, data: first.data ?? '', end: first.chunks < 2});
+      for (let chunk = 2; chunk <= first.chunks; ++chunk) {
+        const next = await this._root.continueReadBinary(id);
+        callback({id, data: next.data, end: chunk === first.chunks});
+      }
+    } catch (e) {
+      callback(undefined, e);
+    }
+    return 'mock';
+  }
+  public async streamJsonlFile(call: {dir: string, filename: string, lines?: boolean}, callback: (message: JsonlStreamChunk | undefined, error?: any) => void) {
+    try {
+      const first = await this._root.startReadJsonl(call.dir, call.filename, !!call.lines);
+      const id = first.id ?? 0;
+      callback({...first, id, end: !first.id});
+      let end = !first.id;
+      while (!end) {
+        const next = await this._root.continueReadJsonl(id);
+        end = next.end;
+        callback({...next, id});
+      }
+    } catch (e) {
+      callback(undefined, e);
+    }
+    return 'mock';
+  }
+  public ackReadStream(call: {id: number, chunks?: number}) {
+    return createPromise();
+  }
+
   public saveBinaryFile(call: {dir: string, filename: string, size: number}) {
     return this._root.startWriteBinary(call.dir, call.filename, call.size);
   }
   public saveBinaryFileChunk(call: {id: number, data: string}) {
     return this._root.continueWriteBinary(call.id, call.data);
   }
+  public async saveBinaryFiles(call: {dir: string, files: {filename: string, data: string}[]}) {
+    const results: {filename: string, success: boolean, error?: string}[] = [];
+    for (const file of call.files) {
+      try {
+        const init = await this._root.startWriteBinary(call.dir, file.filename, atob(file.data).length);
+        if ((init as any).id) await this._root.continueWriteBinary((init as any).id, file.data);
+        results.push({filename: file.filename, success: true});
+      } catch (e) {
+        results.push({filename: file.filename, success: false, error: '' + e});
+      }
+    }
+    return {results};
+  }
 
-  public saveJsonlFile(call: {dir: string, filename: string, events: JsonLEvent[], more: boolean}) {
-    return this._root.startWriteJsonl(call.dir, call.filename, call.events, call.more);
+  public saveJsonlFile(call: {dir: string, filename: string, events: JsonLEvent[], more: boolean, keyed?: boolean, compressed?: boolean}) {
+    return this._root.startWriteJsonl(call.dir, call.filename, call.events, call.more, !!call.keyed);
   }
   public saveJsonlFileChunk(call: {id: number, events: JsonLEvent[], more: boolean}) {
     return this._root.continueWriteJsonl(call.id, call.events, call.more);
   }
+  public cancelRead(call: {id: number}) {
+    // abandoned reads are not a problem in mock
+    return createPromise();
+  }
+  public cancelWrite(call: {id: number}) {
+    // abandoned writes are not a problem in mock
+    return createPromise();
+  }
+  public appendJsonlJournal(call: {dir: string, filename: string, records: {k: string, d?: string}[]}) {
+    return this._root.appendJsonlJournal(call.dir, call.filename, call.records);
+  }
+
+  public startTileDownload(call: {dir: string, tiles: {filename: string, url: string}[], maxConcurrentRequests: number, headers?: {[name: string]: string}, notificationTitle?: string}): Promise<{id: number}> {
+    // tiles are downloaded natively only, the application then downloads them itself
+    return Promise.reject(new Error('Native download not available'));
+  }
+  public getTileDownloadProgress(call: {id: number}): Promise<TileDownloadProgress> {
+    return Promise.reject({message: 'Unknown download', code: 'invalid-id'});
+  }
+  public cancelTileDownload(call: {id: number}): Promise<any> {
+    return Promise.resolve();
+  }
+  public takeDownloadedFiles(call: {dir: string}): Promise<{files: {filename: string, size: number}[]}> {
+    return Promise.resolve({files: []});
+  }
+
+  public getOpenHandles(): Promise<OpenHandles> {
+    // mock reads and writes do not hold any resource
+    const none = {count: 0, pendingBytes: 0, tempBytes: 0, oldestAge: 0, longestIdle: 0};
+    return createPromise().then(() => ({binaryReads: none, jsonlReads: none, binaryWrites: none, jsonlWrites: none, fileListings: none, readStreams: none, expired: 0}));
+  }
+
+  public getReadCacheStats(): Promise<ReadCacheStats> {
+    // no cache in mock
+    return createPromise().then(() => ({hits: 0, misses: 0, sharedLoads: 0, evictions: 0, count: 0, size: 0, maxSize: 0}));
+  }
+
+  public getBufferPoolStats(): Promise<BufferPoolStats> {
+    // no native buffers in mock
+    return createPromise().then(() => ({hits: 0, misses: 0, dropped: 0, count: 0, size: 0}));
+  }
 
 }
 
@@ -236,13 +387,22 @@ class MockDir {
     return createPromise().then(() => ({data: result.data}));
   }
 
+  public async readBinaryRange(dir: string, filename: string, offset: number, length: number): Promise<{data: string, size: number}> {
+    const d = await this.getDirectory(dir.split('/'), false);
+    if (!d) throw new Error('File not found: ' + dir + '/' + filename);
+    const f = d.getFile(filename, false);
+    if (!f) throw new Error('File not found: ' + dir + '/' + filename);
+    const range = f.readBinaryRange(offset, length);
+    return createPromise().then(() => range);
+  }
+
   private readonly _writeJsonl = new Map<number, MockFile>();
   private _writeJsonlCounter = 0;
 
-  public async startWriteJsonl(dir: string, filename: string, events: JsonLEvent[], more: boolean): Promise<{id: number | undefined}> {
+  public async startWriteJsonl(dir: string, filename: string, events: JsonLEvent[], more: boolean, keyed: boolean): Promise<{id: number | undefined}> {
     const d = await this.getDirectory(dir.split('/'), true);
     const f = d!.getFile(filename, true)!;
-    f.startWriteJsonl(events, more);
+    f.startWriteJsonl(events, more, keyed);
     if (!more) return createPromise().then(() => ({id: undefined}));
     const id = ++this._writeJsonlCounter;
     this._writeJsonl.set(id, f);
@@ -259,33 +419,40 @@ class MockDir {
     });
   }
 
-  private readonly _readJsonl = new Map<number, {file: MockFile, offset: number}>();
+  public async appendJsonlJournal(dir: string, filename: string, records: {k: string, d?: string}[]): Promise<any> {
+    const d = await this.getDirectory(dir.split('/'), false);
+    const f = d?.getFile(filename, false);
+    if (!f) throw {message: 'File is not a keyed snapshot', code: 'not-journaled'};
+    return createPromise().then(() => f.appendJournal(records));
+  }
+
+  private readonly _readJsonl = new Map<number, {file: MockFile, offset: number, lines: boolean}>();
   private _readJsonlCounter = 0;
 
-  public async startReadJsonl(dir: string, filename: string): Promise<{events: JsonLEvent[], id: number | undefined}> {
+  public async startReadJsonl(dir: string, filename: string, lines: boolean): Promise<JsonlReadChunk & {id: number | undefined}> {
     const d = await this.getDirectory(dir.split('/'), false);
     if (!d) throw new Error('File not found: ' + dir + '/' + filename);
     const f = d.getFile(filename, false);
     if (!f) throw new Error('File not found: ' + dir + '/' + filename);
-    const result = f.startReadJsonl();
+    const result = f.startReadJsonl(lines);
     if (result.more) {
       const id = ++this._readJsonlCounter;
-      this._readJsonl.set(id, {file: f, offset: result.events.length});
-      return {events: result.events, id};
+      this._readJsonl.set(id, {file: f, offset: result.count, lines});
+      return {...result.chunk, id};
     }
-    return {events: result.events, id: undefined};
+    return {...result.chunk, id: undefined};
   }
 
-  public async continueReadJsonl(id: number): Promise<{events: JsonLEvent[], end: boolean}> {
+  public async continueReadJsonl(id: number): Promise<JsonlReadChunk & {end: boolean}> {
     const f = this._readJsonl.get(id);
     if (!f) throw new Error('Invalid id: ' + id);
-    const result = f.file.continueReadJsonl(f.offset);
+    const result = f.file.continueReadJsonl(f.offset, f.lines);
     if (result.more) {
-      f.offset += result.events.length;
-      return createPromise().then(() => ({events: result.events, end: false}));
+      f.offset += result.count;
+      return createPromise().then(() => ({...result.chunk, end: false}));
     }
     this._readJsonl.delete(id);
-    return createPromise().then(() => ({events: result.events, end: true}));
+    return createPromise().then(() => ({...result.chunk, end: true}));
   }
 
 }
@@ -342,6 +509,18 @@ class MockFile {
     return {data: BinaryContent.uint8ArrayToBase64(this._binary[0]), chunks: this._binary.length};
   }
 
+  public readBinaryRange(offset: number, length: number): {data: string, size: number} {
+    if (!this._binary) throw new Error('Not a binary file');
+    const size = this.binarySize()!;
+    const all = new Uint8Array(size);
+    let pos = 0;
+    for (const a of this._binary) {
+      all.set(a, pos);
+      pos += a.byteLength;
+    }
+    return {data: BinaryContent.uint8ArrayToBase64(all.subarray(offset, Math.min(size, offset + length))), size};
+  }
+
   public continueReadBinary(chunk: number): {done: boolean, data: string} {
     if (!this._binary) throw new Error('Not a binary file');
     if (chunk >= this._binary.length) throw new Error('Unexpected chunk to read');
@@ -351,10 +530,14 @@ class MockFile {
 
   private _jsonl?: JsonLEvent[];
   private _jsonlDone?: boolean;
+  private _jsonlKeyed = false;
+  private _journal = new Map<string, string | undefined>();
 
-  public startWriteJsonl(events: JsonLEvent[], more: boolean) {
+  public startWriteJsonl(events: JsonLEvent[], more: boolean, keyed: boolean) {
     this._jsonl = [...events];
     this._jsonlDone = !more;
+    this._jsonlKeyed = keyed;
+    this._journal = new Map();
     this._binary = undefined;
     this._binarySize = undefined;
   }
@@ -366,19 +549,73 @@ class MockFile {
     this._jsonlDone = !more;
   }
 
-  public startReadJsonl(): {events: JsonLEvent[], more: boolean} {
+  public appendJournal(records: {k: string, d?: string}[]): void {
+    if (!this._jsonl || !this._jsonlDone || !this._jsonlKeyed) throw {message: 'File is not a keyed snapshot', code: 'not-journaled'};
+    for (const record of records) {
+      this._journal.delete(record.k);
+      this._journal.set(record.k, record.d);
+    }
+  }
+
+  public startReadJsonl(lines: boolean): {chunk: JsonlReadChunk, count: number, more: boolean} {
     if (!this._jsonl) throw new Error('Not a jsonl');
     if (!this._jsonlDone) throw new Error('Jsonl write not completed');
-    if (this._jsonl.length <= 5) return {events: [...this._jsonl], more: false};
-    return {events: this._jsonl.slice(0, 5), more: true};
+    return this.readJsonlItems(lines ? this.replayedJsonlLines() : this.replayedJsonl(), lines, 0);
   }
 
-  public continueReadJsonl(offset: number): {events: JsonLEvent[], more: boolean} {
+  public continueReadJsonl(offset: number, lines: boolean): {chunk: JsonlReadChunk, count: number, more: boolean} {
     if (!this._jsonl) throw new Error('Not a jsonl');
     if (!this._jsonlDone) throw new Error('Jsonl write not completed');
-    if (offset >= this._jsonl.length) throw new Error('Invalid jsonl offset: ' + offset + ' > ' + (this._jsonl.length - 1));
-    if (offset + 5 >= this._jsonl.length) return {events: this._jsonl.slice(offset), more: false};
-    return {events: this._jsonl.slice(offset, offset + 5), more: true};
+    const items = lines ? this.replayedJsonlLines() : this.replayedJsonl();
+    if (offset >= items.length) throw new Error('Invalid jsonl offset: ' + offset + ' > ' + (items.length - 1));
+    return this.readJsonlItems(items, lines, offset);
+  }
+
+  private readJsonlItems(items: (JsonLEvent | string)[], lines: boolean, offset: number): {chunk: JsonlReadChunk, count: number, more: boolean} {
+    const slice = items.slice(offset, offset + 5);
+    const chunk: JsonlReadChunk = lines ? {lines: slice as string[]} : {events: slice as JsonLEvent[]};
+    return {chunk, count: slice.length, more: offset + 5 < items.length};
+  }
+
+  /** Non-empty lines, as sent natively when lines are requested. */
+  private replayedJsonlLines(): string[] {
+    const lines: string[] = [];
+    let current = '';
+    for (const event of this.replayedJsonl()) {
+      if ((event as any)['nl']) {
+        if (current.length > 0) lines.push(current);
+        current = '';
+      } else {
+        current += (event as any).d;
+      }
+    }
+    if (current.length > 0) lines.push(current);
+    return lines;
+  }
+
+  /** For a keyed snapshot, remove keys from lines and replay the journal, as done natively. */
+  private replayedJsonl(): JsonLEvent[] {
+    if (!this._jsonlKeyed) return this._jsonl!;
+    const lines: string[] = [];
+    let current = '';
+    for (const event of this._jsonl!) {
+      if ((event as any)['nl']) {
+        lines.push(current);
+        current = '';
+      } else {
+        current += (event as any).d;
+      }
+    }
+    if (current.length > 0) lines.push(current);
+    const events: JsonLEvent[] = [];
+    for (const line of lines) {
+      const i = line.indexOf('\t');
+      if (i <= 0 || this._journal.has(line.substring(0, i))) continue;
+      events.push({d: line.substring(i + 1)}, {nl: true});
+    }
+    for (const line of this._journal.values())
+      if (line !== undefined) events.push({d: line}, {nl: true});
+    return events;
   }
 
   private jsonlSize(): number | undefined {